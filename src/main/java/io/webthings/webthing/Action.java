@@ -6,6 +6,9 @@ package io.webthings.webthing;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * An Action represents an individual action on a thing.
  */
@@ -15,10 +18,18 @@ public class Action {
     private String name;
     private JSONObject input;
     private String hrefPrefix;
-    private String href;
-    private String status;
-    private String timeRequested;
-    private String timeCompleted;
+    private volatile ActionStatus status;
+    private final long timeRequested;
+    private volatile long timeCompleted;
+    private Future<?> future;
+    private Future<?> timeout;
+    private boolean cancelled;
+    private boolean ended;
+    private boolean returned;
+    private ActionStatus finalStatus;
+    private volatile int queuePosition;
+    private volatile long timeQueued;
+    private volatile long waitTime;
 
     /**
      * Initialize the object.
@@ -45,9 +56,18 @@ public class Action {
         this.name = name;
         this.input = input;
         this.hrefPrefix = "";
-        this.href = String.format("/actions/%s/%s", this.name, this.id);
-        this.status = "created";
-        this.timeRequested = Utils.timestamp();
+        this.status = ActionStatus.CREATED;
+        this.timeRequested = System.currentTimeMillis();
+        this.timeCompleted = 0;
+        this.future = null;
+        this.timeout = null;
+        this.cancelled = false;
+        this.ended = false;
+        this.returned = false;
+        this.finalStatus = null;
+        this.queuePosition = 0;
+        this.timeQueued = 0;
+        this.waitTime = 0;
     }
 
     /**
@@ -59,16 +79,26 @@ public class Action {
         JSONObject obj = new JSONObject();
         JSONObject inner = new JSONObject();
         try {
-            inner.put("href", this.hrefPrefix + this.href);
-            inner.put("timeRequested", this.timeRequested);
-            inner.put("status", this.status);
+            inner.put("href", this.getHref());
+            inner.put("timeRequested", Utils.timestamp(this.timeRequested));
+            inner.put("status", this.status.toString());
 
             if (this.input != null) {
                 inner.put("input", this.input);
             }
 
-            if (this.timeCompleted != null) {
-                inner.put("timeCompleted", this.timeCompleted);
+            long timeCompleted = this.timeCompleted;
+            if (timeCompleted != 0) {
+                inner.put("timeCompleted", Utils.timestamp(timeCompleted));
+            }
+
+            int queuePosition = this.queuePosition;
+            if (queuePosition > 0) {
+                inner.put("queuePosition", queuePosition);
+                inner.put("waitTime",
+                          System.currentTimeMillis() - this.timeQueued);
+            } else if (this.waitTime > 0) {
+                inner.put("waitTime", this.waitTime);
             }
 
             obj.put(this.name, inner);
@@ -78,6 +108,39 @@ public class Action {
         }
     }
 
+    /**
+     * Write the action description, as returned by asActionDescription().
+     *
+     * @param writer The writer to write to
+     */
+    public void writeActionDescription(JsonWriter writer) {
+        writer.beginObject().name(this.name).beginObject();
+        writer.name("href").value(this.getHref());
+        writer.name("timeRequested")
+              .value(Utils.timestamp(this.timeRequested));
+        writer.name("status").value(this.status.toString());
+
+        if (this.input != null) {
+            writer.name("input").value(this.input);
+        }
+
+        long timeCompleted = this.timeCompleted;
+        if (timeCompleted != 0) {
+            writer.name("timeCompleted").value(Utils.timestamp(timeCompleted));
+        }
+
+        int queuePosition = this.queuePosition;
+        if (queuePosition > 0) {
+            writer.name("queuePosition").value(queuePosition);
+            writer.name("waitTime")
+                  .value(System.currentTimeMillis() - this.timeQueued);
+        } else if (this.waitTime > 0) {
+            writer.name("waitTime").value(this.waitTime);
+        }
+
+        writer.endObject().endObject();
+    }
+
     /**
      * Set the prefix of any hrefs associated with this action.
      *
@@ -111,7 +174,7 @@ public class Action {
      * @return The href.
      */
     public String getHref() {
-        return this.hrefPrefix + this.href;
+        return this.hrefPrefix + "/actions/" + this.name + "/" + this.id;
     }
 
     /**
@@ -120,9 +183,38 @@ public class Action {
      * @return The status.
      */
     public String getStatus() {
+        return this.status.toString();
+    }
+
+    /**
+     * Get this action's status as an enum value.
+     *
+     * @return The status.
+     */
+    public ActionStatus getStatusValue() {
         return this.status;
     }
 
+    /**
+     * Determine whether the action has reached a final status, i.e. it has
+     * completed, was cancelled or timed out.
+     *
+     * @return Boolean indicating whether the action is finished.
+     */
+    public boolean isFinished() {
+        return this.status.isFinished();
+    }
+
+    /**
+     * Determine whether the action was cancelled. Long-running actions which
+     * do not block on interruptible calls should check this periodically.
+     *
+     * @return Boolean indicating whether the action was cancelled.
+     */
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+
     /**
      * Get the thing associated with this action.
      *
@@ -138,6 +230,15 @@ public class Action {
      * @return The time.
      */
     public String getTimeRequested() {
+        return Utils.timestamp(this.timeRequested);
+    }
+
+    /**
+     * Get the time the action was requested in milliseconds since the epoch.
+     *
+     * @return The time.
+     */
+    public long getTimeRequestedMillis() {
         return this.timeRequested;
     }
 
@@ -147,7 +248,12 @@ public class Action {
      * @return The time.
      */
     public String getTimeCompleted() {
-        return this.timeCompleted;
+        long timeCompleted = this.timeCompleted;
+        if (timeCompleted == 0) {
+            return null;
+        }
+
+        return Utils.timestamp(timeCompleted);
     }
 
     /**
@@ -160,13 +266,18 @@ public class Action {
     }
 
     /**
-     * Start performing the action.
+     * Start performing the action, and return once it is done.
      */
     public void start() {
-        this.status = "pending";
-        this.thing.actionNotify(this);
-        this.performAction();
-        this.finish();
+        if (!this.begin()) {
+            return;
+        }
+
+        try {
+            this.performAction();
+        } finally {
+            this.complete();
+        }
     }
 
     /**
@@ -185,8 +296,245 @@ public class Action {
      * Finish performing the action.
      */
     public void finish() {
-        this.status = "completed";
-        this.timeCompleted = Utils.timestamp();
+        this.end(ActionStatus.COMPLETED);
+    }
+
+    /**
+     * Run the action in the background.
+     *
+     * @param executor The executor to run blocking actions on
+     */
+    void launch(ExecutorService executor) {
+        this.setFuture(executor.submit(this::start));
+    }
+
+    /**
+     * Mark the action as pending, unless it was cancelled before it started.
+     *
+     * @return Boolean indicating whether the action should be performed.
+     */
+    boolean begin() {
+        synchronized (this) {
+            if (this.cancelled) {
+                return false;
+            }
+
+            this.status = ActionStatus.PENDING;
+        }
+
         this.thing.actionNotify(this);
+        return true;
+    }
+
+    /**
+     * End the action once it has been performed, as cancelled or timed out if
+     * it was stopped, else as completed. The final status is decided under
+     * the same lock which keeps abort() and expire() from stopping the action
+     * any more, so an action which was performed in full is never reported
+     * as cancelled.
+     * <p>
+     * An action which timed out has already ended, but kept its slot, as its
+     * thread may have kept running; the slot is released now.
+     */
+    void complete() {
+        this.complete(null);
+    }
+
+    /**
+     * End the action as failed once it has been performed, unless it was
+     * stopped first, and report the error to the current thread's uncaught
+     * exception handler.
+     *
+     * @param error The error the action failed with
+     */
+    void fail(Throwable error) {
+        this.complete(ActionStatus.FAILED);
+
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, error);
+    }
+
+    /**
+     * End the action once it has been performed.
+     *
+     * @param status The final status, unless the action was stopped, or null
+     *               if it completed
+     */
+    private void complete(ActionStatus status) {
+        ActionStatus finalStatus;
+        boolean ended;
+        synchronized (this) {
+            this.returned = true;
+            if (this.finalStatus == null) {
+                this.finalStatus = status;
+            }
+
+            finalStatus = this.finalStatus;
+            ended = this.ended;
+        }
+
+        if (finalStatus != null) {
+            this.end(finalStatus);
+        } else {
+            this.finish();
+        }
+
+        if (ended) {
+            this.thing.actionEnded(this);
+        }
+    }
+
+    /**
+     * Set the task running this action, so that it can be interrupted when
+     * the action is cancelled.
+     *
+     * @param future The task
+     */
+    void setFuture(Future<?> future) {
+        boolean cancelled;
+        synchronized (this) {
+            this.future = future;
+            cancelled = this.cancelled;
+        }
+
+        // Cancelling may complete the action, so do it without holding the
+        // lock.
+        if (cancelled) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Set the action's position in its thing's action queue. The time spent
+     * waiting is measured from the first time it is queued until it leaves
+     * the queue.
+     *
+     * @param position The position, starting at 1, or 0 if it is not queued
+     */
+    void setQueuePosition(int position) {
+        if (position > 0 && this.timeQueued == 0) {
+            this.timeQueued = System.currentTimeMillis();
+        } else if (position == 0 && this.queuePosition > 0) {
+            this.waitTime = System.currentTimeMillis() - this.timeQueued;
+        }
+
+        this.queuePosition = position;
+    }
+
+    /**
+     * Get the action's position in its thing's action queue.
+     *
+     * @return The position, starting at 1, or 0 if it is not queued.
+     */
+    public int getQueuePosition() {
+        return this.queuePosition;
+    }
+
+    /**
+     * Get the time the action spent waiting in its thing's action queue, so
+     * far if it is still queued.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getWaitTime() {
+        if (this.queuePosition > 0) {
+            return System.currentTimeMillis() - this.timeQueued;
+        }
+
+        return this.waitTime;
+    }
+
+    /**
+     * Set the task which times this action out.
+     *
+     * @param timeout The task
+     */
+    synchronized void setTimeout(Future<?> timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Stop the action: keep it from starting, or interrupt it if it is
+     * already running. An action whose performAction() has returned is left
+     * to complete.
+     */
+    void abort() {
+        boolean started;
+        Future<?> future;
+        synchronized (this) {
+            if (this.cancelled || this.ended || this.returned) {
+                return;
+            }
+
+            this.cancelled = true;
+            this.finalStatus = ActionStatus.CANCELLED;
+            started = this.status != ActionStatus.CREATED;
+            future = this.future;
+        }
+
+        if (future != null) {
+            future.cancel(true);
+        }
+
+        // A running action is marked as cancelled once performAction()
+        // returns.
+        if (!started) {
+            this.end(ActionStatus.CANCELLED);
+        }
+    }
+
+    /**
+     * Time the action out: interrupt it, and end it right away rather than
+     * waiting for performAction() to return, as it may never do so. Its slot
+     * is only released once performAction() does return, so that no more
+     * instances run at once than its action type allows.
+     */
+    void expire() {
+        Future<?> future;
+        synchronized (this) {
+            if (this.cancelled || this.ended || this.returned) {
+                return;
+            }
+
+            this.cancelled = true;
+            this.finalStatus = ActionStatus.TIMED_OUT;
+            future = this.future;
+        }
+
+        if (future != null) {
+            future.cancel(true);
+        }
+
+        this.end(ActionStatus.TIMED_OUT);
+    }
+
+    /**
+     * Set the final status of the action and notify subscribers, unless it
+     * has already ended. The action's slot is released too, unless its
+     * performAction() is still running.
+     *
+     * @param status The final status
+     */
+    private void end(ActionStatus status) {
+        boolean release;
+        synchronized (this) {
+            if (this.ended) {
+                return;
+            }
+
+            release = this.status == ActionStatus.CREATED || this.returned;
+            this.ended = true;
+            this.status = status;
+            this.timeCompleted = System.currentTimeMillis();
+
+            if (this.timeout != null) {
+                this.timeout.cancel(false);
+            }
+        }
+
+        this.thing.actionNotify(this);
+        if (release) {
+            this.thing.actionEnded(this);
+        }
     }
 }
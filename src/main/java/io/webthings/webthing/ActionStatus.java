@@ -0,0 +1,49 @@
+/**
+ * Action status values.
+ */
+package io.webthings.webthing;
+
+/**
+ * The status of an action.
+ */
+public enum ActionStatus {
+    CREATED("created", false),
+    PENDING("pending", false),
+    COMPLETED("completed", true),
+    CANCELLED("cancelled", true),
+    FAILED("failed", true),
+    TIMED_OUT("timedOut", true);
+
+    private final String value;
+    private final boolean finished;
+
+    /**
+     * Initialize the object.
+     *
+     * @param value    The status as sent to clients
+     * @param finished Whether this is a final status
+     */
+    ActionStatus(String value, boolean finished) {
+        this.value = value;
+        this.finished = finished;
+    }
+
+    /**
+     * Determine whether this is a final status.
+     *
+     * @return Boolean indicating whether the action is finished.
+     */
+    public boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Get the status as sent to clients.
+     *
+     * @return The status.
+     */
+    @Override
+    public String toString() {
+        return this.value;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Asynchronous Action base class implementation.
+ */
+package io.webthings.webthing;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An action which does not block a thread while it is performed, e.g.
+ * because it waits on I/O or a timer.
+ * <p>
+ * The action stays pending until the stage returned by
+ * {@link #performActionAsync()} completes, and ends as failed if the stage
+ * completes exceptionally. Cancelling or timing out the action ends it right
+ * away and cancels that stage, if it supports it.
+ */
+public abstract class AsyncAction extends Action {
+    /**
+     * Initialize the object.
+     *
+     * @param id    ID of this action
+     * @param thing Thing this action belongs to
+     * @param name  Name of the action
+     */
+    public AsyncAction(String id, Thing thing, String name) {
+        super(id, thing, name);
+    }
+
+    /**
+     * Initialize the object.
+     *
+     * @param id    ID of this action
+     * @param thing Thing this action belongs to
+     * @param name  Name of the action
+     * @param input Any action inputs
+     */
+    public AsyncAction(String id, Thing thing, String name, JSONObject input) {
+        super(id, thing, name, input);
+    }
+
+    /**
+     * Override this with the code necessary to perform the action. It must
+     * not block.
+     *
+     * @return A stage which completes when the action is done.
+     */
+    public abstract CompletionStage<?> performActionAsync();
+
+    /**
+     * Start performing the action, and return without waiting for it.
+     */
+    @Override
+    public void start() {
+        if (!this.begin()) {
+            return;
+        }
+
+        CompletionStage<?> stage;
+        try {
+            stage = this.performActionAsync();
+        } catch (RuntimeException e) {
+            this.fail(e);
+            return;
+        }
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        stage.whenComplete((result, error) -> {
+            if (error == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(error);
+            }
+        });
+        done.whenComplete((result, error) -> {
+            if (done.isCancelled()) {
+                try {
+                    stage.toCompletableFuture().cancel(true);
+                } catch (UnsupportedOperationException e) {
+                }
+
+                this.complete();
+            } else if (error != null) {
+                this.fail(error instanceof CompletionException &&
+                                  error.getCause() != null ?
+                          error.getCause() :
+                          error);
+            } else {
+                this.complete();
+            }
+        });
+        this.setFuture(done);
+    }
+
+    /**
+     * Start the action on the executor. The executor thread is only used
+     * until performActionAsync() returns.
+     *
+     * @param executor The executor to start the action on
+     */
+    @Override
+    void launch(ExecutorService executor) {
+        executor.execute(this::start);
+    }
+}
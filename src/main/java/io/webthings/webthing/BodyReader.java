@@ -0,0 +1,327 @@
+/**
+ * Bounded request body reader.
+ */
+package io.webthings.webthing;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import io.webthings.webthing.errors.PayloadTooLargeError;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Reads JSON or CBOR request bodies, with a limit on their size.
+ * <p>
+ * Bodies are read into buffers from a shared pool and parsed from there, so
+ * that a request does not allocate whatever its Content-Length claims.
+ * Chunked bodies are decoded as they are read.
+ */
+class BodyReader {
+    private static final int BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final BlockingQueue<byte[]> pool =
+            new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    private volatile int maxSize;
+
+    /**
+     * Initialize the object.
+     *
+     * @param maxSize Maximum body size, in bytes
+     */
+    BodyReader(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the maximum body size.
+     *
+     * @return The size in bytes.
+     */
+    int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Set the maximum body size.
+     *
+     * @param maxSize The size in bytes
+     */
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Read and parse a JSON object body, or a CBOR map if the Content-Type is
+     * application/cbor.
+     *
+     * @param session The HTTP session
+     * @return The parsed object, or null if the body is missing or invalid.
+     * @throws PayloadTooLargeError If the body is larger than the maximum
+     *                              size.
+     */
+    JSONObject readJson(NanoHTTPD.IHTTPSession session) {
+        Map<String, String> headers = session.getHeaders();
+        String transferEncoding = headers.get("transfer-encoding");
+        boolean chunked = transferEncoding != null &&
+                transferEncoding.toLowerCase().contains("chunked");
+
+        boolean delimited = session instanceof Delimited;
+        String header = headers.get("content-length");
+
+        long contentLength = -1;
+        if (header != null && !chunked) {
+            try {
+                contentLength = Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (contentLength < 0) {
+                return null;
+            }
+
+            if (contentLength > this.maxSize) {
+                throw new PayloadTooLargeError();
+            }
+        } else if (!chunked && !delimited) {
+            // Without a length the request has no body. Reading on would
+            // block on the next request of a keep-alive connection.
+            return null;
+        }
+
+        Body body = new Body();
+        try {
+            InputStream in = session.getInputStream();
+            if (delimited) {
+                this.readToEnd(in, body);
+            } else if (chunked) {
+                this.readChunked(in, body);
+            } else {
+                body.read(in, (int)contentLength);
+            }
+
+            String contentType = headers.get("content-type");
+            if (contentType != null &&
+                    contentType.toLowerCase().startsWith(Cbor.MIME_TYPE)) {
+                Object value = Cbor.decode(body.buffer, 0, body.length);
+                return value instanceof JSONObject ? (JSONObject)value : null;
+            }
+
+            return new JSONObject(new JSONTokener(
+                    new String(body.buffer,
+                               0,
+                               body.length,
+                               StandardCharsets.UTF_8)));
+        } catch (IOException | JSONException e) {
+            return null;
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Read a body which ends with its stream as UTF-8 text.
+     *
+     * @param in The input stream
+     * @return The text.
+     * @throws IOException          If the body could not be read.
+     * @throws PayloadTooLargeError If the body is larger than the maximum
+     *                              size.
+     */
+    String readText(InputStream in) throws IOException {
+        Body body = new Body();
+        try {
+            this.readToEnd(in, body);
+            return new String(body.buffer,
+                              0,
+                              body.length,
+                              StandardCharsets.UTF_8);
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Read a chunked body.
+     *
+     * @param in   The input stream
+     * @param body The body to read into
+     * @throws IOException If the body could not be read.
+     */
+    private void readChunked(InputStream in, Body body) throws IOException {
+        while (true) {
+            String line = readLine(in);
+            int extension = line.indexOf(';');
+            if (extension >= 0) {
+                line = line.substring(0, extension);
+            }
+
+            long size;
+            try {
+                size = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size");
+            }
+
+            if (size == 0) {
+                break;
+            }
+
+            if (size < 0 || body.length + size > this.maxSize) {
+                throw new PayloadTooLargeError();
+            }
+
+            body.read(in, (int)size);
+            readLine(in);
+        }
+
+        // Skip any trailers, up to the empty line which ends the body.
+        while (!readLine(in).isEmpty()) {
+        }
+    }
+
+    /**
+     * Read a body which ends with its stream.
+     *
+     * @param in   The input stream
+     * @param body The body to read into
+     * @throws IOException If the body could not be read.
+     */
+    private void readToEnd(InputStream in, Body body) throws IOException {
+        while (body.readSome(in)) {
+            if (body.length > this.maxSize) {
+                throw new PayloadTooLargeError();
+            }
+        }
+    }
+
+    /**
+     * Read a CRLF terminated line.
+     *
+     * @param in The input stream
+     * @return The line, without its terminator.
+     * @throws IOException If the line could not be read.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c < 0) {
+                throw new EOFException();
+            }
+
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+
+                return line.toString();
+            }
+
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+
+            line.append((char)c);
+        }
+    }
+
+    /**
+     * A session whose input stream has already been decoded, and ends with
+     * the request body.
+     */
+    interface Delimited {
+    }
+
+    /**
+     * A body being read, in a pooled buffer.
+     */
+    private static class Body {
+        byte[] buffer;
+        int length;
+
+        /**
+         * Initialize the object.
+         */
+        Body() {
+            byte[] buffer = pool.poll();
+            this.buffer = buffer == null ? new byte[BUFFER_SIZE] : buffer;
+            this.length = 0;
+        }
+
+        /**
+         * Append exactly count bytes from a stream, which may return them in
+         * several reads.
+         *
+         * @param in    The input stream
+         * @param count Number of bytes to read
+         * @throws IOException If the stream ended early.
+         */
+        void read(InputStream in, int count) throws IOException {
+            int end = this.length + count;
+            if (end > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer,
+                                            Math.max(end,
+                                                     this.buffer.length * 2));
+            }
+
+            while (this.length < end) {
+                int read = in.read(this.buffer, this.length, end - this.length);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+
+                this.length += read;
+            }
+        }
+
+        /**
+         * Append whatever a single read returns, growing the buffer if it
+         * is full.
+         *
+         * @param in The input stream
+         * @return Boolean indicating whether the stream has more data.
+         * @throws IOException If the stream could not be read.
+         */
+        boolean readSome(InputStream in) throws IOException {
+            if (this.length == this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer,
+                                            this.buffer.length * 2);
+            }
+
+            int read = in.read(this.buffer,
+                               this.length,
+                               this.buffer.length - this.length);
+            if (read < 0) {
+                return false;
+            }
+
+            this.length += read;
+            return true;
+        }
+
+        /**
+         * Return the buffer to the pool, unless it grew too large to keep.
+         */
+        void release() {
+            if (this.buffer.length <= MAX_POOLED_BUFFER_SIZE) {
+                pool.offer(this.buffer);
+            }
+
+            this.buffer = null;
+        }
+    }
+}
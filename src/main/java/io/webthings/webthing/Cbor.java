@@ -0,0 +1,886 @@
+/**
+ * CBOR encoding.
+ */
+package io.webthings.webthing;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Converts between JSON and CBOR (RFC 8949).
+ * <p>
+ * JSON text is transcoded into CBOR token by token, without building a tree
+ * of JSON objects first. Objects and arrays with fewer than 24 members get a
+ * definite length, which is patched into a header byte reserved when they
+ * start; larger ones are written with an indefinite length. Numbers use the
+ * smallest integer or float type which holds them exactly.
+ * <p>
+ * CBOR is decoded into org.json values, as the handlers expect. Byte strings
+ * become base64url strings, and tags are dropped.
+ */
+public class Cbor {
+    /**
+     * The CBOR media type.
+     */
+    public static final String MIME_TYPE = "application/cbor";
+
+    /**
+     * The websocket subprotocol for CBOR messages.
+     */
+    public static final String WEBSOCKET_PROTOCOL = "webthing.cbor";
+
+    private static final int MAX_DEPTH = 256;
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int UNDEFINED = 0xf7;
+    private static final int FLOAT16 = 0xf9;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+
+    /**
+     * Transcode JSON text into CBOR.
+     *
+     * @param json The JSON text
+     * @return The CBOR encoding.
+     * @throws JSONException If the text is not valid JSON.
+     */
+    public static byte[] fromJson(String json) {
+        return new Encoder(json).encode();
+    }
+
+    /**
+     * Decode a CBOR data item.
+     *
+     * @param data The encoded data
+     * @return A JSONObject, JSONArray, String, Number, Boolean or
+     * JSONObject.NULL.
+     * @throws JSONException If the data is not valid CBOR, or cannot be
+     *                       represented as JSON.
+     */
+    public static Object decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * Decode a CBOR data item.
+     *
+     * @param data   The buffer holding the encoded data
+     * @param offset Offset of the data in the buffer
+     * @param length Length of the data
+     * @return A JSONObject, JSONArray, String, Number, Boolean or
+     * JSONObject.NULL.
+     * @throws JSONException If the data is not valid CBOR, or cannot be
+     *                       represented as JSON.
+     */
+    public static Object decode(byte[] data, int offset, int length) {
+        return new Decoder(data, offset, offset + length).decode();
+    }
+
+    /**
+     * Determine whether a client prefers CBOR over JSON.
+     * <p>
+     * CBOR is only used when the Accept header names it, with a quality at
+     * least as high as that of application/json.
+     *
+     * @param accept The Accept request header
+     * @return Boolean indicating whether to respond with CBOR.
+     */
+    public static boolean isPreferred(String accept) {
+        if (accept == null || !accept.contains(MIME_TYPE)) {
+            return false;
+        }
+
+        double cbor = 0;
+        double json = 0;
+        for (String part : accept.split(",")) {
+            String[] params = part.split(";");
+            String type = params[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < params.length; ++i) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+
+            if (type.equals(MIME_TYPE)) {
+                cbor = q;
+            } else if (type.equals("application/json")) {
+                json = q;
+            }
+        }
+
+        return cbor > 0 && cbor >= json;
+    }
+
+    /**
+     * Transcodes JSON text into a growing buffer.
+     */
+    private static class Encoder {
+        private final String json;
+        private int position;
+        private byte[] buffer;
+        private int length;
+
+        /**
+         * Initialize the object.
+         *
+         * @param json The JSON text
+         */
+        Encoder(String json) {
+            this.json = json;
+            this.position = 0;
+            this.buffer = new byte[Math.max(16, json.length())];
+            this.length = 0;
+        }
+
+        /**
+         * Encode the text.
+         *
+         * @return The CBOR encoding.
+         */
+        byte[] encode() {
+            this.skipWhitespace();
+            this.value(0);
+            this.skipWhitespace();
+            if (this.position != this.json.length()) {
+                throw this.error("Unexpected trailing characters");
+            }
+
+            return Arrays.copyOf(this.buffer, this.length);
+        }
+
+        /**
+         * Encode a JSON value.
+         *
+         * @param depth Nesting depth of the value
+         */
+        private void value(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw this.error("Nesting too deep");
+            }
+
+            char c = this.peek();
+            switch (c) {
+                case '{':
+                    this.container(depth, MAJOR_MAP, '}');
+                    break;
+                case '[':
+                    this.container(depth, MAJOR_ARRAY, ']');
+                    break;
+                case '"':
+                    ++this.position;
+                    this.string();
+                    break;
+                case 't':
+                    this.literal("true");
+                    this.write(TRUE);
+                    break;
+                case 'f':
+                    this.literal("false");
+                    this.write(FALSE);
+                    break;
+                case 'n':
+                    this.literal("null");
+                    this.write(NULL);
+                    break;
+                default:
+                    this.number();
+                    break;
+            }
+        }
+
+        /**
+         * Encode an object or array.
+         *
+         * @param depth Nesting depth of the container
+         * @param major MAJOR_MAP or MAJOR_ARRAY
+         * @param close The closing character
+         */
+        private void container(int depth, int major, char close) {
+            ++this.position;
+
+            // Reserve the header, assuming the length will not fit in it.
+            int header = this.length;
+            this.write(major << 5 | INDEFINITE);
+
+            int count = 0;
+            this.skipWhitespace();
+            if (this.peek() == close) {
+                ++this.position;
+            } else {
+                while (true) {
+                    this.skipWhitespace();
+                    if (major == MAJOR_MAP) {
+                        if (this.next() != '"') {
+                            throw this.error("Expected a string key");
+                        }
+
+                        this.string();
+                        this.skipWhitespace();
+                        if (this.next() != ':') {
+                            throw this.error("Expected ':'");
+                        }
+
+                        this.skipWhitespace();
+                    }
+
+                    this.value(depth + 1);
+                    ++count;
+
+                    this.skipWhitespace();
+                    char c = this.next();
+                    if (c == close) {
+                        break;
+                    }
+
+                    if (c != ',') {
+                        throw this.error("Expected ',' or '" + close + "'");
+                    }
+                }
+            }
+
+            if (count < 24) {
+                this.buffer[header] = (byte)(major << 5 | count);
+            } else {
+                this.write(BREAK);
+            }
+        }
+
+        /**
+         * Encode a string, whose opening quote has been read.
+         */
+        private void string() {
+            // Plain ASCII strings are copied as they are.
+            String json = this.json;
+            int start = this.position;
+            int end = start;
+            int size = json.length();
+            while (end < size) {
+                char c = json.charAt(end);
+                if (c == '"' || c == '\\' || c >= 0x80) {
+                    break;
+                }
+
+                ++end;
+            }
+
+            if (end < size && json.charAt(end) == '"') {
+                int count = end - start;
+                this.header(MAJOR_TEXT, count);
+                this.ensure(count);
+                for (int i = start; i < end; ++i) {
+                    this.buffer[this.length++] = (byte)json.charAt(i);
+                }
+
+                this.position = end + 1;
+                return;
+            }
+
+            StringBuilder builder = new StringBuilder(json.substring(start, end));
+            this.position = end;
+            while (true) {
+                char c = this.next();
+                if (c == '"') {
+                    break;
+                }
+
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+
+                c = this.next();
+                switch (c) {
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        if (this.position + 4 > size) {
+                            throw this.error("Invalid escape");
+                        }
+
+                        try {
+                            builder.append((char)Integer.parseInt(
+                                    json.substring(this.position,
+                                                   this.position + 4),
+                                    16));
+                        } catch (NumberFormatException e) {
+                            throw this.error("Invalid escape");
+                        }
+
+                        this.position += 4;
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        builder.append(c);
+                        break;
+                    default:
+                        throw this.error("Invalid escape");
+                }
+            }
+
+            byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+            this.header(MAJOR_TEXT, bytes.length);
+            this.ensure(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+            this.length += bytes.length;
+        }
+
+        /**
+         * Encode a number.
+         */
+        private void number() {
+            int start = this.position;
+            boolean integer = true;
+            int size = this.json.length();
+            while (this.position < size) {
+                char c = this.json.charAt(this.position);
+                if (c == '.' || c == 'e' || c == 'E') {
+                    integer = false;
+                } else if (!(c >= '0' && c <= '9') && c != '-' && c != '+') {
+                    break;
+                }
+
+                ++this.position;
+            }
+
+            String token = this.json.substring(start, this.position);
+            if (token.isEmpty()) {
+                throw this.error("Unexpected character");
+            }
+
+            if (integer) {
+                try {
+                    long value = Long.parseLong(token);
+                    if (value >= 0) {
+                        this.header(MAJOR_UNSIGNED, value);
+                    } else {
+                        this.header(MAJOR_NEGATIVE, -1 - value);
+                    }
+                    return;
+                } catch (NumberFormatException e) {
+                    // Too large for a long, so written as a float below.
+                }
+            }
+
+            double value;
+            try {
+                value = Double.parseDouble(token);
+            } catch (NumberFormatException e) {
+                throw this.error("Invalid number");
+            }
+
+            float single = (float)value;
+            if (single == value || Double.isNaN(value)) {
+                this.write(FLOAT32);
+                this.writeBytes(Float.floatToIntBits(single), 4);
+            } else {
+                this.write(FLOAT64);
+                this.writeBytes(Double.doubleToLongBits(value), 8);
+            }
+        }
+
+        /**
+         * Read a literal.
+         *
+         * @param literal The expected literal
+         */
+        private void literal(String literal) {
+            if (!this.json.startsWith(literal, this.position)) {
+                throw this.error("Unexpected character");
+            }
+
+            this.position += literal.length();
+        }
+
+        /**
+         * Write the header of a data item.
+         *
+         * @param major    The major type
+         * @param argument The length or value
+         */
+        private void header(int major, long argument) {
+            int type = major << 5;
+            if (argument < 24) {
+                this.write(type | (int)argument);
+            } else if (argument <= 0xffL) {
+                this.write(type | 24);
+                this.write((int)argument);
+            } else if (argument <= 0xffffL) {
+                this.write(type | 25);
+                this.writeBytes(argument, 2);
+            } else if (argument <= 0xffffffffL) {
+                this.write(type | 26);
+                this.writeBytes(argument, 4);
+            } else {
+                this.write(type | 27);
+                this.writeBytes(argument, 8);
+            }
+        }
+
+        /**
+         * Write a big-endian value.
+         *
+         * @param value The value
+         * @param count Number of bytes to write
+         */
+        private void writeBytes(long value, int count) {
+            this.ensure(count);
+            for (int i = count - 1; i >= 0; --i) {
+                this.buffer[this.length++] = (byte)(value >>> (i * 8));
+            }
+        }
+
+        /**
+         * Write a single byte.
+         *
+         * @param b The byte
+         */
+        private void write(int b) {
+            this.ensure(1);
+            this.buffer[this.length++] = (byte)b;
+        }
+
+        /**
+         * Make room in the buffer.
+         *
+         * @param count Number of bytes about to be written
+         */
+        private void ensure(int count) {
+            if (this.length + count > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer,
+                                            Math.max(this.length + count,
+                                                     this.buffer.length * 2));
+            }
+        }
+
+        /**
+         * Skip whitespace.
+         */
+        private void skipWhitespace() {
+            int size = this.json.length();
+            while (this.position < size) {
+                char c = this.json.charAt(this.position);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    break;
+                }
+
+                ++this.position;
+            }
+        }
+
+        /**
+         * Look at the next character.
+         *
+         * @return The character.
+         */
+        private char peek() {
+            if (this.position >= this.json.length()) {
+                throw this.error("Unexpected end of text");
+            }
+
+            return this.json.charAt(this.position);
+        }
+
+        /**
+         * Read the next character.
+         *
+         * @return The character.
+         */
+        private char next() {
+            char c = this.peek();
+            ++this.position;
+            return c;
+        }
+
+        /**
+         * Create an error for the current position.
+         *
+         * @param message The error message
+         * @return The error.
+         */
+        private JSONException error(String message) {
+            return new JSONException(message + " at " + this.position);
+        }
+    }
+
+    /**
+     * Decodes CBOR into org.json values.
+     */
+    private static class Decoder {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        /**
+         * Initialize the object.
+         *
+         * @param data  The buffer holding the encoded data
+         * @param start Offset of the data in the buffer
+         * @param end   End of the data in the buffer
+         */
+        Decoder(byte[] data, int start, int end) {
+            this.data = data;
+            this.position = start;
+            this.end = end;
+        }
+
+        /**
+         * Decode the data.
+         *
+         * @return The decoded value.
+         */
+        Object decode() {
+            Object value = this.item(0);
+            if (value == Break.INSTANCE) {
+                throw this.error("Unexpected break");
+            }
+
+            if (this.position != this.end) {
+                throw this.error("Unexpected trailing bytes");
+            }
+
+            return value;
+        }
+
+        /**
+         * Decode a data item.
+         *
+         * @param depth Nesting depth of the item
+         * @return The decoded value, or Break.INSTANCE for a break.
+         */
+        private Object item(int depth) {
+            if (depth > MAX_DEPTH) {
+                throw this.error("Nesting too deep");
+            }
+
+            int initial = this.read();
+            int major = initial >>> 5;
+            int info = initial & 0x1f;
+            switch (major) {
+                case MAJOR_UNSIGNED: {
+                    long value = this.argument(info);
+                    if (value < 0) {
+                        return new BigInteger(Long.toUnsignedString(value));
+                    }
+
+                    return value <= Integer.MAX_VALUE ? (Object)(int)value :
+                            (Object)value;
+                }
+                case MAJOR_NEGATIVE: {
+                    long value = this.argument(info);
+                    if (value < 0) {
+                        return BigInteger.ONE.negate().subtract(
+                                new BigInteger(Long.toUnsignedString(value)));
+                    }
+
+                    value = -1 - value;
+                    return value >= Integer.MIN_VALUE ? (Object)(int)value :
+                            (Object)value;
+                }
+                case MAJOR_BYTES:
+                    return Base64.getUrlEncoder()
+                                 .withoutPadding()
+                                 .encodeToString(this.string(major, info));
+                case MAJOR_TEXT:
+                    return new String(this.string(major, info),
+                                      StandardCharsets.UTF_8);
+                case MAJOR_ARRAY: {
+                    JSONArray array = new JSONArray();
+                    if (info == INDEFINITE) {
+                        Object value;
+                        while ((value = this.item(depth + 1)) !=
+                                Break.INSTANCE) {
+                            array.put(value);
+                        }
+                    } else {
+                        long count = this.count(info);
+                        for (long i = 0; i < count; ++i) {
+                            array.put(this.value(depth + 1));
+                        }
+                    }
+
+                    return array;
+                }
+                case MAJOR_MAP: {
+                    JSONObject object = new JSONObject();
+                    if (info == INDEFINITE) {
+                        Object key;
+                        while ((key = this.item(depth + 1)) != Break.INSTANCE) {
+                            object.put(this.key(key), this.value(depth + 1));
+                        }
+                    } else {
+                        long count = this.count(info);
+                        for (long i = 0; i < count; ++i) {
+                            Object key = this.value(depth + 1);
+                            object.put(this.key(key), this.value(depth + 1));
+                        }
+                    }
+
+                    return object;
+                }
+                case MAJOR_TAG:
+                    this.argument(info);
+                    return this.value(depth + 1);
+                default:
+                    return this.simple(info);
+            }
+        }
+
+        /**
+         * Decode a data item which must not be a break.
+         *
+         * @param depth Nesting depth of the item
+         * @return The decoded value.
+         */
+        private Object value(int depth) {
+            Object value = this.item(depth);
+            if (value == Break.INSTANCE) {
+                throw this.error("Unexpected break");
+            }
+
+            return value;
+        }
+
+        /**
+         * Convert a map key into a JSON member name.
+         *
+         * @param key The decoded key
+         * @return The member name.
+         */
+        private String key(Object key) {
+            if (key instanceof String) {
+                return (String)key;
+            }
+
+            if (key instanceof Number || key instanceof Boolean) {
+                return String.valueOf(key);
+            }
+
+            throw this.error("Unsupported map key");
+        }
+
+        /**
+         * Decode a simple value or float.
+         *
+         * @param info The additional information of the initial byte
+         * @return The decoded value.
+         */
+        private Object simple(int info) {
+            double value;
+            switch (MAJOR_SIMPLE << 5 | info) {
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case NULL:
+                case UNDEFINED:
+                    return JSONObject.NULL;
+                case FLOAT16:
+                    value = halfToDouble((int)this.readBytes(2));
+                    break;
+                case FLOAT32:
+                    value = Float.intBitsToFloat((int)this.readBytes(4));
+                    break;
+                case FLOAT64:
+                    value = Double.longBitsToDouble(this.readBytes(8));
+                    break;
+                case BREAK:
+                    return Break.INSTANCE;
+                default:
+                    throw this.error("Unsupported simple value");
+            }
+
+            // JSON has no representation for these.
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return JSONObject.NULL;
+            }
+
+            return value;
+        }
+
+        /**
+         * Read a definite or indefinite length string.
+         *
+         * @param major The string's major type
+         * @param info  The additional information of the initial byte
+         * @return The string's bytes.
+         */
+        private byte[] string(int major, int info) {
+            if (info != INDEFINITE) {
+                int count = (int)this.count(info);
+                byte[] bytes = Arrays.copyOfRange(this.data,
+                                                  this.position,
+                                                  this.position + count);
+                this.position += count;
+                return bytes;
+            }
+
+            // Chunks are definite strings of the same type.
+            byte[] bytes = new byte[0];
+            while (true) {
+                int initial = this.read();
+                if (initial == BREAK) {
+                    return bytes;
+                }
+
+                if (initial >>> 5 != major || (initial & 0x1f) == INDEFINITE) {
+                    throw this.error("Invalid string chunk");
+                }
+
+                byte[] chunk = this.string(major, initial & 0x1f);
+                int length = bytes.length;
+                bytes = Arrays.copyOf(bytes, length + chunk.length);
+                System.arraycopy(chunk, 0, bytes, length, chunk.length);
+            }
+        }
+
+        /**
+         * Read a length, which must fit in the remaining data.
+         *
+         * @param info The additional information of the initial byte
+         * @return The length.
+         */
+        private long count(int info) {
+            long count = this.argument(info);
+
+            // Every member takes at least a byte, so longer lengths cannot be
+            // valid, and are not allocated for.
+            if (count < 0 || count > this.end - this.position) {
+                throw this.error("Invalid length");
+            }
+
+            return count;
+        }
+
+        /**
+         * Read the argument of a data item.
+         *
+         * @param info The additional information of the initial byte
+         * @return The argument, as an unsigned value.
+         */
+        private long argument(int info) {
+            if (info < 24) {
+                return info;
+            }
+
+            switch (info) {
+                case 24:
+                    return this.readBytes(1);
+                case 25:
+                    return this.readBytes(2);
+                case 26:
+                    return this.readBytes(4);
+                case 27:
+                    return this.readBytes(8);
+                default:
+                    throw this.error("Invalid additional information");
+            }
+        }
+
+        /**
+         * Read a big-endian value.
+         *
+         * @param count Number of bytes to read
+         * @return The value.
+         */
+        private long readBytes(int count) {
+            if (this.position + count > this.end) {
+                throw this.error("Unexpected end of data");
+            }
+
+            long value = 0;
+            for (int i = 0; i < count; ++i) {
+                value = (value << 8) | (this.data[this.position++] & 0xff);
+            }
+
+            return value;
+        }
+
+        /**
+         * Read a single byte.
+         *
+         * @return The byte.
+         */
+        private int read() {
+            if (this.position >= this.end) {
+                throw this.error("Unexpected end of data");
+            }
+
+            return this.data[this.position++] & 0xff;
+        }
+
+        /**
+         * Create an error for the current position.
+         *
+         * @param message The error message
+         * @return The error.
+         */
+        private JSONException error(String message) {
+            return new JSONException(message + " at " + this.position);
+        }
+
+        /**
+         * Convert a half-precision float.
+         *
+         * @param half The float's bits
+         * @return The value.
+         */
+        private static double halfToDouble(int half) {
+            int exponent = (half >> 10) & 0x1f;
+            int mantissa = half & 0x3ff;
+            double value;
+            if (exponent == 0) {
+                value = mantissa * Math.pow(2, -24);
+            } else if (exponent == 0x1f) {
+                value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            } else {
+                value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+            }
+
+            return (half & 0x8000) != 0 ? -value : value;
+        }
+    }
+
+    /**
+     * Marks the break which ends an indefinite length item.
+     */
+    private enum Break {
+        INSTANCE
+    }
+}
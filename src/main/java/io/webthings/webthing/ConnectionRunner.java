@@ -0,0 +1,226 @@
+/**
+ * Connection runners for the web thing server.
+ */
+package io.webthings.webthing;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Runs client connections on an executor, with a limit on the number of open
+ * connections.
+ * <p>
+ * When the limit is reached, the server stops accepting connections until one
+ * closes, so that new clients wait in the socket backlog instead of each
+ * getting a thread. A connection which cannot be served within the accept
+ * timeout is dropped.
+ * <p>
+ * Every connection, including websockets and event streams, keeps its thread
+ * until it closes, so with a bounded pool the limit is also the number of
+ * threads. Virtual threads, where available, make those threads cheap.
+ */
+public class ConnectionRunner implements NanoHTTPD.AsyncRunner {
+    private static final long ACCEPT_POLL_INTERVAL = 100;
+    private final ExecutorService executor;
+    private final int maxConnections;
+    private final long acceptTimeout;
+    private final Semaphore slots;
+    private final Set<NanoHTTPD.ClientHandler> running;
+    private final AtomicLong generation;
+
+    /**
+     * Initialize the object.
+     *
+     * @param executor       Executor to run connections on
+     * @param maxConnections Maximum number of open connections
+     * @param acceptTimeout  Time to wait for a free slot before dropping a
+     *                       new connection, in milliseconds
+     */
+    public ConnectionRunner(ExecutorService executor,
+                            int maxConnections,
+                            long acceptTimeout) {
+        this.executor = executor;
+        this.maxConnections = maxConnections;
+        this.acceptTimeout = acceptTimeout;
+        this.slots = new Semaphore(maxConnections);
+        this.running = ConcurrentHashMap.newKeySet();
+        this.generation = new AtomicLong(0);
+    }
+
+    /**
+     * Create a runner with a pool of up to one thread per connection. Idle
+     * threads are released after a minute.
+     *
+     * @param maxConnections Maximum number of open connections
+     * @param acceptTimeout  Time to wait for a free slot before dropping a
+     *                       new connection, in milliseconds
+     * @return The runner.
+     */
+    public static ConnectionRunner bounded(int maxConnections,
+                                           long acceptTimeout) {
+        AtomicInteger count = new AtomicInteger(0);
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(maxConnections,
+                                       maxConnections,
+                                       60,
+                                       TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue<>(),
+                                       (runnable) -> {
+                                           Thread thread = new Thread(
+                                                   runnable,
+                                                   "webthing-connection-" +
+                                                           count.incrementAndGet());
+                                           thread.setDaemon(true);
+                                           return thread;
+                                       });
+        executor.allowCoreThreadTimeOut(true);
+        return new ConnectionRunner(executor, maxConnections, acceptTimeout);
+    }
+
+    /**
+     * Create a runner which gives each connection a virtual thread.
+     *
+     * @param maxConnections Maximum number of open connections
+     * @param acceptTimeout  Time to wait for a free slot before dropping a
+     *                       new connection, in milliseconds
+     * @return The runner.
+     * @throws UnsupportedOperationException If the JVM has no virtual
+     *                                       threads.
+     */
+    public static ConnectionRunner virtual(int maxConnections,
+                                           long acceptTimeout) {
+        ExecutorService executor = newVirtualThreadExecutor();
+        if (executor == null) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads are not supported by this JVM");
+        }
+
+        return new ConnectionRunner(executor, maxConnections, acceptTimeout);
+    }
+
+    /**
+     * Determine whether the JVM supports virtual threads.
+     *
+     * @return Boolean indicating virtual thread support.
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create a virtual thread per task executor. It is looked up by
+     * reflection, as this library is built for Java 8.
+     *
+     * @return The executor, or null if virtual threads are not supported.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the maximum number of open connections.
+     *
+     * @return The limit.
+     */
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Get the number of open connections.
+     *
+     * @return The number of connections.
+     */
+    public int getActiveConnections() {
+        return this.running.size();
+    }
+
+    /**
+     * Run a new connection once there is a free slot. This is called on the
+     * server's accept thread, so waiting here holds back further accepts.
+     *
+     * @param handler The connection
+     */
+    @Override
+    public void exec(NanoHTTPD.ClientHandler handler) {
+        long generation = this.generation.get();
+        long deadline = System.currentTimeMillis() + this.acceptTimeout;
+        boolean acquired = false;
+
+        try {
+            // Wait in slices, so that stopping the server is not held up.
+            while (!acquired && generation == this.generation.get()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                acquired = this.slots.tryAcquire(
+                        Math.min(remaining, ACCEPT_POLL_INTERVAL),
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!acquired) {
+            handler.close();
+            return;
+        }
+
+        this.running.add(handler);
+        try {
+            this.executor.execute(handler);
+        } catch (RejectedExecutionException e) {
+            this.closed(handler);
+            handler.close();
+        }
+    }
+
+    /**
+     * Release the slot of a closed connection.
+     *
+     * @param handler The connection
+     */
+    @Override
+    public void closed(NanoHTTPD.ClientHandler handler) {
+        if (this.running.remove(handler)) {
+            this.slots.release();
+        }
+    }
+
+    /**
+     * Close all open connections, and drop those waiting for a slot.
+     */
+    @Override
+    public void closeAll() {
+        this.generation.incrementAndGet();
+
+        for (NanoHTTPD.ClientHandler handler : new ArrayList<>(this.running)) {
+            handler.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Cache of encoded thing descriptions.
+ */
+package io.webthings.webthing;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Keeps thing descriptions as they were sent, encoded and compressed, so
+ * that a description which is requested over and over is only written once
+ * for as long as its thing stays the same.
+ * <p>
+ * Descriptions are keyed by their thing's identity and description version,
+ * rather than by their content, so that a hit costs no serialization at all.
+ * Since the links of a description hold the Host header of its request, the
+ * header is part of the key, as are the content and transfer encodings the
+ * client negotiated. Entries for older versions are never hit again, and
+ * fall out of the cache as newer ones are added.
+ */
+class DescriptionCache {
+    private static final int MAX_ENTRIES = 64;
+    private final Map<Key, Entry> entries;
+
+    /**
+     * Initialize the object.
+     */
+    DescriptionCache() {
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return this.size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Get a cached description.
+     *
+     * @param key The key
+     * @return A new response with the description, or null if it is not
+     * cached.
+     */
+    NanoHTTPD.Response get(Key key) {
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+
+        return entry == null ? null : entry.toResponse();
+    }
+
+    /**
+     * Cache a description as it is about to be sent. Only successful
+     * responses with a complete body are kept.
+     *
+     * @param key      The key, made before the description was written
+     * @param response The response, whose body is replaced with a copy
+     */
+    void put(Key key, NanoHTTPD.Response response) {
+        InputStream data = response.getData();
+        if (response.getStatus() != NanoHTTPD.Response.Status.OK ||
+                !(data instanceof ByteArrayInputStream)) {
+            return;
+        }
+
+        ByteArrayInputStream bytes = (ByteArrayInputStream)data;
+        byte[] body = new byte[bytes.available()];
+        bytes.read(body, 0, body.length);
+        response.setData(new ByteArrayInputStream(body));
+
+        Entry entry = new Entry(response.getMimeType(),
+                                body,
+                                response.getHeader("vary"),
+                                response.getHeader("content-encoding"));
+        synchronized (this.entries) {
+            this.entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Remove all descriptions, e.g. when the compression settings change.
+     */
+    void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Get the number of cached descriptions.
+     *
+     * @return The number of descriptions.
+     */
+    int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * Identifies a description as sent to a client.
+     */
+    static class Key {
+        private final Thing thing;
+        private final long version;
+        private final String host;
+        private final boolean cbor;
+        private final String encoding;
+
+        /**
+         * Initialize the object. The thing's description version is read
+         * now, so the key must be made before the description is written.
+         *
+         * @param thing    The thing
+         * @param host     The Host header of the request
+         * @param cbor     Whether the description is encoded as CBOR
+         * @param encoding The negotiated content encoding, or null
+         */
+        Key(Thing thing, String host, boolean cbor, String encoding) {
+            this.thing = thing;
+            this.version = thing.getDescriptionVersion();
+            this.host = host;
+            this.cbor = cbor;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(this.thing),
+                                this.version,
+                                this.host,
+                                this.cbor,
+                                this.encoding);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key)o;
+            return this.thing == other.thing &&
+                    this.version == other.version &&
+                    this.cbor == other.cbor &&
+                    Objects.equals(this.host, other.host) &&
+                    Objects.equals(this.encoding, other.encoding);
+        }
+    }
+
+    /**
+     * A description and the headers which describe its encoding.
+     */
+    private static class Entry {
+        private final String mimeType;
+        private final byte[] body;
+        private final String vary;
+        private final String contentEncoding;
+
+        /**
+         * Initialize the object.
+         *
+         * @param mimeType        The MIME type
+         * @param body            The body, as sent
+         * @param vary            The Vary header, or null
+         * @param contentEncoding The Content-Encoding header, or null
+         */
+        Entry(String mimeType,
+              byte[] body,
+              String vary,
+              String contentEncoding) {
+            this.mimeType = mimeType;
+            this.body = body;
+            this.vary = vary;
+            this.contentEncoding = contentEncoding;
+        }
+
+        /**
+         * Make a response with this description.
+         *
+         * @return The response.
+         */
+        NanoHTTPD.Response toResponse() {
+            NanoHTTPD.Response response =
+                    NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK,
+                                                     this.mimeType,
+                                                     new ByteArrayInputStream(
+                                                             this.body),
+                                                     this.body.length);
+            if (this.vary != null) {
+                response.addHeader("Vary", this.vary);
+            }
+
+            if (this.contentEncoding != null) {
+                response.addHeader("Content-Encoding", this.contentEncoding);
+            }
+
+            return response;
+        }
+    }
+}
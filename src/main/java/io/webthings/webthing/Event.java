@@ -15,7 +15,7 @@ public class Event<T> {
     private Thing thing;
     private String name;
     private T data;
-    private String time;
+    private final long time;
 
     /**
      * Initialize the object.
@@ -38,7 +38,7 @@ public class Event<T> {
         this.thing = thing;
         this.name = name;
         this.data = data;
-        this.time = Utils.timestamp();
+        this.time = System.currentTimeMillis();
     }
 
     /**
@@ -50,7 +50,7 @@ public class Event<T> {
         JSONObject obj = new JSONObject();
         JSONObject inner = new JSONObject();
         try {
-            inner.put("timestamp", this.time);
+            inner.put("timestamp", Utils.timestamp(this.time));
 
             if (this.data != null) {
                 inner.put("data", this.data);
@@ -63,6 +63,22 @@ public class Event<T> {
         }
     }
 
+    /**
+     * Write the event description, as returned by asEventDescription().
+     *
+     * @param writer The writer to write to
+     */
+    public void writeEventDescription(JsonWriter writer) {
+        writer.beginObject().name(this.name).beginObject();
+        writer.name("timestamp").value(Utils.timestamp(this.time));
+
+        if (this.data != null) {
+            writer.name("data").value(this.data);
+        }
+
+        writer.endObject().endObject();
+    }
+
     /**
      * Get the thing associated with this event.
      *
@@ -96,6 +112,15 @@ public class Event<T> {
      * @return The time.
      */
     public String getTime() {
+        return Utils.timestamp(this.time);
+    }
+
+    /**
+     * Get the event's timestamp in milliseconds since the epoch.
+     *
+     * @return The time.
+     */
+    public long getTimeMillis() {
         return this.time;
     }
 }
@@ -0,0 +1,359 @@
+/**
+ * HTTP backend on the JDK's built-in server.
+ */
+package io.webthings.webthing;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.webthings.webthing.errors.PayloadTooLargeError;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Serves a WebThingServer's routes on com.sun.net.httpserver.
+ * <p>
+ * Each exchange is wrapped in an IHTTPSession and passed to the server's
+ * router, so the same handlers answer on either backend. Websockets need the
+ * raw socket and are only available on NanoHTTPD.
+ */
+class HttpServerBackend {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int STOP_DELAY = 1;
+
+    // NanoHTTPD responses cannot list their headers, so the ones the
+    // handlers set are copied by name. Add new ones here.
+    private static final String[] RESPONSE_HEADERS = {
+            "Access-Control-Allow-Origin",
+            "Access-Control-Allow-Headers",
+            "Access-Control-Expose-Headers",
+            "Access-Control-Allow-Methods",
+            "Cache-Control",
+            "Content-Encoding",
+            "ETag",
+            "Link",
+            "Vary",
+    };
+
+    private final WebThingServer server;
+    private final BodyReader bodyReader;
+    private final HttpServer httpServer;
+
+    /**
+     * Initialize the object.
+     *
+     * @param server     The server whose routes to serve
+     * @param bodyReader Reader for request bodies, with the server's limit
+     * @param port       Port to listen on
+     * @param executor   Executor to handle exchanges on
+     * @throws IOException If the server fails to bind.
+     */
+    HttpServerBackend(WebThingServer server,
+                      BodyReader bodyReader,
+                      int port,
+                      Executor executor) throws IOException {
+        this.server = server;
+        this.bodyReader = bodyReader;
+        this.httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        this.httpServer.setExecutor(executor);
+        this.httpServer.createContext("/", this::handle);
+    }
+
+    /**
+     * Start listening for incoming connections.
+     */
+    void start() {
+        this.httpServer.start();
+    }
+
+    /**
+     * Stop listening, and close open exchanges after a short delay.
+     */
+    void stop() {
+        this.httpServer.stop(STOP_DELAY);
+    }
+
+    /**
+     * Handle an exchange.
+     *
+     * @param exchange The exchange
+     * @throws IOException If the response could not be sent.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        new ExchangeSession(exchange).execute();
+    }
+
+    /**
+     * Write a NanoHTTPD response to an exchange.
+     *
+     * @param exchange The exchange
+     * @param session  The request
+     * @param response The response
+     * @throws IOException If the response could not be sent.
+     */
+    private void send(HttpExchange exchange,
+                      ExchangeSession session,
+                      NanoHTTPD.Response response) throws IOException {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        for (String name : RESPONSE_HEADERS) {
+            String value = response.getHeader(name);
+            if (value != null) {
+                responseHeaders.set(name, value);
+            }
+        }
+
+        InputStream data = response.getData();
+
+        // The exchange sets the length itself, from the value it is given
+        // below. A response with a Content-Length header, or with its data
+        // in memory, has a known length; any other is chunked.
+        long contentLength = -1;
+        String length = response.getHeader("content-length");
+        if (length != null) {
+            contentLength = Long.parseLong(length);
+        } else if (data instanceof ByteArrayInputStream) {
+            contentLength = data.available();
+        }
+
+        if (response.isCloseConnection()) {
+            responseHeaders.set("Connection", "close");
+        }
+
+        if (response.getMimeType() != null &&
+                response.getHeader("content-type") == null) {
+            responseHeaders.set("Content-Type", response.getMimeType());
+        }
+
+        int status = response.getStatus().getRequestStatus();
+        if (data == null ||
+                session.getMethod() == NanoHTTPD.Method.HEAD ||
+                contentLength == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        // A length of 0 asks the exchange for a chunked response.
+        exchange.sendResponseHeaders(status,
+                                     contentLength > 0 ? contentLength : 0);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = data.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+
+                // Event streams have to reach the client as they are written.
+                out.flush();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Decode a query string.
+     *
+     * @param query The raw query string
+     * @return Map of parameter names to their values.
+     */
+    private static Map<String, List<String>> decodeParameters(String query) {
+        Map<String, List<String>> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+
+            int index = pair.indexOf('=');
+            String name = decode(index >= 0 ?
+                                 pair.substring(0, index) :
+                                 pair);
+            String value = index >= 0 ? decode(pair.substring(index + 1)) : "";
+            parameters.computeIfAbsent(name, (k) -> new ArrayList<>())
+                      .add(value);
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Decode a percent-encoded string.
+     *
+     * @param s The string
+     * @return The decoded string.
+     */
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return s;
+        }
+    }
+
+    /**
+     * An HTTP exchange, seen as a NanoHTTPD session.
+     */
+    private class ExchangeSession
+            implements NanoHTTPD.IHTTPSession, BodyReader.Delimited {
+        private final HttpExchange exchange;
+        private final NanoHTTPD.Method method;
+        private final Map<String, String> headers;
+        private final Map<String, List<String>> parameters;
+
+        /**
+         * Initialize the object.
+         *
+         * @param exchange The exchange
+         */
+        ExchangeSession(HttpExchange exchange) {
+            this.exchange = exchange;
+
+            NanoHTTPD.Method method;
+            try {
+                method = NanoHTTPD.Method.valueOf(exchange.getRequestMethod());
+            } catch (IllegalArgumentException e) {
+                method = null;
+            }
+            this.method = method;
+
+            // NanoHTTPD keys headers by their lower case name.
+            this.headers = new HashMap<>();
+            for (Map.Entry<String, List<String>> entry : exchange.getRequestHeaders()
+                                                               .entrySet()) {
+                this.headers.put(entry.getKey().toLowerCase(),
+                                 String.join(", ", entry.getValue()));
+            }
+
+            String address =
+                    exchange.getRemoteAddress().getAddress().getHostAddress();
+            this.headers.put("remote-addr", address);
+            this.headers.put("http-client-ip", address);
+
+            this.parameters =
+                    decodeParameters(exchange.getRequestURI().getRawQuery());
+        }
+
+        /**
+         * Serve the exchange's request through the server's router, send the
+         * response and close the exchange.
+         *
+         * @throws IOException If the response could not be sent.
+         */
+        @Override
+        public void execute() throws IOException {
+            HttpServerBackend backend = HttpServerBackend.this;
+            try {
+                NanoHTTPD.Response response;
+                if ("websocket".equalsIgnoreCase(this.headers.get("upgrade"))) {
+                    response = NanoHTTPD.newFixedLengthResponse(
+                            NanoHTTPD.Response.Status.NOT_IMPLEMENTED,
+                            NanoHTTPD.MIME_PLAINTEXT,
+                            "Websockets are not supported by this server");
+                } else if (this.method == null) {
+                    response = NanoHTTPD.newFixedLengthResponse(
+                            NanoHTTPD.Response.Status.METHOD_NOT_ALLOWED,
+                            NanoHTTPD.MIME_PLAINTEXT,
+                            null);
+                } else {
+                    response = backend.server.serve(this);
+                }
+
+                try {
+                    backend.send(this.exchange, this, response);
+                } finally {
+                    response.close();
+                }
+            } finally {
+                this.exchange.close();
+            }
+        }
+
+        @Override
+        public NanoHTTPD.CookieHandler getCookies() {
+            return HttpServerBackend.this.server.new CookieHandler(this.headers);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return this.headers;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return this.exchange.getRequestBody();
+        }
+
+        @Override
+        public NanoHTTPD.Method getMethod() {
+            return this.method;
+        }
+
+        @Override
+        @Deprecated
+        public Map<String, String> getParms() {
+            Map<String, String> parms = new HashMap<>();
+            for (Map.Entry<String, List<String>> entry : this.parameters.entrySet()) {
+                parms.put(entry.getKey(), entry.getValue().get(0));
+            }
+
+            return parms;
+        }
+
+        @Override
+        public Map<String, List<String>> getParameters() {
+            return this.parameters;
+        }
+
+        @Override
+        public String getQueryParameterString() {
+            return this.exchange.getRequestURI().getRawQuery();
+        }
+
+        @Override
+        public String getUri() {
+            return this.exchange.getRequestURI().getPath();
+        }
+
+        /**
+         * Read the request body into the "postData" entry, as NanoHTTPD does
+         * for bodies which are not form data.
+         *
+         * @param files Map to store the body in
+         * @throws IOException          If the body could not be read.
+         * @throws PayloadTooLargeError If the body is larger than the
+         *                              server's maximum size.
+         */
+        @Override
+        public void parseBody(Map<String, String> files) throws IOException {
+            files.put("postData",
+                      HttpServerBackend.this.bodyReader.readText(
+                              this.getInputStream()));
+        }
+
+        @Override
+        public String getRemoteIpAddress() {
+            return this.headers.get("remote-addr");
+        }
+
+        @Override
+        public String getRemoteHostName() {
+            return this.exchange.getRemoteAddress().getHostName();
+        }
+    }
+}
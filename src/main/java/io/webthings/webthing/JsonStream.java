@@ -0,0 +1,112 @@
+/**
+ * Streamed JSON array bodies.
+ */
+package io.webthings.webthing;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.function.BiConsumer;
+
+/**
+ * An InputStream which serializes a JSON array as it is read, a few items at
+ * a time, so that a response listing many items never holds more than a
+ * chunk of them in memory.
+ * <p>
+ * The items are taken from the iterator only when the stream is read, which
+ * usually happens after the handler has returned, so the iterator must
+ * tolerate its source being modified in the meantime.
+ *
+ * @param <T> The type of the items.
+ */
+class JsonStream<T> extends InputStream {
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+    private final Iterator<T> items;
+    private final BiConsumer<T, JsonWriter> writeItem;
+    private final JsonWriter writer;
+    private byte[] chunk;
+    private int position;
+    private boolean started;
+    private boolean ended;
+
+    /**
+     * Initialize the object.
+     *
+     * @param items     The items of the array
+     * @param writeItem Writes an item to a writer, as a JSON value
+     */
+    JsonStream(Iterator<T> items, BiConsumer<T, JsonWriter> writeItem) {
+        this.items = items;
+        this.writeItem = writeItem;
+        this.writer = new JsonWriter();
+        this.chunk = EMPTY;
+        this.position = 0;
+        this.started = false;
+        this.ended = false;
+    }
+
+    @Override
+    public int read() {
+        if (!this.fill()) {
+            return -1;
+        }
+
+        return this.chunk[this.position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        while (count < len && this.fill()) {
+            int n = Math.min(len - count, this.chunk.length - this.position);
+            System.arraycopy(this.chunk, this.position, b, off + count, n);
+            this.position += n;
+            count += n;
+        }
+
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public int available() {
+        return this.chunk.length - this.position;
+    }
+
+    /**
+     * Serialize the next chunk of items, if the current one has been read.
+     *
+     * @return Whether there is anything left to read.
+     */
+    private boolean fill() {
+        if (this.position < this.chunk.length) {
+            return true;
+        }
+
+        if (this.ended) {
+            return false;
+        }
+
+        if (!this.started) {
+            this.writer.beginArray();
+            this.started = true;
+        }
+
+        while (this.writer.length() < CHUNK_SIZE && this.items.hasNext()) {
+            this.writeItem.accept(this.items.next(), this.writer);
+        }
+
+        if (!this.items.hasNext()) {
+            this.writer.endArray();
+            this.ended = true;
+        }
+
+        this.chunk = this.writer.take().getBytes(StandardCharsets.UTF_8);
+        this.position = 0;
+        return this.chunk.length > 0;
+    }
+}
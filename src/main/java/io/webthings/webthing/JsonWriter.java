@@ -0,0 +1,384 @@
+/**
+ * Streaming JSON writer.
+ */
+package io.webthings.webthing;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Writes JSON text directly into a reusable buffer, without building a tree
+ * of JSONObjects first.
+ * <p>
+ * Strings and numbers are formatted exactly as org.json formats them, so
+ * only the order of object members can differ from the output of
+ * JSONObject.toString(): it is the order in which they are written, where
+ * org.json uses that of its hash map.
+ * <p>
+ * A writer is not thread-safe. Threads which serialize now and then can
+ * borrow their own with {@link #reuse()}.
+ */
+public class JsonWriter {
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<JsonWriter> local =
+            ThreadLocal.withInitial(JsonWriter::new);
+    private final StringBuilder buffer;
+    private boolean[] first;
+    private int depth;
+    private boolean afterName;
+
+    /**
+     * Initialize the object.
+     */
+    public JsonWriter() {
+        this.buffer = new StringBuilder(256);
+        this.first = new boolean[8];
+        this.depth = 0;
+        this.afterName = false;
+        this.first[0] = true;
+    }
+
+    /**
+     * Get this thread's writer, emptied.
+     * <p>
+     * The writer must not be borrowed again by the same thread until its
+     * text has been taken with toString().
+     *
+     * @return The writer.
+     */
+    public static JsonWriter reuse() {
+        JsonWriter writer = local.get();
+        if (writer.buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            writer = new JsonWriter();
+            local.set(writer);
+        }
+
+        return writer.reset();
+    }
+
+    /**
+     * Empty the buffer, keeping its capacity.
+     *
+     * @return This writer.
+     */
+    public JsonWriter reset() {
+        this.buffer.setLength(0);
+        this.depth = 0;
+        this.afterName = false;
+        this.first[0] = true;
+        return this;
+    }
+
+    /**
+     * Start an object.
+     *
+     * @return This writer.
+     */
+    public JsonWriter beginObject() {
+        this.separate();
+        this.buffer.append('{');
+        this.push();
+        return this;
+    }
+
+    /**
+     * End the current object.
+     *
+     * @return This writer.
+     */
+    public JsonWriter endObject() {
+        this.pop();
+        this.buffer.append('}');
+        return this;
+    }
+
+    /**
+     * Start an array.
+     *
+     * @return This writer.
+     */
+    public JsonWriter beginArray() {
+        this.separate();
+        this.buffer.append('[');
+        this.push();
+        return this;
+    }
+
+    /**
+     * End the current array.
+     *
+     * @return This writer.
+     */
+    public JsonWriter endArray() {
+        this.pop();
+        this.buffer.append(']');
+        return this;
+    }
+
+    /**
+     * Write the name of the next object member.
+     *
+     * @param name The name
+     * @return This writer.
+     */
+    public JsonWriter name(String name) {
+        this.separate();
+        this.quote(name);
+        this.buffer.append(':');
+        this.afterName = true;
+        return this;
+    }
+
+    /**
+     * Write a string value.
+     *
+     * @param value The value, or null
+     * @return This writer.
+     */
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return this.nullValue();
+        }
+
+        this.separate();
+        this.quote(value);
+        return this;
+    }
+
+    /**
+     * Write an integer value.
+     *
+     * @param value The value
+     * @return This writer.
+     */
+    public JsonWriter value(long value) {
+        this.separate();
+        this.buffer.append(value);
+        return this;
+    }
+
+    /**
+     * Write a boolean value.
+     *
+     * @param value The value
+     * @return This writer.
+     */
+    public JsonWriter value(boolean value) {
+        this.separate();
+        this.buffer.append(value);
+        return this;
+    }
+
+    /**
+     * Write a null value.
+     *
+     * @return This writer.
+     */
+    public JsonWriter nullValue() {
+        this.separate();
+        this.buffer.append("null");
+        return this;
+    }
+
+    /**
+     * Write any value org.json can hold, such as a JSONObject, JSONArray,
+     * String, Number, Boolean or JSONObject.NULL.
+     *
+     * @param value The value
+     * @return This writer.
+     */
+    public JsonWriter value(Object value) {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            return this.nullValue();
+        }
+
+        if (value instanceof String) {
+            return this.value((String)value);
+        }
+
+        if (value instanceof Integer ||
+                value instanceof Long ||
+                value instanceof Short ||
+                value instanceof Byte) {
+            return this.value(((Number)value).longValue());
+        }
+
+        if (value instanceof Boolean) {
+            return this.value(((Boolean)value).booleanValue());
+        }
+
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject)value;
+            this.beginObject();
+            for (String key : object.keySet()) {
+                this.name(key).value(object.opt(key));
+            }
+            return this.endObject();
+        }
+
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray)value;
+            this.beginArray();
+            for (int i = 0; i < array.length(); ++i) {
+                this.value(array.opt(i));
+            }
+            return this.endArray();
+        }
+
+        // Floats, and anything else org.json knows how to serialize.
+        this.separate();
+        this.buffer.append(JSONObject.valueToString(value));
+        return this;
+    }
+
+    /**
+     * Write the members of an object, into the current object.
+     *
+     * @param object The object
+     * @param skip   Name of a member to leave out, or null
+     * @return This writer.
+     */
+    public JsonWriter members(JSONObject object, String skip) {
+        for (String key : object.keySet()) {
+            if (!key.equals(skip)) {
+                this.name(key).value(object.opt(key));
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Get the number of characters written.
+     *
+     * @return The length.
+     */
+    public int length() {
+        return this.buffer.length();
+    }
+
+    /**
+     * Take the JSON text written since the last call, leaving the containers
+     * which are still open as they are, so that a long document can be
+     * passed on in pieces.
+     *
+     * @return The text.
+     */
+    String take() {
+        String text = this.buffer.toString();
+        this.buffer.setLength(0);
+        return text;
+    }
+
+    /**
+     * Get the JSON text written so far.
+     *
+     * @return The text.
+     */
+    @Override
+    public String toString() {
+        return this.buffer.toString();
+    }
+
+    /**
+     * Write a comma before a value or member, unless it is the first of its
+     * container or follows a member name.
+     */
+    private void separate() {
+        if (this.afterName) {
+            this.afterName = false;
+            return;
+        }
+
+        if (this.first[this.depth]) {
+            this.first[this.depth] = false;
+        } else {
+            this.buffer.append(',');
+        }
+    }
+
+    /**
+     * Enter a container.
+     */
+    private void push() {
+        if (++this.depth == this.first.length) {
+            this.first = Arrays.copyOf(this.first, this.depth * 2);
+        }
+
+        this.first[this.depth] = true;
+    }
+
+    /**
+     * Leave a container.
+     */
+    private void pop() {
+        if (this.depth == 0) {
+            throw new IllegalStateException("No container to end");
+        }
+
+        --this.depth;
+    }
+
+    /**
+     * Write a quoted string, escaped as JSONObject.quote() does.
+     *
+     * @param string The string
+     */
+    private void quote(String string) {
+        StringBuilder buffer = this.buffer;
+        buffer.append('"');
+
+        char previous = 0;
+        int length = string.length();
+        for (int i = 0; i < length; ++i) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    buffer.append('\\').append(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        buffer.append('\\');
+                    }
+                    buffer.append(c);
+                    break;
+                case '\b':
+                    buffer.append("\\b");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\f':
+                    buffer.append("\\f");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                default:
+                    if (c < ' ' ||
+                            (c >= 0x80 && c < 0xa0) ||
+                            (c >= 0x2000 && c < 0x2100)) {
+                        buffer.append("\\u")
+                              .append(HEX[(c >> 12) & 0xf])
+                              .append(HEX[(c >> 8) & 0xf])
+                              .append(HEX[(c >> 4) & 0xf])
+                              .append(HEX[c & 0xf]);
+                    } else {
+                        buffer.append(c);
+                    }
+                    break;
+            }
+
+            previous = c;
+        }
+
+        buffer.append('"');
+    }
+}
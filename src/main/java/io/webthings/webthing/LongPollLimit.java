@@ -0,0 +1,64 @@
+/**
+ * Limit on concurrent long-polls.
+ */
+package io.webthings.webthing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the requests which are waiting for a property change.
+ * <p>
+ * Each waiting request holds its connection's thread, and with
+ * {@link WebThingServer#setMaxConnections(int)} one of the connection slots,
+ * for as long as it waits. Capping the waiters keeps idle clients from
+ * taking all of them.
+ */
+class LongPollLimit {
+    private final AtomicInteger waiters = new AtomicInteger();
+    private volatile int max;
+
+    /**
+     * Initialize the object.
+     *
+     * @param max Maximum number of waiting requests
+     */
+    LongPollLimit(int max) {
+        this.max = max;
+    }
+
+    /**
+     * Set the maximum number of waiting requests. Requests which are already
+     * waiting are left alone.
+     *
+     * @param max The number of requests
+     */
+    void setMax(int max) {
+        this.max = max;
+    }
+
+    /**
+     * Take a place for a waiting request, if one is free. Each place taken
+     * must be given back with release().
+     *
+     * @return Boolean indicating whether the request may wait.
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int waiters = this.waiters.get();
+            if (waiters >= this.max) {
+                return false;
+            }
+
+            if (this.waiters.compareAndSet(waiters, waiters + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back the place of a request which is done waiting.
+     */
+    void release() {
+        this.waiters.decrementAndGet();
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Serial executor for a single thing.
+ */
+package io.webthings.webthing;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An executor which runs tasks one at a time, in submission order, on a
+ * shared pool.
+ * <p>
+ * Many mailboxes can share one small pool: a mailbox only occupies a pool
+ * thread while it has queued tasks, and gives it up after a bounded batch so
+ * that busy things cannot starve the others.
+ * <p>
+ * A task that throws does not stop the mailbox. For tasks passed to call(),
+ * the exception is rethrown to the caller; for tasks passed to execute(), it
+ * is handed to the uncaught exception handler of the pool thread.
+ * <p>
+ * A task should not call() into a different mailbox on the same pool: it
+ * holds on to its pool thread while it waits, and once every pool thread is
+ * waiting like this, none is left to run the tasks they wait for, so they
+ * all wait forever. The same happens regardless of the pool size if two
+ * mailboxes call() each other. Tasks that need to reach another mailbox
+ * should use execute() instead, or the mailboxes should use separate pools.
+ */
+public class Mailbox implements Executor {
+    private static final int BATCH_SIZE = 64;
+    private final Executor pool;
+    private final Queue<Runnable> tasks;
+    private final AtomicBoolean scheduled;
+    private volatile Thread runner;
+
+    /**
+     * Initialize the object.
+     *
+     * @param pool The pool to run tasks on
+     */
+    public Mailbox(Executor pool) {
+        this.pool = pool;
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicBoolean(false);
+        this.runner = null;
+    }
+
+    /**
+     * Queue a task to run after all previously queued tasks.
+     *
+     * @param task The task to run
+     */
+    @Override
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        this.schedule();
+    }
+
+    /**
+     * Run a task on the mailbox and wait for its result.
+     * <p>
+     * If called from a task already running on this mailbox, the task is run
+     * directly, as waiting for it would never finish. Calling this from a
+     * task running on another mailbox can deadlock, see above.
+     *
+     * @param task The task to run
+     * @param <R>  Type of the result
+     * @param <E>  Type of the exception the task may throw
+     * @return The task's result.
+     * @throws E If the task failed.
+     */
+    @SuppressWarnings("unchecked")
+    public <R, E extends Exception> R call(Task<R, E> task) throws E {
+        if (this.isCurrentThread()) {
+            return task.run();
+        }
+
+        FutureTask<R> future = new FutureTask<>(task::run);
+        this.execute(future);
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // The task may already be running, so it has to finish
+                    // before the caller can go on.
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+
+            throw (E)cause;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Determine whether the current thread is running this mailbox's tasks.
+     *
+     * @return Boolean indicating whether this is the mailbox thread.
+     */
+    public boolean isCurrentThread() {
+        return this.runner == Thread.currentThread();
+    }
+
+    /**
+     * Hand the mailbox to the pool, unless it is already scheduled.
+     */
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            try {
+                this.pool.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                this.scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Run a batch of queued tasks, then reschedule if more are waiting.
+     */
+    private void drain() {
+        this.runner = Thread.currentThread();
+        try {
+            for (int i = 0; i < BATCH_SIZE; ++i) {
+                Runnable task = this.tasks.poll();
+                if (task == null) {
+                    break;
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler()
+                          .uncaughtException(thread, e);
+                }
+            }
+        } finally {
+            this.runner = null;
+            this.scheduled.set(false);
+        }
+
+        if (!this.tasks.isEmpty()) {
+            this.schedule();
+        }
+    }
+
+    /**
+     * A task with a result, which may throw a checked exception.
+     *
+     * @param <R> Type of the result
+     * @param <E> Type of the exception the task may throw
+     */
+    @FunctionalInterface
+    public interface Task<R, E extends Exception> {
+        /**
+         * Run the task.
+         *
+         * @return The result.
+         * @throws E If the task failed.
+         */
+        R run() throws E;
+    }
+}
@@ -0,0 +1,584 @@
+/**
+ * Websocket message compression.
+ */
+package io.webthings.webthing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
+
+/**
+ * The permessage-deflate websocket extension, as described in RFC 7692.
+ * <p>
+ * By default each connection keeps its compression context from one message
+ * to the next, so a stream of similar messages, such as property updates,
+ * is mostly sent as references to the messages before it. Without context
+ * takeover each message is compressed on its own, which saves the memory
+ * kept per connection but compresses short messages far less.
+ * <p>
+ * NanoWSD rejects frames with reserved bits set, so compressed frames are
+ * marked on their way out by {@link CompressedFrame}, and unmarked on their
+ * way in by {@link FrameInputStream}.
+ */
+class PerMessageDeflate {
+    static final String HEADER_WEBSOCKET_EXTENSIONS = "sec-websocket-extensions";
+    private static final String EXTENSION = "permessage-deflate";
+    private static final int MAX_WINDOW_BITS = 15;
+    private static final int BUFFER_SIZE = 1024;
+    private static final byte[] TAIL = {0, 0, (byte)0xff, (byte)0xff};
+    private volatile int level;
+    private volatile int threshold;
+    private volatile boolean contextTakeover;
+
+    /**
+     * Initialize the object.
+     *
+     * @param level           Deflate compression level, or 0 to disable the
+     *                        extension
+     * @param threshold       Smallest message to compress, in bytes
+     * @param contextTakeover Whether to keep the compression context between
+     *                        messages
+     */
+    PerMessageDeflate(int level, int threshold, boolean contextTakeover) {
+        this.configure(level, threshold, contextTakeover);
+    }
+
+    /**
+     * Change the settings used for new connections.
+     *
+     * @param level           Deflate compression level, or 0 to disable the
+     *                        extension
+     * @param threshold       Smallest message to compress, in bytes
+     * @param contextTakeover Whether to keep the compression context between
+     *                        messages
+     */
+    void configure(int level, int threshold, boolean contextTakeover) {
+        if (level < Deflater.DEFAULT_COMPRESSION ||
+                level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " +
+                                                       level);
+        }
+
+        this.level = level;
+        this.threshold = threshold;
+        this.contextTakeover = contextTakeover;
+    }
+
+    /**
+     * Accept the first acceptable permessage-deflate offer of a handshake.
+     *
+     * @param extensions The Sec-WebSocket-Extensions request header
+     * @return The codec for the connection, or null if the extension is not
+     * used.
+     */
+    Codec negotiate(String extensions) {
+        if (extensions == null || this.level == Deflater.NO_COMPRESSION) {
+            return null;
+        }
+
+        for (String offer : extensions.split(",")) {
+            String[] params = offer.split(";");
+            if (!params[0].trim().equalsIgnoreCase(EXTENSION)) {
+                continue;
+            }
+
+            boolean serverTakeover = this.contextTakeover;
+            boolean clientTakeover = this.contextTakeover;
+            boolean valid = true;
+            Set<String> seen = new HashSet<>();
+            for (int i = 1; i < params.length && valid; ++i) {
+                String[] param = params[i].split("=", 2);
+                String name = param[0].trim().toLowerCase();
+                String value = param.length > 1 ?
+                        param[1].trim().replace("\"", "") :
+                        null;
+                if (!seen.add(name)) {
+                    valid = false;
+                    continue;
+                }
+
+                switch (name) {
+                    case "server_no_context_takeover":
+                        serverTakeover = false;
+                        valid = value == null;
+                        break;
+                    case "client_no_context_takeover":
+                        valid = value == null;
+                        break;
+                    case "server_max_window_bits":
+                        // The JDK's deflater always uses the largest window.
+                        valid = String.valueOf(MAX_WINDOW_BITS).equals(value);
+                        break;
+                    case "client_max_window_bits":
+                        // Any window fits in the inflater's, so the client's
+                        // choice is left alone.
+                        valid = value == null || isWindowBits(value);
+                        break;
+                    default:
+                        valid = false;
+                        break;
+                }
+            }
+
+            if (valid) {
+                return new Codec(this.level,
+                                 this.threshold,
+                                 serverTakeover,
+                                 clientTakeover);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Determine whether a parameter value is a valid window size.
+     *
+     * @param value The value
+     * @return Boolean indicating whether the value is valid.
+     */
+    private static boolean isWindowBits(String value) {
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= MAX_WINDOW_BITS;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compression state of a single connection.
+     */
+    static class Codec {
+        private final int threshold;
+        private final boolean serverTakeover;
+        private final boolean clientTakeover;
+        private final Deflater deflater;
+        private final Inflater inflater;
+        private final byte[] deflateBuffer;
+        private final byte[] inflateBuffer;
+        private FrameInputStream input;
+
+        /**
+         * Initialize the object.
+         *
+         * @param level          Deflate compression level
+         * @param threshold      Smallest message to compress, in bytes
+         * @param serverTakeover Whether outgoing messages share a context
+         * @param clientTakeover Whether incoming messages share a context
+         */
+        Codec(int level,
+              int threshold,
+              boolean serverTakeover,
+              boolean clientTakeover) {
+            this.threshold = threshold;
+            this.serverTakeover = serverTakeover;
+            this.clientTakeover = clientTakeover;
+            this.deflater = new Deflater(level, true);
+            this.inflater = new Inflater(true);
+            this.deflateBuffer = new byte[BUFFER_SIZE];
+            this.inflateBuffer = new byte[BUFFER_SIZE];
+        }
+
+        /**
+         * Get the Sec-WebSocket-Extensions response header.
+         *
+         * @return The header value.
+         */
+        String getResponseHeader() {
+            StringBuilder header = new StringBuilder(EXTENSION);
+            if (!this.serverTakeover) {
+                header.append("; server_no_context_takeover");
+            }
+
+            if (!this.clientTakeover) {
+                header.append("; client_no_context_takeover");
+            }
+
+            return header.toString();
+        }
+
+        /**
+         * Wrap the handshake request, so that the websocket reads its frames
+         * through a {@link FrameInputStream}.
+         *
+         * @param session The handshake request
+         * @return The wrapped request.
+         */
+        NanoHTTPD.IHTTPSession wrap(NanoHTTPD.IHTTPSession session) {
+            return new Session(session, this);
+        }
+
+        /**
+         * Determine whether the message just read was compressed.
+         *
+         * @return Boolean indicating whether the message was compressed.
+         */
+        boolean isCompressed() {
+            return this.input != null && this.input.compressed;
+        }
+
+        /**
+         * Compress a message, if it is large enough.
+         * <p>
+         * Messages have to be sent in the order they are compressed in.
+         *
+         * @param message The message
+         * @return The compressed payload, or null if the message should be
+         * sent as is.
+         */
+        byte[] compress(byte[] message) {
+            if (message.length < this.threshold) {
+                return null;
+            }
+
+            ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(message.length / 2 + 16);
+            this.deflater.setInput(message);
+            int count;
+            do {
+                count = this.deflater.deflate(this.deflateBuffer,
+                                              0,
+                                              this.deflateBuffer.length,
+                                              Deflater.SYNC_FLUSH);
+                out.write(this.deflateBuffer, 0, count);
+            } while (count == this.deflateBuffer.length);
+
+            if (!this.serverTakeover) {
+                this.deflater.reset();
+            }
+
+            // The flush ends with an empty block, which the receiver adds
+            // back before inflating.
+            byte[] payload = out.toByteArray();
+            return payload.length >= TAIL.length ?
+                    Arrays.copyOf(payload, payload.length - TAIL.length) :
+                    payload;
+        }
+
+        /**
+         * Decompress a message.
+         *
+         * @param payload The compressed payload
+         * @param maxSize Largest message to accept, in bytes
+         * @return The message.
+         * @throws DataFormatException If the payload is invalid or the
+         *                             message is too large.
+         */
+        byte[] decompress(byte[] payload, int maxSize)
+                throws DataFormatException {
+            ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(payload.length * 4);
+            byte[][] inputs = {payload, TAIL};
+            for (byte[] input : inputs) {
+                this.inflater.setInput(input);
+                while (!this.inflater.needsInput()) {
+                    int count = this.inflater.inflate(this.inflateBuffer);
+                    if (count == 0 &&
+                            (this.inflater.finished() ||
+                                    this.inflater.needsDictionary())) {
+                        break;
+                    }
+
+                    out.write(this.inflateBuffer, 0, count);
+                    if (out.size() > maxSize) {
+                        throw new DataFormatException("Message too large");
+                    }
+                }
+            }
+
+            if (!this.clientTakeover || this.inflater.finished()) {
+                this.inflater.reset();
+            }
+
+            return out.toByteArray();
+        }
+
+        /**
+         * Free the compression state.
+         */
+        void end() {
+            this.deflater.end();
+            this.inflater.end();
+        }
+    }
+
+    /**
+     * A text or binary frame whose payload is compressed.
+     */
+    static class CompressedFrame extends NanoWSD.WebSocketFrame {
+        /**
+         * Initialize the object.
+         *
+         * @param opCode  The message's opcode, Text or Binary
+         * @param payload The compressed payload
+         */
+        CompressedFrame(OpCode opCode, byte[] payload) {
+            super(opCode, true, payload);
+        }
+
+        /**
+         * Write the frame, with the RSV1 bit of its first byte set.
+         *
+         * @param out The output stream
+         * @throws IOException If the frame could not be written.
+         */
+        @Override
+        public void write(OutputStream out) throws IOException {
+            super.write(new FilterOutputStream(out) {
+                private boolean first = true;
+
+                @Override
+                public void write(int b) throws IOException {
+                    if (this.first) {
+                        this.first = false;
+                        b |= 0x40;
+                    }
+
+                    this.out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+                    if (this.first && len > 0) {
+                        this.write(b[off]);
+                        ++off;
+                        --len;
+                    }
+
+                    this.out.write(b, off, len);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads websocket frames for NanoWSD, clearing the RSV1 bit of
+     * compressed messages.
+     * <p>
+     * A compressed text message is passed on as a binary message, as its
+     * payload is not valid UTF-8 until it is inflated. Whether the message
+     * was compressed is kept until the next message starts, which NanoWSD
+     * only reads once it has handled the current one.
+     */
+    static class FrameInputStream extends FilterInputStream {
+        private static final int OPCODE_TEXT = 0x1;
+        private static final int OPCODE_BINARY = 0x2;
+
+        // Header bytes of the current frame read so far, and the total
+        // once its second byte is known.
+        private int headerPosition;
+        private int headerLength;
+        private int extendedLength;
+        private long payloadRemaining;
+        private volatile boolean compressed;
+
+        /**
+         * Initialize the object.
+         *
+         * @param in The socket's input stream
+         */
+        FrameInputStream(InputStream in) {
+            super(in);
+            this.headerPosition = 0;
+            this.headerLength = 0;
+            this.extendedLength = 0;
+            this.payloadRemaining = 0;
+            this.compressed = false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.headerPosition == 0 && this.payloadRemaining > 0) {
+                int b = this.in.read();
+                if (b >= 0) {
+                    --this.payloadRemaining;
+                }
+
+                return b;
+            }
+
+            int b = this.in.read();
+            if (b < 0) {
+                return b;
+            }
+
+            return this.readHeader(b);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (this.headerPosition == 0 && this.payloadRemaining > 0) {
+                int count = this.in.read(b,
+                                         off,
+                                         (int)Math.min(len,
+                                                       this.payloadRemaining));
+                if (count > 0) {
+                    this.payloadRemaining -= count;
+                }
+
+                return count;
+            }
+
+            int c = this.read();
+            if (c < 0) {
+                return -1;
+            }
+
+            b[off] = (byte)c;
+            return 1;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would not be tracked.
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Track a header byte, rewriting the first byte of a compressed
+         * message.
+         *
+         * @param b The byte read
+         * @return The byte to pass on.
+         */
+        private int readHeader(int b) {
+            int position = this.headerPosition++;
+            if (position == 0) {
+                int opcode = b & 0x0f;
+                if (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY) {
+                    this.compressed = (b & 0x40) != 0;
+                    if (this.compressed) {
+                        b = (b & ~0x4f) | OPCODE_BINARY;
+                    }
+                }
+
+                this.headerLength = 2;
+                this.extendedLength = 0;
+                this.payloadRemaining = 0;
+            } else if (position == 1) {
+                int length = b & 0x7f;
+                this.extendedLength = length == 126 ? 2 : length == 127 ? 8 : 0;
+                this.headerLength = 2 + this.extendedLength +
+                        ((b & 0x80) != 0 ? 4 : 0);
+                this.payloadRemaining = length < 126 ? length : 0;
+            } else if (position < 2 + this.extendedLength) {
+                this.payloadRemaining = (this.payloadRemaining << 8) |
+                        (b & 0xff);
+            }
+
+            if (this.headerPosition == this.headerLength) {
+                this.headerPosition = 0;
+            }
+
+            return b;
+        }
+    }
+
+    /**
+     * A handshake request whose input stream reads through a
+     * {@link FrameInputStream}.
+     */
+    private static class Session implements NanoHTTPD.IHTTPSession {
+        private final NanoHTTPD.IHTTPSession session;
+        private final FrameInputStream input;
+
+        /**
+         * Initialize the object.
+         *
+         * @param session The handshake request
+         * @param codec   The connection's codec
+         */
+        Session(NanoHTTPD.IHTTPSession session, Codec codec) {
+            this.session = session;
+            this.input = new FrameInputStream(session.getInputStream());
+            codec.input = this.input;
+        }
+
+        @Override
+        public void execute() throws IOException {
+            this.session.execute();
+        }
+
+        @Override
+        public NanoHTTPD.CookieHandler getCookies() {
+            return this.session.getCookies();
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return this.session.getHeaders();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return this.input;
+        }
+
+        @Override
+        public NanoHTTPD.Method getMethod() {
+            return this.session.getMethod();
+        }
+
+        @Override
+        @Deprecated
+        public Map<String, String> getParms() {
+            return this.session.getParms();
+        }
+
+        @Override
+        public Map<String, List<String>> getParameters() {
+            return this.session.getParameters();
+        }
+
+        @Override
+        public String getQueryParameterString() {
+            return this.session.getQueryParameterString();
+        }
+
+        @Override
+        public String getUri() {
+            return this.session.getUri();
+        }
+
+        @Override
+        public void parseBody(Map<String, String> files)
+                throws IOException, NanoHTTPD.ResponseException {
+            this.session.parseBody(files);
+        }
+
+        @Override
+        public String getRemoteIpAddress() {
+            return this.session.getRemoteIpAddress();
+        }
+
+        @Override
+        public String getRemoteHostName() {
+            return this.session.getRemoteHostName();
+        }
+    }
+}
@@ -9,6 +9,7 @@ import org.everit.json.schema.loader.SchemaLoader;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import io.webthings.webthing.errors.PropertyError;
+import io.webthings.webthing.errors.PropertyVersionError;
 
 /**
  * A Property represents an individual state value of a thing.
@@ -22,6 +23,7 @@ public class Property<T> {
     private String href;
     private JSONObject metadata;
     private Value<T> value;
+    private volatile long version;
 
     /**
      * Initialize the object.
@@ -52,6 +54,7 @@ public class Property<T> {
         this.value = value;
         this.hrefPrefix = "";
         this.href = String.format("/properties/%s", this.name);
+        this.version = 0;
 
         if (metadata == null) {
             this.metadata = new JSONObject();
@@ -106,6 +109,31 @@ public class Property<T> {
         return description;
     }
 
+    /**
+     * Write the property description, as returned by asPropertyDescription().
+     *
+     * @param writer The writer to write to
+     */
+    public void writePropertyDescription(JsonWriter writer) {
+        writer.beginObject().members(this.metadata, "links");
+
+        writer.name("links").beginArray();
+        JSONArray links = this.metadata.optJSONArray("links");
+        if (links != null) {
+            for (int i = 0; i < links.length(); ++i) {
+                writer.value(links.opt(i));
+            }
+        }
+
+        writer.beginObject()
+              .name("rel")
+              .value("property")
+              .name("href")
+              .value(this.hrefPrefix + this.href)
+              .endObject();
+        writer.endArray().endObject();
+    }
+
     /**
      * Set the prefix of any hrefs associated with this property.
      *
@@ -139,11 +167,87 @@ public class Property<T> {
      * @param value The value to set
      * @throws PropertyError If value could not be set.
      */
-    public void setValue(T value) throws PropertyError {
+    public synchronized void setValue(T value) throws PropertyError {
         this.validateValue(value);
         this.value.set(value);
     }
 
+    /**
+     * Set the current value of the property, only if the property has not
+     * changed since the given version.
+     * <p>
+     * The check and the write are atomic with respect to all other writes
+     * through this property. Since the version of an asynchronously written
+     * value only changes once the write has been forwarded, a conditional
+     * write is also refused while another write is pending; otherwise two
+     * writers expecting the same version could both succeed.
+     *
+     * @param value           The value to set
+     * @param expectedVersion The version the caller last saw
+     * @throws PropertyVersionError If the property version does not match.
+     * @throws PropertyError        If value could not be set.
+     */
+    public synchronized void setValue(T value, long expectedVersion)
+            throws PropertyError {
+        if (this.version != expectedVersion) {
+            throw new PropertyVersionError();
+        }
+
+        if (this.value.isWritePending()) {
+            throw new PropertyVersionError("Property has a pending write");
+        }
+
+        this.setValue(value);
+    }
+
+    /**
+     * Get the version of this property, i.e. the thing's property version at
+     * the time this property last changed.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Set the version of this property.
+     *
+     * @param version The version
+     */
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Determine whether or not a write to this property has not reached the
+     * thing yet.
+     *
+     * @return Boolean indicating whether or not a write is pending.
+     */
+    public boolean isWritePending() {
+        return this.value.isWritePending();
+    }
+
+    /**
+     * Wait for pending writes to this property to reach the thing.
+     *
+     * @param timeout Maximum time to wait, in milliseconds
+     * @return Boolean indicating whether or not all writes were forwarded.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws PropertyError        If the thing did not take the latest value.
+     */
+    public boolean awaitWrite(long timeout)
+            throws InterruptedException, PropertyError {
+        try {
+            return this.value.awaitWrite(timeout);
+        } catch (RuntimeException e) {
+            throw new PropertyError(e.getMessage() == null ?
+                                    "Value could not be written" :
+                                    e.getMessage());
+        }
+    }
+
     /**
      * Get the name of this property.
      *
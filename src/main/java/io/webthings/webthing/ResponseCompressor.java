@@ -0,0 +1,315 @@
+/**
+ * HTTP response compression.
+ */
+package io.webthings.webthing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Compresses response bodies with gzip or deflate, as negotiated with the
+ * client's Accept-Encoding header.
+ * <p>
+ * Only JSON, CBOR and text bodies are compressed: complete ones if they are
+ * at least the threshold size, and streamed ones, whose size is not known in
+ * advance, as they are sent. Event streams are left alone, since their
+ * messages have to reach the client as soon as they are written.
+ */
+class ResponseCompressor {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private volatile int threshold;
+
+    /**
+     * Initialize the object.
+     *
+     * @param threshold Smallest body to compress, in bytes
+     */
+    ResponseCompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Set the smallest body to compress.
+     *
+     * @param threshold The size in bytes
+     */
+    void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Compress a response, if the client accepts it and it is worth it.
+     *
+     * @param session  The HTTP session
+     * @param response The response
+     * @return The response, compressed in place.
+     */
+    NanoHTTPD.Response compress(NanoHTTPD.IHTTPSession session,
+                                NanoHTTPD.Response response) {
+        String mimeType = response.getMimeType();
+        InputStream data = response.getData();
+        if (mimeType == null ||
+                !(mimeType.contains("json") ||
+                        mimeType.startsWith("text/") ||
+                        mimeType.equals(Cbor.MIME_TYPE)) ||
+                mimeType.equals("text/event-stream") ||
+                data == null ||
+                response.getHeader("content-encoding") != null) {
+            return response;
+        }
+
+        boolean streamed = !(data instanceof ByteArrayInputStream);
+        if (!streamed &&
+                ((ByteArrayInputStream)data).available() < this.threshold) {
+            return response;
+        }
+
+        // Caches must keep the variants for different encodings apart.
+        String vary = response.getHeader("vary");
+        response.addHeader("Vary",
+                           vary == null ?
+                           "Accept-Encoding" :
+                           vary + ", Accept-Encoding");
+
+        String encoding =
+                negotiate(session.getHeaders().get("accept-encoding"));
+        if (encoding == null) {
+            return response;
+        }
+
+        if (streamed) {
+            response.setData(new CompressingInputStream(data, encoding));
+            response.addHeader("Content-Encoding", encoding);
+            return response;
+        }
+
+        ByteArrayInputStream bytes = (ByteArrayInputStream)data;
+        int length = bytes.available();
+        byte[] body = new byte[length];
+        bytes.read(body, 0, length);
+
+        byte[] compressed = encode(encoding, body);
+
+        // NanoHTTPD sends the Content-Length header, if set, in place of the
+        // length of the original data.
+        response.setData(new ByteArrayInputStream(compressed));
+        response.addHeader("Content-Encoding", encoding);
+        response.addHeader("Content-Length", String.valueOf(compressed.length));
+        return response;
+    }
+
+    /**
+     * Choose an encoding from an Accept-Encoding header.
+     *
+     * @param acceptEncoding The header value
+     * @return "gzip", "deflate", or null if neither is accepted.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        // Codings which are not listed take the quality of "*", if given.
+        Double gzip = null;
+        Double deflate = null;
+        double wildcard = 0;
+        for (String part : acceptEncoding.toLowerCase().split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim();
+            double q = 1;
+            for (int i = 1; i < params.length; ++i) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                    gzip = q;
+                    break;
+                case "deflate":
+                    deflate = q;
+                    break;
+                case "*":
+                    wildcard = q;
+                    break;
+            }
+        }
+
+        double gzipQuality = gzip == null ? wildcard : gzip;
+        double deflateQuality = deflate == null ? wildcard : deflate;
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+            return "gzip";
+        }
+
+        if (deflateQuality > 0) {
+            return "deflate";
+        }
+
+        return null;
+    }
+
+    /**
+     * Compress a body.
+     *
+     * @param encoding "gzip" or "deflate"
+     * @param body     The body
+     * @return The compressed body.
+     */
+    private static byte[] encode(String encoding, byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        try {
+            if (encoding.equals("gzip")) {
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(body);
+                }
+            } else {
+                // HTTP's "deflate" is the zlib format, not raw deflate.
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+                try (DeflaterOutputStream deflate =
+                             new DeflaterOutputStream(out, deflater)) {
+                    deflate.write(body);
+                } finally {
+                    deflater.end();
+                }
+            }
+        } catch (IOException e) {
+            // Writing to a ByteArrayOutputStream cannot fail.
+            throw new IllegalStateException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * An InputStream which compresses another as it is read.
+     */
+    private static class CompressingInputStream extends InputStream {
+        private static final byte[] GZIP_HEADER = {
+                0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff,
+        };
+        private final InputStream in;
+        private final Deflater deflater;
+        private final CRC32 crc;
+        private final byte[] input;
+        private byte[] output;
+        private int position;
+        private int limit;
+        private boolean inputEnded;
+        private boolean trailed;
+
+        /**
+         * Initialize the object.
+         *
+         * @param in       The stream to compress
+         * @param encoding "gzip" or "deflate"
+         */
+        CompressingInputStream(InputStream in, String encoding) {
+            boolean gzip = encoding.equals("gzip");
+            this.in = in;
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+            this.crc = gzip ? new CRC32() : null;
+            this.input = new byte[BUFFER_SIZE];
+            this.output = gzip ? GZIP_HEADER.clone() : new byte[0];
+            this.position = 0;
+            this.limit = this.output.length;
+            this.inputEnded = false;
+            this.trailed = !gzip;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (this.position == this.limit) {
+                if (!this.fill()) {
+                    return -1;
+                }
+            }
+
+            int n = Math.min(len, this.limit - this.position);
+            System.arraycopy(this.output, this.position, b, off, n);
+            this.position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.deflater.end();
+            this.in.close();
+        }
+
+        /**
+         * Compress some more of the input. This may produce no output while
+         * the deflater collects input.
+         *
+         * @return Whether there is anything left to read.
+         * @throws IOException If reading the input fails.
+         */
+        private boolean fill() throws IOException {
+            if (this.output.length < BUFFER_SIZE) {
+                this.output = new byte[BUFFER_SIZE];
+            }
+
+            this.position = 0;
+            this.limit = 0;
+
+            if (!this.deflater.finished()) {
+                if (!this.inputEnded && this.deflater.needsInput()) {
+                    int n = this.in.read(this.input, 0, this.input.length);
+                    if (n < 0) {
+                        this.inputEnded = true;
+                        this.deflater.finish();
+                    } else {
+                        this.deflater.setInput(this.input, 0, n);
+                        if (this.crc != null) {
+                            this.crc.update(this.input, 0, n);
+                        }
+                    }
+                }
+
+                this.limit = this.deflater.deflate(this.output);
+                return true;
+            }
+
+            if (!this.trailed) {
+                // The gzip trailer holds the CRC and the length of the input,
+                // both little-endian.
+                long crc = this.crc.getValue();
+                long size = this.deflater.getBytesRead();
+                for (int i = 0; i < 4; ++i) {
+                    this.output[i] = (byte)(crc >> (8 * i));
+                    this.output[4 + i] = (byte)(size >> (8 * i));
+                }
+
+                this.limit = 8;
+                this.trailed = true;
+                return true;
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Path trie for request routing.
+ */
+package io.webthings.webthing;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps URL patterns such as /:thingId/properties/:propertyName to values.
+ * <p>
+ * A lookup walks the path one segment at a time, so its cost depends on the
+ * depth of the path rather than the number of routes. Literal segments are
+ * tried before parameters; if a literal branch fails to match, the parameter
+ * branches at that level are tried in the order they were added.
+ *
+ * @param <T> Type of the routed values
+ */
+class RouteTrie<T> {
+    private final Node<T> root = new Node<>();
+
+    /**
+     * Add a route. If the pattern is already routed, the existing route is
+     * kept, as routes are matched in the order they are added.
+     *
+     * @param pattern The URL pattern, with parameters prefixed by ':'
+     * @param value   The value to route to
+     */
+    void add(String pattern, T value) {
+        Node<T> node = this.root;
+        for (String segment : pattern.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+
+            if (segment.startsWith(":")) {
+                node = node.params.computeIfAbsent(segment.substring(1),
+                                                   (k) -> new Node<>());
+            } else {
+                node = node.children.computeIfAbsent(segment,
+                                                     (k) -> new Node<>());
+            }
+        }
+
+        if (node.value == null) {
+            node.value = value;
+        }
+    }
+
+    /**
+     * Remove a route.
+     *
+     * @param pattern The URL pattern it was added with
+     */
+    void remove(String pattern) {
+        Node<T> node = this.root;
+        for (String segment : pattern.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+
+            node = segment.startsWith(":") ?
+                   node.params.get(segment.substring(1)) :
+                   node.children.get(segment);
+            if (node == null) {
+                return;
+            }
+        }
+
+        node.value = null;
+    }
+
+    /**
+     * Find the route for a path.
+     *
+     * @param path   The request path
+     * @param params Map to store the matched parameters in
+     * @return The routed value, or null if no route matches.
+     */
+    T match(String path, Map<String, String> params) {
+        return this.match(this.root, path, 0, params);
+    }
+
+    /**
+     * Match the rest of a path against a node.
+     *
+     * @param node   The node reached so far
+     * @param path   The request path
+     * @param start  Index of the rest of the path
+     * @param params Map to store the matched parameters in
+     * @return The routed value, or null if no route matches.
+     */
+    private T match(Node<T> node,
+                    String path,
+                    int start,
+                    Map<String, String> params) {
+        int length = path.length();
+        while (start < length && path.charAt(start) == '/') {
+            ++start;
+        }
+
+        if (start == length) {
+            return node.value;
+        }
+
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+            end = length;
+        }
+
+        String segment = path.substring(start, end);
+        Node<T> child = node.children.get(segment);
+        if (child != null) {
+            T value = this.match(child, path, end, params);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        for (Map.Entry<String, Node<T>> param : node.params.entrySet()) {
+            T value = this.match(param.getValue(), path, end, params);
+            if (value != null) {
+                params.put(param.getKey(), segment);
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * A path segment, with the segments which may follow it.
+     *
+     * @param <T> Type of the routed values
+     */
+    private static class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        final Map<String, Node<T>> params = new LinkedHashMap<>();
+        T value;
+    }
+}
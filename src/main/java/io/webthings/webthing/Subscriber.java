@@ -0,0 +1,43 @@
+/**
+ * Subscriber interface.
+ */
+package io.webthings.webthing;
+
+/**
+ * A Subscriber receives the messages a Thing sends when its state changes,
+ * e.g. over a websocket or an event stream.
+ */
+public interface Subscriber {
+    /**
+     * Send a message to the subscriber.
+     *
+     * @param message The serialized message
+     */
+    void sendMessage(String message);
+
+    /**
+     * Send a sequenced message to the subscriber.
+     * <p>
+     * Subscribers which can use the sequence number, e.g. as an event ID,
+     * should override this.
+     * <p>
+     * Sequence numbers are shared by all of a thing's messages, so they
+     * increase but skip the events a subscriber is not subscribed to.
+     *
+     * @param sequence The message's sequence number
+     * @param message  The serialized message
+     */
+    default void sendMessage(long sequence, String message) {
+        this.sendMessage(message);
+    }
+
+    /**
+     * Disconnect the subscriber, which fell so far behind that its waiting
+     * messages were dropped. The thing has already removed it.
+     * <p>
+     * Subscribers with a connection should close it, so that their client
+     * can reconnect and resume from the last message it received.
+     */
+    default void disconnect() {
+    }
+}
@@ -9,21 +9,63 @@ import org.everit.json.schema.loader.SchemaLoader;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import io.webthings.webthing.errors.ActionError;
+import io.webthings.webthing.errors.ActionLimitError;
 import io.webthings.webthing.errors.PropertyError;
+import io.webthings.webthing.errors.PropertyVersionError;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 
 /**
  * A Web Thing.
  */
 public class Thing {
+    private static final int DEFAULT_REPLAY_BUFFER_SIZE = 256;
+    private static final int DEFAULT_SUBSCRIBER_QUEUE_SIZE = 1024;
+    private static final int DEFAULT_IDEMPOTENCY_CACHE_SIZE = 1024;
+    private static final long DEFAULT_IDEMPOTENCY_KEY_TTL = 60 * 60 * 1000;
+    private static final ExecutorService DEFAULT_ACTION_EXECUTOR =
+            Executors.newCachedThreadPool((runnable) -> {
+                Thread thread = new Thread(runnable, "webthing-action");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ExecutorService DEFAULT_DELIVERY_EXECUTOR =
+            Executors.newCachedThreadPool((runnable) -> {
+                Thread thread = new Thread(runnable, "webthing-delivery");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final List<String> ACTION_SCHEDULING = Arrays.asList(
+            "maxDuration", "maxConcurrent", "queuePolicy", "lane", "priority");
+    private static final ScheduledExecutorService ACTION_TIMEOUTS =
+            Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "webthing-action-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
     private String id;
     private String context;
     private JSONArray type;
@@ -32,11 +74,32 @@ public class Thing {
     private Map<String, Property> properties;
     private Map<String, AvailableAction> availableActions;
     private Map<String, AvailableEvent> availableEvents;
-    private Map<String, List<Action>> actions;
-    private List<Event> events;
-    private Set<WebThingServer.ThingHandler.ThingWebSocket> subscribers;
+    private TimeIndex<Action> actions;
+    private Map<String, TimeIndex<Action>> actionsByName;
+    private TimeIndex<Event> events;
+    private Map<String, TimeIndex<Event>> eventsByName;
+    private Set<Subscriber> subscribers;
     private String hrefPrefix;
     private String uiHref;
+    private AtomicLong descriptionVersion;
+    private long sequence;
+    private long propertyVersion;
+    private TreeMap<Long, Property> propertyChanges;
+    private int replayBufferSize;
+    private Deque<BufferedMessage> replayBuffer;
+    private int subscriberQueueSize;
+    private Map<Subscriber, Outbox> outboxes;
+    private List<Runnable> deliveries;
+    private List<Subscriber> overflowed;
+    private Executor deliveryExecutor;
+    private volatile Mailbox mailbox;
+    private ExecutorService actionExecutor;
+    private List<Action> waitingActions;
+    private Map<String, Action> lanes;
+    private int idempotencyCacheSize;
+    private long idempotencyKeyTtl;
+    private LinkedHashMap<String, IdempotentAction> idempotencyCache;
+    private final JsonWriter writer;
 
     /**
      * Initialize the object.
@@ -76,11 +139,37 @@ public class Thing {
         this.properties = new HashMap<>();
         this.availableActions = new HashMap<>();
         this.availableEvents = new HashMap<>();
-        this.actions = new HashMap<>();
-        this.events = new ArrayList<>();
+        this.actions = new TimeIndex<>();
+        this.actionsByName = new HashMap<>();
+        this.events = new TimeIndex<>();
+        this.eventsByName = new ConcurrentHashMap<>();
         this.subscribers = new HashSet<>();
         this.hrefPrefix = "";
         this.uiHref = null;
+        this.descriptionVersion = new AtomicLong();
+        this.sequence = 0;
+        this.propertyVersion = 0;
+        this.propertyChanges = new TreeMap<>();
+        this.replayBufferSize = DEFAULT_REPLAY_BUFFER_SIZE;
+        this.replayBuffer = new ArrayDeque<>();
+        this.subscriberQueueSize = DEFAULT_SUBSCRIBER_QUEUE_SIZE;
+        this.outboxes = new HashMap<>();
+        this.deliveries = new ArrayList<>();
+        this.overflowed = new ArrayList<>();
+        this.deliveryExecutor = DEFAULT_DELIVERY_EXECUTOR;
+        this.mailbox = null;
+        this.actionExecutor = DEFAULT_ACTION_EXECUTOR;
+        this.waitingActions = new ArrayList<>();
+        this.lanes = new HashMap<>();
+        this.idempotencyCacheSize = DEFAULT_IDEMPOTENCY_CACHE_SIZE;
+        this.idempotencyKeyTtl = DEFAULT_IDEMPOTENCY_KEY_TTL;
+        this.writer = new JsonWriter();
+        this.idempotencyCache = new LinkedHashMap<String, IdempotentAction>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IdempotentAction> eldest) {
+                return this.size() > Thing.this.idempotencyCacheSize;
+            }
+        };
     }
 
     /**
@@ -161,6 +250,141 @@ public class Thing {
         }
     }
 
+    /**
+     * Write the Thing Description, as returned by asThingDescription().
+     *
+     * @param writer The writer to write to
+     */
+    public void writeThingDescription(JsonWriter writer) {
+        this.writeThingDescription(writer, null, null, null);
+    }
+
+    /**
+     * Write the Thing Description, as returned by asThingDescription(), with
+     * the members the server adds for a particular request.
+     *
+     * @param writer The writer to write to
+     * @param href   The thing's href, or null to leave it out
+     * @param base   The base URL of the thing, or null to leave it and the
+     *               security members out
+     * @param wsHref The websocket URL of the thing, or null to leave its link
+     *               out
+     */
+    void writeThingDescription(JsonWriter writer,
+                               String href,
+                               String base,
+                               String wsHref) {
+        writer.beginObject();
+        writer.name("id").value(this.getId());
+        writer.name("title").value(this.getTitle());
+        writer.name("@context").value(this.getContext());
+        if (this.type != null) {
+            writer.name("@type").value(this.getType());
+        }
+
+        writer.name("properties");
+        this.writePropertyDescriptions(writer);
+
+        writer.name("actions").beginObject();
+        this.availableActions.forEach((name, value) -> {
+            this.writeInteraction(writer, name, value.getMetadata(), "action");
+        });
+        writer.endObject();
+
+        writer.name("events").beginObject();
+        this.availableEvents.forEach((name, value) -> {
+            this.writeInteraction(writer, name, value.getMetadata(), "event");
+        });
+        writer.endObject();
+
+        if (this.description != null) {
+            writer.name("description").value(this.getDescription());
+        }
+
+        writer.name("links").beginArray();
+        this.writeLink(writer,
+                       "properties",
+                       String.format("%s/properties", this.hrefPrefix));
+        this.writeLink(writer,
+                       "actions",
+                       String.format("%s/actions", this.hrefPrefix));
+        this.writeLink(writer,
+                       "events",
+                       String.format("%s/events", this.hrefPrefix));
+
+        if (this.uiHref != null) {
+            writer.beginObject()
+                  .name("rel")
+                  .value("alternate")
+                  .name("mediaType")
+                  .value("text/html")
+                  .name("href")
+                  .value(this.uiHref)
+                  .endObject();
+        }
+
+        if (wsHref != null) {
+            this.writeLink(writer, "alternate", wsHref);
+        }
+
+        writer.endArray();
+
+        if (href != null) {
+            writer.name("href").value(href);
+        }
+
+        if (base != null) {
+            writer.name("base").value(base);
+            writer.name("securityDefinitions")
+                  .beginObject()
+                  .name("nosec_sc")
+                  .beginObject()
+                  .name("scheme")
+                  .value("nosec")
+                  .endObject()
+                  .endObject();
+            writer.name("security").value("nosec_sc");
+        }
+
+        writer.endObject();
+    }
+
+    /**
+     * Write the metadata of an available action or event, with its link.
+     *
+     * @param writer   The writer to write to
+     * @param name     Name of the action or event
+     * @param metadata Its metadata
+     * @param rel      Relation of the link, i.e. action or event
+     */
+    private void writeInteraction(JsonWriter writer,
+                                  String name,
+                                  JSONObject metadata,
+                                  String rel) {
+        writer.name(name).beginObject().members(metadata, "links");
+        writer.name("links").beginArray();
+        this.writeLink(writer,
+                       rel,
+                       String.format("%s/%ss/%s", this.hrefPrefix, rel, name));
+        writer.endArray().endObject();
+    }
+
+    /**
+     * Write a link object.
+     *
+     * @param writer The writer to write to
+     * @param rel    Relation of the link
+     * @param href   Target of the link
+     */
+    private void writeLink(JsonWriter writer, String rel, String href) {
+        writer.beginObject()
+              .name("rel")
+              .value(rel)
+              .name("href")
+              .value(href)
+              .endObject();
+    }
+
     /**
      * Get this thing's href.
      *
@@ -190,6 +414,7 @@ public class Thing {
      */
     public void setUiHref(String href) {
         this.uiHref = href;
+        this.descriptionVersion.incrementAndGet();
     }
 
     /**
@@ -204,11 +429,51 @@ public class Thing {
             value.setHrefPrefix(prefix);
         });
 
-        this.actions.forEach((actionName, list) -> {
-            list.forEach((action) -> {
-                action.setHrefPrefix(prefix);
-            });
+        this.actions.iterator().forEachRemaining((action) -> {
+            action.setHrefPrefix(prefix);
         });
+        this.descriptionVersion.incrementAndGet();
+    }
+
+    /**
+     * Get the version of this thing's description, which changes whenever
+     * a property, action or event is added, or an href changes.
+     * <p>
+     * The version is only bumped once a change is complete, so a description
+     * written after reading it is at least as new as the version.
+     *
+     * @return The version.
+     */
+    long getDescriptionVersion() {
+        return this.descriptionVersion.get();
+    }
+
+    /**
+     * Get the mailbox this thing's mutations and notifications run on.
+     *
+     * @return The mailbox, or null if they run on the calling thread.
+     */
+    public Mailbox getMailbox() {
+        return this.mailbox;
+    }
+
+    /**
+     * Run all mutations and notifications for this thing serially on a
+     * mailbox.
+     * <p>
+     * Property writes, actions and events are applied in arrival order on the
+     * mailbox, with the caller waiting for the result. Notifications from
+     * other threads, e.g. sensor loops or running actions, are queued without
+     * waiting. Reads are not routed through the mailbox.
+     * <p>
+     * Since writes wait for the mailbox, code running on it, e.g. a value
+     * forwarder, should not write to another thing whose mailbox shares the
+     * same pool, or it may deadlock; see Mailbox.
+     *
+     * @param mailbox The mailbox, or null to run on the calling thread
+     */
+    public void setMailbox(Mailbox mailbox) {
+        this.mailbox = mailbox;
     }
 
     /**
@@ -274,6 +539,20 @@ public class Thing {
         return obj;
     }
 
+    /**
+     * Write the thing's properties, as returned by getPropertyDescriptions().
+     *
+     * @param writer The writer to write to
+     */
+    public void writePropertyDescriptions(JsonWriter writer) {
+        writer.beginObject();
+        this.properties.forEach((name, value) -> {
+            writer.name(name);
+            value.writePropertyDescription(writer);
+        });
+        writer.endObject();
+    }
+
     /**
      * Get the thing's actions as a JSONArray.
      *
@@ -282,20 +561,40 @@ public class Thing {
      */
     public JSONArray getActionDescriptions(String actionName) {
         JSONArray array = new JSONArray();
+        this.getActionIndex(actionName).iterator().forEachRemaining((action) -> {
+            array.put(action.asActionDescription());
+        });
+        return array;
+    }
+
+    /**
+     * Write the thing's actions, as returned by getActionDescriptions().
+     *
+     * @param writer     The writer to write to
+     * @param actionName Optional action name to write descriptions for
+     */
+    public void writeActionDescriptions(JsonWriter writer, String actionName) {
+        writer.beginArray();
+        this.getActionIndex(actionName).iterator().forEachRemaining((action) -> {
+            action.writeActionDescription(writer);
+        });
+        writer.endArray();
+    }
 
+    /**
+     * Get the index of the thing's actions, which lists them in the order
+     * they were requested.
+     *
+     * @param actionName Optional action name to get the index for
+     * @return The index, which is empty if there is no such action.
+     */
+    TimeIndex<Action> getActionIndex(String actionName) {
         if (actionName == null) {
-            this.actions.forEach((name, list) -> {
-                list.forEach((action) -> {
-                    array.put(action.asActionDescription());
-                });
-            });
-        } else if (this.actions.containsKey(actionName)) {
-            this.actions.get(actionName).forEach((action) -> {
-                array.put(action.asActionDescription());
-            });
+            return this.actions;
         }
 
-        return array;
+        TimeIndex<Action> index = this.actionsByName.get(actionName);
+        return index == null ? new TimeIndex<>() : index;
     }
 
     /**
@@ -306,20 +605,40 @@ public class Thing {
      */
     public JSONArray getEventDescriptions(String eventName) {
         JSONArray array = new JSONArray();
+        this.getEventIndex(eventName).iterator().forEachRemaining((event) -> {
+            array.put(event.asEventDescription());
+        });
+        return array;
+    }
+
+    /**
+     * Write the thing's events, as returned by getEventDescriptions().
+     *
+     * @param writer    The writer to write to
+     * @param eventName Optional event name to write descriptions for
+     */
+    public void writeEventDescriptions(JsonWriter writer, String eventName) {
+        writer.beginArray();
+        this.getEventIndex(eventName).iterator().forEachRemaining((event) -> {
+            event.writeEventDescription(writer);
+        });
+        writer.endArray();
+    }
 
+    /**
+     * Get the index of the thing's events, which lists them in the order
+     * they occurred.
+     *
+     * @param eventName Optional event name to get the index for
+     * @return The index, which is empty if there is no such event.
+     */
+    TimeIndex<Event> getEventIndex(String eventName) {
         if (eventName == null) {
-            this.events.forEach((event) -> {
-                array.put(event.asEventDescription());
-            });
-        } else {
-            this.events.forEach((event) -> {
-                if (event.getName().equals(eventName)) {
-                    array.put(event.asEventDescription());
-                }
-            });
+            return this.events;
         }
 
-        return array;
+        TimeIndex<Event> index = this.eventsByName.get(eventName);
+        return index == null ? new TimeIndex<>() : index;
     }
 
     /**
@@ -327,9 +646,11 @@ public class Thing {
      *
      * @param property Property to add.
      */
-    public void addProperty(Property property) {
+    public synchronized void addProperty(Property property) {
         property.setHrefPrefix(this.hrefPrefix);
         this.properties.put(property.getName(), property);
+        this.updatePropertyVersion(property);
+        this.descriptionVersion.incrementAndGet();
     }
 
     /**
@@ -337,9 +658,11 @@ public class Thing {
      *
      * @param property Property to remove.
      */
-    public void removeProperty(Property property) {
+    public synchronized void removeProperty(Property property) {
         if (this.properties.containsKey(property.getName())) {
             this.properties.remove(property.getName());
+            this.propertyChanges.remove(property.getVersion());
+            this.descriptionVersion.incrementAndGet();
         }
     }
 
@@ -386,6 +709,62 @@ public class Thing {
         return properties;
     }
 
+    /**
+     * Get the current property version, which is incremented whenever a
+     * property changes.
+     *
+     * @return The version.
+     */
+    public synchronized long getPropertyVersion() {
+        return this.propertyVersion;
+    }
+
+    /**
+     * Get the properties which changed since a given version, waiting for a
+     * change if there is none yet.
+     * <p>
+     * A version newer than the current one, e.g. from before a server
+     * restart, is treated as 0, i.e. all properties are returned.
+     *
+     * @param since   Property version the caller last saw
+     * @param timeout Maximum time to wait for a change, in milliseconds
+     * @return JSON object with the current "version" and the changed
+     * "properties", as propertyName -&gt; value.
+     */
+    public synchronized JSONObject getPropertyChanges(long since,
+                                                      long timeout) {
+        if (since > this.propertyVersion) {
+            since = 0;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (this.propertyVersion <= since && remaining > 0) {
+            try {
+                this.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        // Each property is indexed by the version of its last change, so
+        // only the changed properties are visited.
+        JSONObject properties = new JSONObject();
+        this.propertyChanges.tailMap(since, false)
+                            .forEach((version, property) -> {
+                                properties.put(property.getName(),
+                                               property.getValue());
+                            });
+
+        JSONObject obj = new JSONObject();
+        obj.put("version", this.propertyVersion);
+        obj.put("properties", properties);
+        return obj;
+    }
+
     /**
      * Determine whether or not this thing has a given property.
      *
@@ -411,7 +790,35 @@ public class Thing {
             return;
         }
 
-        prop.setValue(value);
+        this.runSerially(() -> {
+            prop.setValue(value);
+            return null;
+        });
+    }
+
+    /**
+     * Set a property value, only if the property has not changed since the
+     * given version.
+     *
+     * @param propertyName    Name of the property to set
+     * @param value           Value to set
+     * @param expectedVersion The property version the caller last saw
+     * @param <T>             Type of the property value
+     * @throws PropertyVersionError If the property version does not match.
+     * @throws PropertyError        If value could not be set.
+     */
+    public <T> void setProperty(String propertyName,
+                                T value,
+                                long expectedVersion) throws PropertyError {
+        Property<T> prop = this.findProperty(propertyName);
+        if (prop == null) {
+            return;
+        }
+
+        this.runSerially(() -> {
+            prop.setValue(value, expectedVersion);
+            return null;
+        });
     }
 
     /**
@@ -421,14 +828,16 @@ public class Thing {
      * @param actionId   ID of the action
      * @return The requested action if found, else null.
      */
-    public Action getAction(String actionName, String actionId) {
-        if (!this.actions.containsKey(actionName)) {
+    public synchronized Action getAction(String actionName,
+                                         String actionId) {
+        if (!this.actionsByName.containsKey(actionName)) {
             return null;
         }
 
-        List<Action> actions = this.actions.get(actionName);
-        for (int i = 0; i < actions.size(); ++i) {
-            Action action = actions.get(i);
+        Iterator<Action> actions =
+                this.actionsByName.get(actionName).iterator();
+        while (actions.hasNext()) {
+            Action action = actions.next();
             if (actionId.equals(action.getId())) {
                 return action;
             }
@@ -443,8 +852,14 @@ public class Thing {
      * @param event The event that occurred.
      */
     public void addEvent(Event event) {
-        this.events.add(event);
-        this.eventNotify(event);
+        this.runSerially(() -> {
+            TimeIndex.Key key = this.events.add(event.getTimeMillis(), event);
+            this.eventsByName.computeIfAbsent(event.getName(),
+                                              (name) -> new TimeIndex<>())
+                             .put(key, event);
+            this.sendEvent(event);
+            return null;
+        });
     }
 
     /**
@@ -460,197 +875,1271 @@ public class Thing {
         }
 
         this.availableEvents.put(name, new AvailableEvent(metadata));
+        this.descriptionVersion.incrementAndGet();
     }
 
     /**
      * Perform an action on the thing.
+     * <p>
+     * If the action declares a "maxConcurrent" limit which has been reached,
+     * the "queuePolicy" metadata decides what happens: "queue" (the default)
+     * holds the new action until another one finishes, "replaceOldest"
+     * cancels the oldest unfinished one, and "reject" refuses the new one.
      *
      * @param actionName Name of the action
      * @param input      Any action inputs
      * @return The action that was created.
+     * @throws ActionLimitError If the action was rejected by its limit.
+     * @throws ActionError      If the action's factory failed.
      */
     public Action performAction(String actionName, JSONObject input) {
-        if (!this.availableActions.containsKey(actionName)) {
-            return null;
+        return this.performAction(actionName, input, null);
+    }
+
+    /**
+     * Perform an action on the thing, unless a request with the same
+     * idempotency key was already made for this action.
+     * <p>
+     * A repeated request returns the original action, which is neither
+     * created nor started again. The input of a repeated request is not
+     * compared with the original one. Keys are remembered for a limited time,
+     * see {@link #setIdempotencyCache(int, long)}.
+     *
+     * @param actionName     Name of the action
+     * @param input          Any action inputs
+     * @param idempotencyKey Client-chosen key identifying the request, or
+     *                       null
+     * @return The action that was created, or the original action.
+     * @throws ActionLimitError If the action was rejected by its limit.
+     * @throws ActionError      If the action's factory failed.
+     */
+    public Action performAction(String actionName,
+                                JSONObject input,
+                                String idempotencyKey) {
+        ActionRequest request =
+                this.requestAction(actionName, input, idempotencyKey);
+        return request == null ? null : request.getAction();
+    }
+
+    /**
+     * Perform an action on the thing, as
+     * {@link #performAction(String, JSONObject, String)} does, and tell
+     * whether the action was created or repeated.
+     *
+     * @param actionName     Name of the action
+     * @param input          Any action inputs
+     * @param idempotencyKey Client-chosen key identifying the request, or
+     *                       null
+     * @return The request, or null if the action could not be created.
+     * @throws ActionLimitError If the action was rejected by its limit.
+     * @throws ActionError      If the action's factory failed.
+     */
+    ActionRequest requestAction(String actionName,
+                                JSONObject input,
+                                String idempotencyKey) {
+        return this.runSerially(() -> this.createAction(actionName,
+                                                        input,
+                                                        idempotencyKey));
+    }
+
+    /**
+     * Set how many idempotency keys are remembered, and for how long.
+     *
+     * @param size Maximum number of keys
+     * @param ttl  Time after which a key is forgotten, in milliseconds
+     */
+    public synchronized void setIdempotencyCache(int size, long ttl) {
+        this.idempotencyCacheSize = Math.max(0, size);
+        this.idempotencyKeyTtl = ttl;
+
+        Iterator<IdempotentAction> it =
+                this.idempotencyCache.values().iterator();
+        while (it.hasNext() &&
+                this.idempotencyCache.size() > this.idempotencyCacheSize) {
+            it.next();
+            it.remove();
         }
+    }
 
-        AvailableAction actionType = this.availableActions.get(actionName);
-        if (!actionType.validateActionInput(input)) {
-            return null;
+    /**
+     * Create an action and notify subscribers.
+     * <p>
+     * The action's factory runs without holding the thing's lock, as it is
+     * user code which may be slow or call back into the thing. The
+     * idempotency key and the action's limit are checked again once the
+     * action is built, and the action is dropped if an equal request got in
+     * first.
+     *
+     * @param actionName     Name of the action
+     * @param input          Any action inputs
+     * @param idempotencyKey Key identifying the request, or null
+     * @return The request, with the action that was created or the original
+     * action, or null if the action could not be created.
+     * @throws ActionError If the action's factory failed.
+     */
+    private ActionRequest createAction(String actionName,
+                                       JSONObject input,
+                                       String idempotencyKey) {
+        String cacheKey = idempotencyKey == null ?
+                null :
+                String.format("%s/%s", actionName, idempotencyKey);
+
+        AvailableAction actionType;
+        synchronized (this) {
+            if (cacheKey != null) {
+                Action original = this.findIdempotentAction(cacheKey);
+                if (original != null) {
+                    return new ActionRequest(original, true);
+                }
+            }
+
+            actionType = this.availableActions.get(actionName);
+            if (actionType == null ||
+                    !actionType.validateActionInput(input)) {
+                return null;
+            }
         }
 
-        Class cls = actionType.getCls();
+        Action action;
         try {
-            Constructor constructor =
-                    cls.getConstructor(Thing.class, JSONObject.class);
-            Action action =
-                    (Action)constructor.newInstance(new Object[]{this, input});
-            action.setHrefPrefix(this.hrefPrefix);
-            this.actionNotify(action);
-            this.actions.get(actionName).add(action);
-            return action;
-        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
-            System.out.println(e);
+            action = actionType.getFactory().apply(this, input);
+        } catch (RuntimeException e) {
+            throw new ActionError(String.format("Could not create %s action: %s",
+                                                actionName,
+                                                e.getMessage()),
+                                  e);
+        }
+
+        if (action == null) {
             return null;
         }
+
+        return this.addAction(actionName, actionType, action, cacheKey);
     }
 
     /**
-     * Remove an existing action.
+     * Add a newly created action and notify subscribers, unless the request
+     * was repeated or the action type was replaced while the action was
+     * built.
      *
-     * @param actionName name of the action
-     * @param actionId   ID of the action
-     * @return Boolean indicating the presence of the action.
+     * @param actionName Name of the action
+     * @param actionType The action's type, as it was when the action was
+     *                   requested
+     * @param action     The new action
+     * @param cacheKey   The action name and idempotency key, or null
+     * @return The request, with the new action or the original action, or
+     * null if the action type was replaced.
+     * @throws ActionLimitError If the action was rejected by its limit.
      */
-    public boolean removeAction(String actionName, String actionId) {
-        Action action = this.getAction(actionName, actionId);
-        if (action == null) {
-            return false;
+    private synchronized ActionRequest addAction(String actionName,
+                                                 AvailableAction actionType,
+                                                 Action action,
+                                                 String cacheKey) {
+        if (cacheKey != null) {
+            Action original = this.findIdempotentAction(cacheKey);
+            if (original != null) {
+                return new ActionRequest(original, true);
+            }
         }
 
-        action.cancel();
-        this.actions.get(actionName).remove(action);
-        return true;
+        if (this.availableActions.get(actionName) != actionType) {
+            return null;
+        }
+
+        if (actionType.isFull()) {
+            switch (actionType.getQueuePolicy()) {
+                case "reject":
+                    throw new ActionLimitError(String.format(
+                            "Too many concurrent %s actions",
+                            actionName));
+                case "replaceOldest":
+                    for (Action oldest : actionType.getAdmitted()) {
+                        if (!oldest.isCancelled()) {
+                            oldest.cancel();
+                            oldest.abort();
+                            break;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        action.setHrefPrefix(this.hrefPrefix);
+        this.sendActionStatus(action);
+        TimeIndex.Key key =
+                this.actions.add(action.getTimeRequestedMillis(), action);
+        this.actionsByName.get(actionName).put(key, action);
+        actionType.getAdmitted().addLast(action);
+
+        if (cacheKey != null && this.idempotencyCacheSize > 0) {
+            this.idempotencyCache.put(cacheKey,
+                                      new IdempotentAction(action,
+                                                           System.currentTimeMillis() +
+                                                                   this.idempotencyKeyTtl));
+        }
+
+        return new ActionRequest(action, false);
     }
 
     /**
-     * Add an available action.
+     * Look up the action created for an idempotency key, dropping expired
+     * keys on the way.
      *
-     * @param name     Name of the action
-     * @param metadata Action metadata, i.e. type, description, etc., as a
-     *                 JSONObject
-     * @param cls      Class to instantiate for this action
+     * @param cacheKey The action name and idempotency key
+     * @return The action if the key is known, else null.
      */
-    public void addAvailableAction(String name,
-                                   JSONObject metadata,
-                                   Class cls) {
-        if (metadata == null) {
-            metadata = new JSONObject();
+    private Action findIdempotentAction(String cacheKey) {
+        // Keys are kept in insertion order and mostly share the same
+        // time-to-live, so the expired ones are usually at the front.
+        long now = System.currentTimeMillis();
+        Iterator<IdempotentAction> it =
+                this.idempotencyCache.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getExpires() > now) {
+                break;
+            }
+
+            it.remove();
+        }
+
+        IdempotentAction entry = this.idempotencyCache.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.getExpires() <= now) {
+            this.idempotencyCache.remove(cacheKey);
+            return null;
         }
 
-        this.availableActions.put(name, new AvailableAction(metadata, cls));
-        this.actions.put(name, new ArrayList<>());
+        return entry.getAction();
     }
 
     /**
-     * Add a new websocket subscriber.
+     * Start performing an action in the background.
      *
-     * @param ws The websocket
+     * @param action The action to start
      */
-    public void addSubscriber(WebThingServer.ThingHandler.ThingWebSocket ws) {
-        this.subscribers.add(ws);
+    public void startAction(Action action) {
+        this.runSerially(() -> {
+            this.scheduleAction(action);
+            return null;
+        });
     }
 
     /**
-     * Remove a websocket subscriber.
+     * Start an action, or queue it if its action type is already running as
+     * many instances as it allows, or its lane is taken. An action which was
+     * already started or queued is left alone.
      *
-     * @param ws The websocket
+     * @param action The action to start
      */
-    public void removeSubscriber(WebThingServer.ThingHandler.ThingWebSocket ws) {
-        if (this.subscribers.contains(ws)) {
-            this.subscribers.remove(ws);
+    private synchronized void scheduleAction(Action action) {
+        AvailableAction actionType =
+                this.availableActions.get(action.getName());
+        if (actionType == null) {
+            action.launch(this.actionExecutor);
+            return;
         }
 
-        this.availableEvents.forEach((name, value) -> {
-            this.removeEventSubscriber(name, ws);
-        });
+        if (action.isFinished() ||
+                actionType.getRunning().contains(action) ||
+                this.waitingActions.contains(action)) {
+            return;
+        }
+
+        if (!this.canRun(actionType)) {
+            this.queueAction(actionType, action);
+            return;
+        }
+
+        this.runAction(actionType, action);
     }
 
     /**
-     * Add a new websocket subscriber to an event.
+     * Determine whether an action of the given type could start right now.
      *
-     * @param name Name of the event
-     * @param ws   The websocket
+     * @param actionType The action type
+     * @return Boolean indicating whether there is a free slot.
      */
-    public void addEventSubscriber(String name,
-                                   WebThingServer.ThingHandler.ThingWebSocket ws) {
-        if (this.availableEvents.containsKey(name)) {
-            this.availableEvents.get(name).addSubscriber(ws);
-        }
+    private boolean canRun(AvailableAction actionType) {
+        return !actionType.isBusy() &&
+                (actionType.getLane() == null ||
+                 !this.lanes.containsKey(actionType.getLane()));
     }
 
     /**
-     * Remove a websocket subscriber from an event.
+     * Queue an action behind all waiting actions of the same or a higher
+     * priority.
      *
-     * @param name Name of the event
-     * @param ws   The websocket
+     * @param actionType The action's type
+     * @param action     The action to queue
      */
-    public void removeEventSubscriber(String name,
-                                      WebThingServer.ThingHandler.ThingWebSocket ws) {
-        if (this.availableEvents.containsKey(name)) {
-            this.availableEvents.get(name).removeSubscriber(ws);
+    private void queueAction(AvailableAction actionType, Action action) {
+        int index = this.waitingActions.size();
+        while (index > 0) {
+            Action ahead = this.waitingActions.get(index - 1);
+            if (this.availableActions.get(ahead.getName()).getPriority() >=
+                    actionType.getPriority()) {
+                break;
+            }
+
+            index--;
         }
+
+        this.waitingActions.add(index, action);
+        this.updateQueuePositions(index);
     }
 
     /**
-     * Notify all subscribers of a property change.
+     * Update the queue positions of waiting actions.
      *
-     * @param property The property that changed
+     * @param from Index of the first action whose position may have changed
      */
-    public void propertyNotify(Property property) {
-        JSONObject json = new JSONObject();
-        JSONObject inner = new JSONObject();
-
-        inner.put(property.getName(), property.getValue());
-        json.put("messageType", "propertyStatus");
-        json.put("data", inner);
-
-        String message = json.toString();
-
-        this.subscribers.forEach((subscriber) -> {
-            subscriber.sendMessage(message);
-        });
+    private void updateQueuePositions(int from) {
+        for (int i = from; i < this.waitingActions.size(); ++i) {
+            this.waitingActions.get(i).setQueuePosition(i + 1);
+        }
     }
 
     /**
-     * Notify all subscribers of an action status change.
+     * Submit an action to the executor and set up its timeout, if any.
      *
-     * @param action The action whose status changed
+     * @param actionType The action's type
+     * @param action     The action to run
      */
-    public void actionNotify(Action action) {
-        JSONObject json = new JSONObject();
+    private void runAction(AvailableAction actionType, Action action) {
+        actionType.getRunning().add(action);
+        if (actionType.getLane() != null) {
+            this.lanes.put(actionType.getLane(), action);
+        }
 
-        json.put("messageType", "actionStatus");
-        json.put("data", action.asActionDescription());
+        action.setQueuePosition(0);
+        action.launch(this.actionExecutor);
 
-        String message = json.toString();
+        if (actionType.getMaxDuration() > 0) {
+            action.setTimeout(ACTION_TIMEOUTS.schedule(action::expire,
+                                                       actionType.getMaxDuration(),
+                                                       TimeUnit.MILLISECONDS));
+        }
+    }
 
-        this.subscribers.forEach((subscriber) -> {
-            subscriber.sendMessage(message);
-        });
+    /**
+     * Release an action's slot once it has finished, and start the waiting
+     * actions which can now run.
+     *
+     * @param action The action which finished
+     */
+    void actionEnded(Action action) {
+        this.dispatch(() -> this.releaseAction(action));
     }
 
     /**
-     * Notify all subscribers of an event.
+     * Release an action's slot and start waiting actions.
      *
-     * @param event The event that occurred
+     * @param action The action which finished
      */
-    public void eventNotify(Event event) {
-        String eventName = event.getName();
-        if (!this.availableEvents.containsKey(eventName)) {
+    private synchronized void releaseAction(Action action) {
+        AvailableAction actionType =
+                this.availableActions.get(action.getName());
+        if (actionType == null) {
             return;
         }
 
-        JSONObject json = new JSONObject();
+        actionType.getAdmitted().remove(action);
 
-        json.put("messageType", "event");
-        json.put("data", event.asEventDescription());
+        int index = this.waitingActions.indexOf(action);
+        if (index >= 0) {
+            this.waitingActions.remove(index);
+            action.setQueuePosition(0);
+            this.updateQueuePositions(index);
+            return;
+        }
 
-        String message = json.toString();
+        if (!actionType.getRunning().remove(action)) {
+            return;
+        }
 
-        this.availableEvents.get(eventName)
-                            .getSubscribers()
-                            .forEach((subscriber) -> {
-                                subscriber.sendMessage(message);
-                            });
+        if (actionType.getLane() != null &&
+                this.lanes.get(actionType.getLane()) == action) {
+            this.lanes.remove(actionType.getLane());
+        }
+
+        // Start waiting actions in priority order, skipping those whose type
+        // or lane is still busy.
+        for (int i = 0; i < this.waitingActions.size(); ) {
+            Action next = this.waitingActions.get(i);
+            AvailableAction nextType =
+                    this.availableActions.get(next.getName());
+            if (this.canRun(nextType)) {
+                this.waitingActions.remove(i);
+                this.runAction(nextType, next);
+            } else {
+                ++i;
+            }
+        }
+
+        this.updateQueuePositions(0);
     }
 
     /**
-     * Class to describe an event available for subscription.
+     * Set the executor which runs this thing's actions.
+     *
+     * @param executor The executor
      */
-    private class AvailableEvent {
+    public void setActionExecutor(ExecutorService executor) {
+        this.actionExecutor = executor;
+    }
+
+    /**
+     * Remove an existing action, cancelling it if it has not finished yet.
+     *
+     * @param actionName name of the action
+     * @param actionId   ID of the action
+     * @return Boolean indicating the presence of the action.
+     */
+    public boolean removeAction(String actionName, String actionId) {
+        return this.runSerially(() -> this.deleteAction(actionName,
+                                                        actionId));
+    }
+
+    /**
+     * Cancel and remove an existing action.
+     *
+     * @param actionName name of the action
+     * @param actionId   ID of the action
+     * @return Boolean indicating the presence of the action.
+     */
+    private synchronized boolean deleteAction(String actionName,
+                                              String actionId) {
+        Action action = this.getAction(actionName, actionId);
+        if (action == null) {
+            return false;
+        }
+
+        action.cancel();
+        action.abort();
+        this.actions.remove(action.getTimeRequestedMillis(), action);
+        this.actionsByName.get(actionName)
+                          .remove(action.getTimeRequestedMillis(), action);
+        return true;
+    }
+
+    /**
+     * Add an available action.
+     * <p>
+     * Besides the usual Thing Description fields, the metadata may contain
+     * "maxDuration", in milliseconds, after which a running action is
+     * interrupted and marked as "timedOut"; "maxConcurrent", the number of
+     * unfinished instances allowed at once; and "queuePolicy", which is one of
+     * "queue", "reject" or "replaceOldest".
+     * <p>
+     * Actions declaring the same "lane", e.g. the physical resource they
+     * drive, run one at a time on this thing, in order of their "priority"
+     * (higher first, default 0) and then of arrival. Actions of different
+     * lanes or things run in parallel.
+     * <p>
+     * These settings are left out of the thing description. An action which
+     * timed out keeps its slot, and its lane, until its performAction()
+     * returns.
+     *
+     * @param name     Name of the action
+     * @param metadata Action metadata, i.e. type, description, etc., as a
+     *                 JSONObject
+     * @param cls      Class to instantiate for this action, which must have a
+     *                 public (Thing, JSONObject) constructor
+     * @throws IllegalArgumentException If the class cannot be instantiated
+     *                                  or the queue policy is unknown.
+     */
+    public void addAvailableAction(String name,
+                                   JSONObject metadata,
+                                   Class cls) {
+        this.addAvailableAction(name, metadata, Utils.actionFactory(cls));
+    }
+
+    /**
+     * Add an available action, created by a factory such as a constructor
+     * reference, e.g. FadeAction::new.
+     * <p>
+     * See {@link #addAvailableAction(String, JSONObject, Class)} for the
+     * supported metadata.
+     *
+     * @param name     Name of the action
+     * @param metadata Action metadata, i.e. type, description, etc., as a
+     *                 JSONObject
+     * @param factory  Function creating the action from the thing and the
+     *                 action inputs
+     * @throws IllegalArgumentException If the queue policy is unknown.
+     */
+    public void addAvailableAction(String name,
+                                   JSONObject metadata,
+                                   BiFunction<Thing, JSONObject, Action> factory) {
+        if (metadata == null) {
+            metadata = new JSONObject();
+        }
+
+        this.availableActions.put(name, new AvailableAction(metadata, factory));
+        this.actionsByName.put(name, new TimeIndex<>());
+        this.descriptionVersion.incrementAndGet();
+    }
+
+    /**
+     * Add a new subscriber.
+     *
+     * @param subscriber The subscriber, e.g. a websocket
+     */
+    public synchronized void addSubscriber(Subscriber subscriber) {
+        this.subscribers.add(subscriber);
+    }
+
+    /**
+     * Add a subscriber which is resuming a previous stream.
+     * <p>
+     * Every message sent after the given sequence number is replayed to the
+     * subscriber before it receives any new messages. If part of that gap has
+     * already been evicted from the replay buffer, a snapshot of the current
+     * state is sent instead. Events are only replayed to subscribers of the
+     * event, so event subscriptions have to be added again first.
+     *
+     * @param subscriber   The subscriber, e.g. a websocket
+     * @param lastSequence Sequence number of the last message the subscriber
+     *                     received
+     */
+    public void addSubscriber(Subscriber subscriber, long lastSequence) {
+        synchronized (this) {
+            this.subscribers.add(subscriber);
+            this.replay(subscriber, lastSequence);
+        }
+
+        this.flush();
+    }
+
+    /**
+     * Add a new subscriber and send it a snapshot of the current thing state
+     * as its first message.
+     * <p>
+     * The snapshot is taken atomically with the registration, so the
+     * subscriber neither misses nor receives twice any update around the
+     * time it subscribed.
+     *
+     * @param subscriber The subscriber, e.g. a websocket
+     */
+    public void addSubscriberWithSnapshot(Subscriber subscriber) {
+        synchronized (this) {
+            this.subscribers.add(subscriber);
+            this.post(Collections.singleton(subscriber),
+                      this.sequence,
+                      this.snapshotMessage());
+        }
+
+        this.flush();
+    }
+
+    /**
+     * Add a new subscriber to all property, action and event messages, e.g.
+     * for a server-sent event stream.
+     *
+     * @param subscriber The subscriber
+     */
+    public synchronized void addEventStreamSubscriber(Subscriber subscriber) {
+        this.subscribers.add(subscriber);
+        this.availableEvents.forEach((name, value) -> {
+            value.addSubscriber(subscriber);
+        });
+    }
+
+    /**
+     * Add a subscriber to all property, action and event messages which is
+     * resuming a previous stream.
+     *
+     * @param subscriber   The subscriber
+     * @param lastSequence Sequence number of the last message the subscriber
+     *                     received
+     */
+    public void addEventStreamSubscriber(Subscriber subscriber,
+                                         long lastSequence) {
+        synchronized (this) {
+            this.addEventStreamSubscriber(subscriber);
+            this.replay(subscriber, lastSequence);
+        }
+
+        this.flush();
+    }
+
+    /**
+     * Remove a subscriber.
+     *
+     * @param subscriber The subscriber
+     */
+    public synchronized void removeSubscriber(Subscriber subscriber) {
+        if (this.subscribers.contains(subscriber)) {
+            this.subscribers.remove(subscriber);
+        }
+
+        // Messages already queued are still sent.
+        this.outboxes.remove(subscriber);
+
+        this.availableEvents.forEach((name, value) -> {
+            this.removeEventSubscriber(name, subscriber);
+        });
+    }
+
+    /**
+     * Add a new subscriber to an event.
+     *
+     * @param name       Name of the event
+     * @param subscriber The subscriber, e.g. a websocket
+     */
+    public synchronized void addEventSubscriber(String name,
+                                                Subscriber subscriber) {
+        if (this.availableEvents.containsKey(name)) {
+            this.availableEvents.get(name).addSubscriber(subscriber);
+        }
+    }
+
+    /**
+     * Remove a subscriber from an event.
+     *
+     * @param name       Name of the event
+     * @param subscriber The subscriber
+     */
+    public synchronized void removeEventSubscriber(String name,
+                                                   Subscriber subscriber) {
+        if (this.availableEvents.containsKey(name)) {
+            this.availableEvents.get(name).removeSubscriber(subscriber);
+        }
+    }
+
+    /**
+     * Get the sequence number of the most recent message sent to subscribers.
+     *
+     * @return The sequence number.
+     */
+    public synchronized long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Set the number of messages kept for replay to resuming subscribers.
+     *
+     * @param size The maximum number of buffered messages
+     */
+    public synchronized void setReplayBufferSize(int size) {
+        this.replayBufferSize = Math.max(0, size);
+
+        while (this.replayBuffer.size() > this.replayBufferSize) {
+            this.replayBuffer.removeFirst();
+        }
+    }
+
+    /**
+     * Set the number of messages which may wait to be sent to each
+     * subscriber. A subscriber which falls further behind is removed and
+     * disconnected, see {@link Subscriber#disconnect()}.
+     * <p>
+     * Resuming subscribers are sent up to the whole replay buffer at once, so
+     * this should be at least the replay buffer size.
+     *
+     * @param size The maximum number of waiting messages
+     */
+    public synchronized void setSubscriberQueueSize(int size) {
+        this.subscriberQueueSize = Math.max(1, size);
+    }
+
+    /**
+     * Set the executor which sends messages to subscribers. Each subscriber
+     * is sent its messages by one task at a time, so a subscriber which
+     * blocks only holds up its own messages, and one thread of the
+     * executor.
+     *
+     * @param executor The executor
+     */
+    public void setDeliveryExecutor(Executor executor) {
+        this.deliveryExecutor = executor;
+    }
+
+    /**
+     * Notify all subscribers of a property change.
+     *
+     * @param property The property that changed
+     */
+    public void propertyNotify(Property property) {
+        this.dispatch(() -> this.sendPropertyStatus(property));
+    }
+
+    /**
+     * Notify all subscribers of an action status change.
+     *
+     * @param action The action whose status changed
+     */
+    public void actionNotify(Action action) {
+        this.dispatch(() -> this.sendActionStatus(action));
+    }
+
+    /**
+     * Notify all subscribers of an event.
+     *
+     * @param event The event that occurred
+     */
+    public void eventNotify(Event event) {
+        this.dispatch(() -> this.sendEvent(event));
+    }
+
+    /**
+     * Run a task on this thing's mailbox and wait for its result, or run it
+     * directly if there is no mailbox. Messages the task queued for
+     * subscribers are handed over for delivery once it is done.
+     *
+     * @param task The task to run
+     * @param <R>  Type of the result
+     * @param <E>  Type of the exception the task may throw
+     * @return The task's result.
+     * @throws E If the task failed.
+     */
+    private <R, E extends Exception> R runSerially(Mailbox.Task<R, E> task)
+            throws E {
+        Mailbox mailbox = this.mailbox;
+        if (mailbox == null) {
+            try {
+                return task.run();
+            } finally {
+                this.flush();
+            }
+        }
+
+        return mailbox.call(() -> {
+            try {
+                return task.run();
+            } finally {
+                this.flush();
+            }
+        });
+    }
+
+    /**
+     * Queue a task on this thing's mailbox, or run it directly if there is no
+     * mailbox or this already is the mailbox thread. Messages the task queued
+     * for subscribers are handed over for delivery once it is done.
+     *
+     * @param task The task to run
+     */
+    private void dispatch(Runnable task) {
+        Runnable flushed = () -> {
+            try {
+                task.run();
+            } finally {
+                this.flush();
+            }
+        };
+
+        Mailbox mailbox = this.mailbox;
+        if (mailbox == null || mailbox.isCurrentThread()) {
+            flushed.run();
+        } else {
+            mailbox.execute(flushed);
+        }
+    }
+
+    /**
+     * Queue a message for subscribers.
+     * <p>
+     * Messages are queued while holding the lock, so that they are numbered
+     * and queued in the same order. Each subscriber has its own bounded
+     * queue, which flush() hands to the delivery executor once the lock is
+     * released, so that a slow subscriber does not hold up the thing, nor
+     * the other subscribers. A subscriber whose queue is full is dropped.
+     *
+     * @param recipients The subscribers to send the message to
+     * @param sequence   The message's sequence number
+     * @param message    The serialized message
+     */
+    private void post(Collection<Subscriber> recipients,
+                      long sequence,
+                      String message) {
+        if (recipients.isEmpty()) {
+            return;
+        }
+
+        BufferedMessage buffered = new BufferedMessage(sequence, null, message);
+        for (Subscriber recipient : recipients) {
+            Outbox outbox =
+                    this.outboxes.computeIfAbsent(recipient, Outbox::new);
+            if (!outbox.offer(buffered, this.subscriberQueueSize)) {
+                if (outbox.close()) {
+                    this.overflowed.add(recipient);
+                }
+            } else if (outbox.schedule()) {
+                this.deliveries.add(outbox::drain);
+            }
+        }
+    }
+
+    /**
+     * Hand the subscriber queues with new messages to the delivery executor,
+     * and drop the subscribers which fell too far behind.
+     * <p>
+     * If the current thread holds the lock, this is left for it to do once
+     * it lets go.
+     */
+    private void flush() {
+        if (Thread.holdsLock(this)) {
+            return;
+        }
+
+        List<Runnable> deliveries;
+        List<Subscriber> overflowed;
+        synchronized (this) {
+            if (this.deliveries.isEmpty() && this.overflowed.isEmpty()) {
+                return;
+            }
+
+            deliveries = new ArrayList<>(this.deliveries);
+            overflowed = new ArrayList<>(this.overflowed);
+            this.deliveries.clear();
+            this.overflowed.clear();
+        }
+
+        Executor executor = this.deliveryExecutor;
+        deliveries.forEach(executor::execute);
+
+        for (Subscriber subscriber : overflowed) {
+            this.removeSubscriber(subscriber);
+            executor.execute(() -> {
+                try {
+                    subscriber.disconnect();
+                } catch (RuntimeException e) {
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler()
+                          .uncaughtException(thread, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Send a property status message to all subscribers.
+     *
+     * @param property The property that changed
+     */
+    private synchronized void sendPropertyStatus(Property property) {
+        if (this.properties.get(property.getName()) == property) {
+            this.updatePropertyVersion(property);
+            this.notifyAll();
+        }
+
+        JsonWriter writer = this.writer.reset();
+        writer.beginObject();
+        writer.name("messageType").value("propertyStatus");
+
+        writer.name("data").beginObject();
+        Object value = property.getValue();
+        if (value != null) {
+            writer.name(property.getName()).value(value);
+        }
+        writer.endObject();
+
+        writer.name("versions")
+              .beginObject()
+              .name(property.getName())
+              .value(property.getVersion())
+              .endObject();
+
+        String message = this.sequenceMessage(writer, null);
+        this.post(this.subscribers, this.sequence, message);
+    }
+
+    /**
+     * Send an action status message to all subscribers.
+     *
+     * @param action The action whose status changed
+     */
+    private synchronized void sendActionStatus(Action action) {
+        JsonWriter writer = this.writer.reset();
+        writer.beginObject();
+        writer.name("messageType").value("actionStatus");
+        writer.name("data");
+        action.writeActionDescription(writer);
+
+        String message = this.sequenceMessage(writer, null);
+        this.post(this.subscribers, this.sequence, message);
+    }
+
+    /**
+     * Send an event message to its subscribers.
+     *
+     * @param event The event that occurred
+     */
+    private synchronized void sendEvent(Event event) {
+        String eventName = event.getName();
+        if (!this.availableEvents.containsKey(eventName)) {
+            return;
+        }
+
+        JsonWriter writer = this.writer.reset();
+        writer.beginObject();
+        writer.name("messageType").value("event");
+        writer.name("data");
+        event.writeEventDescription(writer);
+
+        String message = this.sequenceMessage(writer, eventName);
+        this.post(this.availableEvents.get(eventName).getSubscribers(),
+                  this.sequence,
+                  message);
+    }
+
+    /**
+     * Assign the next property version to a changed property.
+     *
+     * @param property The property that changed
+     */
+    private void updatePropertyVersion(Property property) {
+        this.propertyChanges.remove(property.getVersion());
+
+        this.propertyVersion++;
+        property.setVersion(this.propertyVersion);
+        this.propertyChanges.put(this.propertyVersion, property);
+    }
+
+    /**
+     * Replay the messages a resuming subscriber missed, leaving out events
+     * it is not subscribed to.
+     *
+     * @param subscriber   The subscriber
+     * @param lastSequence Sequence number of the last message the subscriber
+     *                     received
+     */
+    private void replay(Subscriber subscriber, long lastSequence) {
+        if (lastSequence == this.sequence) {
+            return;
+        }
+
+        // A sequence number from the future means the stream was restarted,
+        // e.g. by a server restart, so the subscriber has to start over.
+        BufferedMessage oldest = this.replayBuffer.peekFirst();
+        if (lastSequence > this.sequence ||
+                oldest == null ||
+                oldest.getSequence() > lastSequence + 1) {
+            this.post(Collections.singleton(subscriber),
+                      this.sequence,
+                      this.snapshotMessage());
+            return;
+        }
+
+        this.replayBuffer.forEach((buffered) -> {
+            if (buffered.getSequence() <= lastSequence) {
+                return;
+            }
+
+            String eventName = buffered.getEventName();
+            if (eventName != null &&
+                    !this.availableEvents.get(eventName)
+                                         .getSubscribers()
+                                         .contains(subscriber)) {
+                return;
+            }
+
+            this.post(Collections.singleton(subscriber),
+                      buffered.getSequence(),
+                      buffered.getMessage());
+        });
+    }
+
+    /**
+     * Assign the next sequence number to an outgoing message and keep it for
+     * replay.
+     *
+     * @param writer    The writer holding the message to send, with its
+     *                  outermost object still open
+     * @param eventName Name of the event, if the message is one, else null
+     * @return The serialized message.
+     */
+    private String sequenceMessage(JsonWriter writer, String eventName) {
+        this.sequence++;
+        writer.name("sequence").value(this.sequence).endObject();
+
+        String message = writer.toString();
+
+        if (this.replayBufferSize > 0) {
+            if (this.replayBuffer.size() >= this.replayBufferSize) {
+                this.replayBuffer.removeFirst();
+            }
+
+            this.replayBuffer.addLast(new BufferedMessage(this.sequence,
+                                                          eventName,
+                                                          message));
+        }
+
+        return message;
+    }
+
+    /**
+     * Build a snapshot of the current thing state, i.e. all property values
+     * and the status of all actions which have not yet finished.
+     *
+     * @return The serialized snapshot message.
+     */
+    private String snapshotMessage() {
+        JsonWriter writer = this.writer.reset();
+        writer.beginObject();
+        writer.name("messageType").value("snapshot");
+        writer.name("sequence").value(this.sequence);
+        writer.name("data").beginObject();
+
+        writer.name("properties").beginObject();
+        this.properties.forEach((name, property) -> {
+            Object value = property.getValue();
+            if (value != null) {
+                writer.name(name).value(value);
+            }
+        });
+        writer.endObject();
+
+        writer.name("versions").beginObject();
+        this.properties.forEach((name, property) -> {
+            writer.name(name).value(property.getVersion());
+        });
+        writer.endObject();
+
+        writer.name("actions").beginArray();
+        this.actions.iterator().forEachRemaining((action) -> {
+            if (!action.isFinished()) {
+                action.writeActionDescription(writer);
+            }
+        });
+        writer.endArray();
+
+        writer.endObject().endObject();
+        return writer.toString();
+    }
+
+    /**
+     * Class to hold the action a request was answered with.
+     */
+    static class ActionRequest {
+        private final Action action;
+        private final boolean repeated;
+
+        /**
+         * Initialize the object.
+         *
+         * @param action   The action
+         * @param repeated Whether the request repeated an earlier one, and
+         *                 the action is the one created for that
+         */
+        ActionRequest(Action action, boolean repeated) {
+            this.action = action;
+            this.repeated = repeated;
+        }
+
+        /**
+         * Get the action.
+         *
+         * @return The action.
+         */
+        Action getAction() {
+            return this.action;
+        }
+
+        /**
+         * Determine whether the request repeated an earlier one.
+         *
+         * @return Boolean indicating whether the action already existed.
+         */
+        boolean isRepeated() {
+            return this.repeated;
+        }
+    }
+
+    /**
+     * Class to hold an action created for an idempotency key.
+     */
+    private static class IdempotentAction {
+        private final Action action;
+        private final long expires;
+
+        /**
+         * Initialize the object.
+         *
+         * @param action  The action
+         * @param expires Time the key expires, in milliseconds since the epoch
+         */
+        public IdempotentAction(Action action, long expires) {
+            this.action = action;
+            this.expires = expires;
+        }
+
+        /**
+         * Get the action.
+         *
+         * @return The action.
+         */
+        public Action getAction() {
+            return this.action;
+        }
+
+        /**
+         * Get the time the key expires.
+         *
+         * @return The time in milliseconds since the epoch.
+         */
+        public long getExpires() {
+            return this.expires;
+        }
+    }
+
+    /**
+     * Class to hold a sent message for later replay.
+     */
+    private static class BufferedMessage {
+        private final long sequence;
+        private final String eventName;
+        private final String message;
+
+        /**
+         * Initialize the object.
+         *
+         * @param sequence  The message's sequence number
+         * @param eventName Name of the event, if the message is one, else
+         *                  null
+         * @param message   The serialized message
+         */
+        public BufferedMessage(long sequence, String eventName, String message) {
+            this.sequence = sequence;
+            this.eventName = eventName;
+            this.message = message;
+        }
+
+        /**
+         * Get the message's sequence number.
+         *
+         * @return The sequence number.
+         */
+        public long getSequence() {
+            return this.sequence;
+        }
+
+        /**
+         * Get the name of the event the message is about.
+         *
+         * @return The event name, or null if the message is not an event.
+         */
+        public String getEventName() {
+            return this.eventName;
+        }
+
+        /**
+         * Get the serialized message.
+         *
+         * @return The message.
+         */
+        public String getMessage() {
+            return this.message;
+        }
+    }
+
+    /**
+     * Class to hold the messages waiting to be sent to a subscriber.
+     */
+    private static class Outbox {
+        private final Subscriber subscriber;
+        private final Deque<BufferedMessage> messages;
+        private boolean scheduled;
+        private boolean closed;
+
+        /**
+         * Initialize the object.
+         *
+         * @param subscriber The subscriber
+         */
+        public Outbox(Subscriber subscriber) {
+            this.subscriber = subscriber;
+            this.messages = new ArrayDeque<>();
+            this.scheduled = false;
+            this.closed = false;
+        }
+
+        /**
+         * Queue a message.
+         *
+         * @param message  The message
+         * @param capacity Largest number of waiting messages
+         * @return Boolean indicating whether the message was queued, i.e. the
+         * queue is neither full nor closed.
+         */
+        public synchronized boolean offer(BufferedMessage message,
+                                          int capacity) {
+            if (this.closed || this.messages.size() >= capacity) {
+                return false;
+            }
+
+            this.messages.addLast(message);
+            return true;
+        }
+
+        /**
+         * Close the queue, dropping the waiting messages.
+         *
+         * @return Boolean indicating whether it was open.
+         */
+        public synchronized boolean close() {
+            if (this.closed) {
+                return false;
+            }
+
+            this.closed = true;
+            this.messages.clear();
+            return true;
+        }
+
+        /**
+         * Mark the queue as scheduled for delivery, unless it already is.
+         *
+         * @return Boolean indicating whether a delivery task has to be
+         * started.
+         */
+        public synchronized boolean schedule() {
+            if (this.scheduled) {
+                return false;
+            }
+
+            this.scheduled = true;
+            return true;
+        }
+
+        /**
+         * Send the waiting messages, in order, until the queue is empty.
+         */
+        public void drain() {
+            while (true) {
+                BufferedMessage message;
+                synchronized (this) {
+                    message = this.messages.pollFirst();
+                    if (message == null) {
+                        this.scheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    this.subscriber.sendMessage(message.getSequence(),
+                                                message.getMessage());
+                } catch (RuntimeException e) {
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler()
+                          .uncaughtException(thread, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Class to describe an event available for subscription.
+     */
+    private class AvailableEvent {
         private JSONObject metadata;
-        private Set<WebThingServer.ThingHandler.ThingWebSocket> subscribers;
+        private Set<Subscriber> subscribers;
 
         /**
          * Initialize the object.
@@ -672,22 +2161,22 @@ public class Thing {
         }
 
         /**
-         * Add a websocket subscriber to the event.
+         * Add a subscriber to the event.
          *
-         * @param ws The websocket
+         * @param subscriber The subscriber
          */
-        public void addSubscriber(WebThingServer.ThingHandler.ThingWebSocket ws) {
-            this.subscribers.add(ws);
+        public void addSubscriber(Subscriber subscriber) {
+            this.subscribers.add(subscriber);
         }
 
         /**
-         * Remove a websocket subscriber from the event.
+         * Remove a subscriber from the event.
          *
-         * @param ws The websocket
+         * @param subscriber The subscriber
          */
-        public void removeSubscriber(WebThingServer.ThingHandler.ThingWebSocket ws) {
-            if (this.subscribers.contains(ws)) {
-                this.subscribers.remove(ws);
+        public void removeSubscriber(Subscriber subscriber) {
+            if (this.subscribers.contains(subscriber)) {
+                this.subscribers.remove(subscriber);
             }
         }
 
@@ -696,7 +2185,7 @@ public class Thing {
          *
          * @return The set of subscribers.
          */
-        public Set<WebThingServer.ThingHandler.ThingWebSocket> getSubscribers() {
+        public Set<Subscriber> getSubscribers() {
             return this.subscribers;
         }
     }
@@ -706,18 +2195,51 @@ public class Thing {
      */
     private class AvailableAction {
         private JSONObject metadata;
-        private Class cls;
+        private BiFunction<Thing, JSONObject, Action> factory;
         private Schema schema;
+        private long maxDuration;
+        private int maxConcurrent;
+        private String queuePolicy;
+        private String lane;
+        private int priority;
+        private Deque<Action> admitted;
+        private Set<Action> running;
 
         /**
          * Initialize the object.
          *
          * @param metadata The action metadata
-         * @param cls      Class to instantiate for the action
+         * @param factory  Function creating the action
          */
-        public AvailableAction(JSONObject metadata, Class cls) {
-            this.metadata = metadata;
-            this.cls = cls;
+        public AvailableAction(JSONObject metadata,
+                               BiFunction<Thing, JSONObject, Action> factory) {
+            // The scheduling settings are for this thing only, and are left
+            // out of the published description.
+            this.metadata = new JSONObject();
+            for (String key : metadata.keySet()) {
+                if (!ACTION_SCHEDULING.contains(key)) {
+                    this.metadata.put(key, metadata.get(key));
+                }
+            }
+
+            this.factory = factory;
+            this.maxDuration = metadata.optLong("maxDuration", 0);
+            this.maxConcurrent = metadata.optInt("maxConcurrent", 0);
+            this.queuePolicy = metadata.optString("queuePolicy", "queue");
+            this.lane = metadata.optString("lane", null);
+            this.priority = metadata.optInt("priority", 0);
+            this.admitted = new ArrayDeque<>();
+            this.running = new HashSet<>();
+
+            switch (this.queuePolicy) {
+                case "queue":
+                case "reject":
+                case "replaceOldest":
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Unknown queue policy: " + this.queuePolicy);
+            }
 
             if (metadata.has("input")) {
                 JSONObject rawSchema = metadata.getJSONObject("input");
@@ -737,12 +2259,88 @@ public class Thing {
         }
 
         /**
-         * Get the class to instantiate for the action.
+         * Get the function creating the action.
+         *
+         * @return The factory.
+         */
+        public BiFunction<Thing, JSONObject, Action> getFactory() {
+            return this.factory;
+        }
+
+        /**
+         * Get the maximum time an action may run.
+         *
+         * @return The duration in milliseconds, or 0 for no limit.
+         */
+        public long getMaxDuration() {
+            return this.maxDuration;
+        }
+
+        /**
+         * Get the policy for actions beyond the concurrency limit.
+         *
+         * @return The policy.
+         */
+        public String getQueuePolicy() {
+            return this.queuePolicy;
+        }
+
+        /**
+         * Get the unfinished actions, oldest first.
+         *
+         * @return The actions.
+         */
+        public Deque<Action> getAdmitted() {
+            return this.admitted;
+        }
+
+        /**
+         * Get the lane actions of this type run in.
+         *
+         * @return The lane, or null if they do not share one.
+         */
+        public String getLane() {
+            return this.lane;
+        }
+
+        /**
+         * Get the priority of actions of this type.
+         *
+         * @return The priority.
+         */
+        public int getPriority() {
+            return this.priority;
+        }
+
+        /**
+         * Get the actions which are running.
+         *
+         * @return The actions.
+         */
+        public Set<Action> getRunning() {
+            return this.running;
+        }
+
+        /**
+         * Determine whether the concurrency limit is reached by unfinished
+         * actions.
+         *
+         * @return Boolean indicating whether the limit is reached.
+         */
+        public boolean isFull() {
+            return this.maxConcurrent > 0 &&
+                    this.admitted.size() >= this.maxConcurrent;
+        }
+
+        /**
+         * Determine whether the concurrency limit is reached by running
+         * actions.
          *
-         * @return The class.
+         * @return Boolean indicating whether the limit is reached.
          */
-        public Class getCls() {
-            return this.cls;
+        public boolean isBusy() {
+            return this.maxConcurrent > 0 &&
+                    this.running.size() >= this.maxConcurrent;
         }
 
         /**
@@ -0,0 +1,273 @@
+/**
+ * Time-ordered index of actions and events.
+ */
+package io.webthings.webthing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps items in the order of their time, so that a page of them, or those
+ * in a time range, can be found without walking the whole history.
+ * <p>
+ * Each item is keyed by its time and a sequence number, which tells apart
+ * items of the same millisecond. A key is also the cursor handed to clients
+ * to continue a listing: since it names a position in time rather than an
+ * offset, items added later do not shift the pages it leads to.
+ * <p>
+ * All methods may be called concurrently. Iterators are weakly consistent:
+ * they never fail, but may or may not see items added or removed while they
+ * are in use.
+ *
+ * @param <T> The type of the items.
+ */
+class TimeIndex<T> {
+    private static final AtomicLong nextSequence = new AtomicLong();
+    private final ConcurrentSkipListMap<Key, T> entries;
+
+    /**
+     * Initialize the object.
+     */
+    TimeIndex() {
+        this.entries = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * Add an item.
+     *
+     * @param time The item's time, in milliseconds since the epoch
+     * @param item The item
+     * @return The key it was added under, to add it to other indexes with.
+     */
+    Key add(long time, T item) {
+        Key key = new Key(time, nextSequence.incrementAndGet());
+        this.entries.put(key, item);
+        return key;
+    }
+
+    /**
+     * Add an item under a key it already has in another index.
+     *
+     * @param key  The key
+     * @param item The item
+     */
+    void put(Key key, T item) {
+        this.entries.put(key, item);
+    }
+
+    /**
+     * Remove an item.
+     *
+     * @param time The item's time
+     * @param item The item
+     * @return Whether the item was found.
+     */
+    boolean remove(long time, T item) {
+        NavigableMap<Key, T> sameTime =
+                this.entries.subMap(new Key(time, Long.MIN_VALUE),
+                                    true,
+                                    new Key(time, Long.MAX_VALUE),
+                                    true);
+        for (Map.Entry<Key, T> entry : sameTime.entrySet()) {
+            if (entry.getValue() == item) {
+                return this.entries.remove(entry.getKey(), item);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Iterate over all items, oldest first.
+     *
+     * @return The iterator.
+     */
+    Iterator<T> iterator() {
+        return this.entries.values().iterator();
+    }
+
+    /**
+     * Iterate over the items of a time range, oldest first.
+     *
+     * @param since Earliest time, inclusive
+     * @param until Latest time, exclusive
+     * @return The iterator.
+     */
+    Iterator<T> iterator(long since, long until) {
+        if (since >= until) {
+            return Collections.emptyIterator();
+        }
+
+        return this.entries.subMap(new Key(since, Long.MIN_VALUE),
+                                   new Key(until, Long.MIN_VALUE))
+                           .values()
+                           .iterator();
+    }
+
+    /**
+     * Get the newest items of a time range, up to a limit.
+     * <p>
+     * This takes time in proportion to the size of the page, and the
+     * logarithm of the size of the index.
+     *
+     * @param since  Earliest time, inclusive
+     * @param until  Latest time, exclusive
+     * @param before Cursor from a previous page, to only take items older
+     *               than it, or null
+     * @param limit  Largest number of items to take
+     * @return The page, with its items oldest first.
+     */
+    Page<T> page(long since, long until, Key before, int limit) {
+        Key low = new Key(since, Long.MIN_VALUE);
+        Key high = new Key(until, Long.MIN_VALUE);
+        if (before != null && before.compareTo(high) < 0) {
+            high = before;
+        }
+
+        if (low.compareTo(high) >= 0) {
+            return new Page<>(Collections.emptyList(), null);
+        }
+
+        Iterator<Map.Entry<Key, T>> newest =
+                this.entries.subMap(low, high)
+                            .descendingMap()
+                            .entrySet()
+                            .iterator();
+        List<T> items = new ArrayList<>(Math.min(limit, 64));
+        Key oldest = null;
+        while (items.size() < limit && newest.hasNext()) {
+            Map.Entry<Key, T> entry = newest.next();
+            items.add(entry.getValue());
+            oldest = entry.getKey();
+        }
+
+        Collections.reverse(items);
+        return new Page<>(items, newest.hasNext() ? oldest : null);
+    }
+
+    /**
+     * A page of items.
+     *
+     * @param <T> The type of the items.
+     */
+    static class Page<T> {
+        private final List<T> items;
+        private final Key next;
+
+        /**
+         * Initialize the object.
+         *
+         * @param items The items, oldest first
+         * @param next  Cursor for the page of older items, or null
+         */
+        Page(List<T> items, Key next) {
+            this.items = items;
+            this.next = next;
+        }
+
+        /**
+         * Get the items.
+         *
+         * @return The items, oldest first.
+         */
+        List<T> getItems() {
+            return this.items;
+        }
+
+        /**
+         * Get the cursor for the page of older items.
+         *
+         * @return The cursor, or null if there are no older items.
+         */
+        Key getNext() {
+            return this.next;
+        }
+    }
+
+    /**
+     * Position of an item in the index.
+     */
+    static class Key implements Comparable<Key> {
+        private final long time;
+        private final long sequence;
+
+        /**
+         * Initialize the object.
+         *
+         * @param time     The time, in milliseconds since the epoch
+         * @param sequence Sequence number among items of the same time
+         */
+        Key(long time, long sequence) {
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Parse a cursor.
+         *
+         * @param cursor The cursor, as returned by toCursor()
+         * @return The key, or null if the cursor is not valid.
+         */
+        static Key fromCursor(String cursor) {
+            byte[] bytes;
+            try {
+                bytes = Base64.getUrlDecoder().decode(cursor);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+
+            if (bytes.length != 16) {
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            return new Key(buffer.getLong(), buffer.getLong());
+        }
+
+        /**
+         * Encode this key as an opaque cursor.
+         *
+         * @return The cursor.
+         */
+        String toCursor() {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            buffer.putLong(this.time).putLong(this.sequence);
+            return Base64.getUrlEncoder()
+                         .withoutPadding()
+                         .encodeToString(buffer.array());
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int result = Long.compare(this.time, other.time);
+            if (result != 0) {
+                return result;
+            }
+
+            return Long.compare(this.sequence, other.sequence);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key)o;
+            return this.time == other.time && this.sequence == other.sequence;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(this.time) * 31 + Long.hashCode(this.sequence);
+        }
+    }
+}
@@ -3,26 +3,101 @@
  */
 package io.webthings.webthing;
 
+import org.json.JSONObject;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.function.BiFunction;
 
 public class Utils {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'+00:00'")
+                             .withZone(ZoneOffset.UTC);
+
     /**
      * Get the current time.
      *
      * @return The current time in the form YYYY-mm-ddTHH:MM:SS+00.00
      */
     public static String timestamp() {
-        String now = Instant.now().toString().split("\\.")[0];
-        return now + "+00:00";
+        return timestamp(System.currentTimeMillis());
+    }
+
+    /**
+     * Format a time.
+     * <p>
+     * Timestamps have a resolution of one second. The formatter is immutable,
+     * so one is shared by all threads.
+     *
+     * @param millis The time in milliseconds since the epoch
+     * @return The time in the form YYYY-mm-ddTHH:MM:SS+00.00
+     */
+    public static String timestamp(long millis) {
+        return TIMESTAMP_FORMAT.format(
+                Instant.ofEpochSecond(Math.floorDiv(millis, 1000)));
+    }
+
+    /**
+     * Create a factory for an action class, which calls its public
+     * (Thing, JSONObject) constructor.
+     * <p>
+     * The constructor is looked up once, so that creating an action does not
+     * need reflection.
+     *
+     * @param cls The action class
+     * @return The factory.
+     * @throws IllegalArgumentException If the class is not a concrete Action
+     *                                  with such a constructor.
+     */
+    public static BiFunction<Thing, JSONObject, Action> actionFactory(Class cls) {
+        if (!Action.class.isAssignableFrom(cls) ||
+                Modifier.isAbstract(cls.getModifiers())) {
+            throw new IllegalArgumentException(String.format(
+                    "%s is not a concrete Action class",
+                    cls.getName()));
+        }
+
+        MethodHandle constructor;
+        try {
+            constructor = MethodHandles.publicLookup()
+                                       .findConstructor(cls,
+                                                        MethodType.methodType(
+                                                                void.class,
+                                                                Thing.class,
+                                                                JSONObject.class))
+                                       .asType(MethodType.methodType(
+                                               Action.class,
+                                               Thing.class,
+                                               JSONObject.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException(String.format(
+                    "%s has no public (Thing, JSONObject) constructor",
+                    cls.getName()), e);
+        }
+
+        return (thing, input) -> {
+            try {
+                return (Action)constructor.invokeExact(thing, input);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
     }
 
     /**
@@ -1,6 +1,8 @@
 package io.webthings.webthing;
 
 import java.util.Observable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
 
 /**
@@ -12,12 +14,24 @@ import java.util.function.Consumer;
  * Notifies all observers when the underlying value changes through an external
  * update (command to turn the light off) or if the underlying sensor reports a
  * new value.
+ * <p>
+ * If forwarding a value to the thing is slow, e.g. over a serial bus, the
+ * value can be created with an executor, in which case writes are forwarded
+ * asynchronously and in order. A write that has not been forwarded yet is
+ * superseded by a newer one, and observers are notified once the forwarder
+ * has accepted the value. If the forwarder throws, the value is dropped and
+ * the exception is handed to those waiting for the write.
  *
  * @author Tim Hinkes (timmeey@timmeey.de)
  */
 public class Value<T> extends Observable {
     private final Consumer<T> valueForwarder;
+    private final Executor executor;
     private T lastValue;
+    private T pendingValue;
+    private boolean hasPendingValue;
+    private boolean writing;
+    private RuntimeException writeError;
 
     /**
      * Create a read only value that can only be updated by a Thing's reading.
@@ -41,8 +55,28 @@ public class Value<T> extends Observable {
      *                       thing
      */
     public Value(final T initialValue, final Consumer<T> valueForwarder) {
+        this(initialValue, valueForwarder, null);
+    }
+
+    /**
+     * Create a writable value whose writes are forwarded asynchronously.
+     * <p>
+     * Example: A light that is dimmed over a slow serial bus.
+     *
+     * @param initialValue   The initial value
+     * @param valueForwarder The method that updates the actual value on the
+     *                       thing
+     * @param executor       The executor to run the forwarder on
+     */
+    public Value(final T initialValue,
+                 final Consumer<T> valueForwarder,
+                 final Executor executor) {
         this.lastValue = initialValue;
         this.valueForwarder = valueForwarder;
+        this.executor = executor;
+        this.hasPendingValue = false;
+        this.writing = false;
+        this.writeError = null;
     }
 
     /**
@@ -53,6 +87,11 @@ public class Value<T> extends Observable {
      * @param value Value to set
      */
     public final void set(T value) {
+        if (this.executor != null) {
+            this.enqueue(value);
+            return;
+        }
+
         if (valueForwarder != null) {
             valueForwarder.accept(value);
         }
@@ -60,6 +99,121 @@ public class Value<T> extends Observable {
         this.notifyOfExternalUpdate(value);
     }
 
+    /**
+     * Determine whether or not an asynchronous write has not been forwarded
+     * yet.
+     *
+     * @return Boolean indicating whether or not a write is pending.
+     */
+    public final synchronized boolean isWritePending() {
+        return this.writing;
+    }
+
+    /**
+     * Wait for pending asynchronous writes to be forwarded.
+     * <p>
+     * Once no write is pending, this reports the outcome of the latest one:
+     * earlier writes that failed but were followed by a successful one do not
+     * count, since the thing has the newer value.
+     *
+     * @param timeout Maximum time to wait, in milliseconds
+     * @return Boolean indicating whether or not all writes were forwarded.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws RuntimeException     The exception the forwarder threw for the
+     *                              latest write, if it failed.
+     */
+    public final synchronized boolean awaitWrite(long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (this.writing && remaining > 0) {
+            this.wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        if (this.writing) {
+            return false;
+        }
+
+        if (this.writeError != null) {
+            throw this.writeError;
+        }
+
+        return true;
+    }
+
+    /**
+     * Queue a value for asynchronous forwarding, superseding any value which
+     * has not been forwarded yet.
+     *
+     * @param value Value to set
+     */
+    private void enqueue(T value) {
+        synchronized (this) {
+            this.pendingValue = value;
+            this.hasPendingValue = true;
+
+            if (this.writing) {
+                return;
+            }
+
+            this.writing = true;
+        }
+
+        try {
+            this.executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                this.hasPendingValue = false;
+                this.pendingValue = null;
+                this.writing = false;
+                this.notifyAll();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Forward queued values until none are left.
+     */
+    private void drain() {
+        while (true) {
+            T value;
+            synchronized (this) {
+                if (!this.hasPendingValue) {
+                    this.writing = false;
+                    this.notifyAll();
+                    return;
+                }
+
+                value = this.pendingValue;
+                this.pendingValue = null;
+                this.hasPendingValue = false;
+            }
+
+            try {
+                if (valueForwarder != null) {
+                    valueForwarder.accept(value);
+                }
+            } catch (RuntimeException e) {
+                // The thing did not take the value, so there is nothing to
+                // confirm, but waiters need to know.
+                synchronized (this) {
+                    this.writeError = e;
+                }
+
+                continue;
+            }
+
+            synchronized (this) {
+                this.writeError = null;
+            }
+
+            this.notifyOfExternalUpdate(value);
+        }
+    }
+
     /**
      * Returns the last known value from the underlying thing.
      * <p>
@@ -6,17 +6,39 @@ package io.webthings.webthing;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import io.webthings.webthing.errors.ActionError;
+import io.webthings.webthing.errors.ActionLimitError;
+import io.webthings.webthing.errors.PayloadTooLargeError;
 import io.webthings.webthing.errors.PropertyError;
+import io.webthings.webthing.errors.PropertyVersionError;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceInfo;
@@ -32,6 +54,17 @@ import fi.iki.elonen.router.RouterNanoHTTPD;
 public class WebThingServer extends RouterNanoHTTPD {
     private static final int SOCKET_READ_TIMEOUT = 30 * 1000;
     private static final int WEBSOCKET_PING_INTERVAL = 20 * 1000;
+    private static final int EVENT_STREAM_KEEPALIVE_INTERVAL = 20 * 1000;
+    private static final int EVENT_STREAM_MAX_QUEUED_MESSAGES = 1024;
+    private static final int LONG_POLL_MAX_WAIT = 60 * 1000;
+    private static final int LONG_POLL_MAX_WAITERS = 64;
+    private static final int ASYNC_WRITE_DEFAULT_WAIT = 5 * 1000;
+    private static final int ASYNC_WRITE_MAX_WAIT = 60 * 1000;
+    private static final int CONNECTION_ACCEPT_TIMEOUT = 10 * 1000;
+    private static final int MAX_BODY_SIZE = 64 * 1024;
+    private static final int COMPRESSION_THRESHOLD = 1024;
+    private static final int ROUTE_PRIORITY = 100;
+    private static final int WEBSOCKET_COMPRESSION_THRESHOLD = 32;
     private int port;
     private ThingsType things;
     private String name;
@@ -40,6 +73,20 @@ public class WebThingServer extends RouterNanoHTTPD {
     private List<String> hosts;
     private boolean isTls;
     private JmDNS jmdns;
+    private HttpServerBackend httpServer;
+    private final RouteTrie<RouteTarget> routes = new RouteTrie<>();
+    private final List<RouteTarget> patternRoutes = new ArrayList<>();
+    private UriResource notFound;
+    private final BodyReader bodyReader = new BodyReader(MAX_BODY_SIZE);
+    private final LongPollLimit longPolls =
+            new LongPollLimit(LONG_POLL_MAX_WAITERS);
+    private final ResponseCompressor compressor =
+            new ResponseCompressor(COMPRESSION_THRESHOLD);
+    private final DescriptionCache descriptions = new DescriptionCache();
+    private final PerMessageDeflate webSocketDeflate =
+            new PerMessageDeflate(Deflater.DEFAULT_COMPRESSION,
+                                  WEBSOCKET_COMPRESSION_THRESHOLD,
+                                  true);
 
     /**
      * Initialize the WebThingServer on port 80.
@@ -165,8 +212,6 @@ public class WebThingServer extends RouterNanoHTTPD {
                              sslOptions.getProtocols());
         }
 
-        this.setRoutePrioritizer(new InsertionOrderRoutePrioritizer());
-
         if (additionalRoutes != null && additionalRoutes.size() > 0) {
             additionalRoutes.forEach(o -> addRoute(this.basePath + o.url,
                                                    o.handlerClass,
@@ -180,101 +225,317 @@ public class WebThingServer extends RouterNanoHTTPD {
                 thing.setHrefPrefix(String.format("%s/%d", this.basePath, i));
             }
 
-            // These are matched in the order they are added.
-            addRoute(this.basePath + "/:thingId/properties/:propertyName",
-                     PropertyHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/:thingId/properties",
-                     PropertiesHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/:thingId/actions/:actionName/:actionId",
-                     ActionIDHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/:thingId/actions/:actionName",
-                     ActionHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/:thingId/actions",
-                     ActionsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/:thingId/events/:eventName",
-                     EventHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/:thingId/events",
-                     EventsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/:thingId",
-                     ThingHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/",
-                     ThingsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
+            // Literal segments match before parameters, and identical
+            // patterns in the order they are added.
+            addServerRoute(this.basePath + "/:thingId/properties/:propertyName",
+                           PropertyHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/:thingId/properties",
+                           PropertiesHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader,
+                           this.longPolls);
+            addServerRoute(this.basePath + "/:thingId/actions/:actionName/:actionId",
+                           ActionIDHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/:thingId/actions/:actionName",
+                           ActionHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/:thingId/actions",
+                           ActionsHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/:thingId/events/:eventName",
+                           EventHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/:thingId/events",
+                           EventsHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/:thingId",
+                           ThingHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader,
+                           this.webSocketDeflate);
+            addServerRoute(this.basePath + "/",
+                           ThingsHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
         } else {
             things.getThing(0).setHrefPrefix(this.basePath);
 
-            // These are matched in the order they are added.
-            addRoute(this.basePath + "/properties/:propertyName",
-                     PropertyHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/properties",
-                     PropertiesHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/actions/:actionName/:actionId",
-                     ActionIDHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/actions/:actionName",
-                     ActionHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/actions",
-                     ActionsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/events/:eventName",
-                     EventHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/events",
-                     EventsHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
-            addRoute(this.basePath + "/",
-                     ThingHandler.class,
-                     this.things,
-                     this.hosts,
-                     this.isTls);
+            // Literal segments match before parameters, and identical
+            // patterns in the order they are added.
+            addServerRoute(this.basePath + "/properties/:propertyName",
+                           PropertyHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/properties",
+                           PropertiesHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader,
+                           this.longPolls);
+            addServerRoute(this.basePath + "/actions/:actionName/:actionId",
+                           ActionIDHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/actions/:actionName",
+                           ActionHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/actions",
+                           ActionsHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/events/:eventName",
+                           EventHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/events",
+                           EventsHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader);
+            addServerRoute(this.basePath + "/",
+                           ThingHandler.class,
+                           this.things,
+                           this.hosts,
+                           this.isTls,
+                           this.bodyReader,
+                           this.webSocketDeflate);
         }
 
         setNotFoundHandler(Error404UriHandler.class);
     }
 
+    /**
+     * Add a route, matched as RouterNanoHTTPD matches it: a parameter
+     * prefixed by ':' may span several path segments, e.g. /static/:path
+     * matches /static/css/main.css.
+     * <p>
+     * Such routes take precedence over the server's own routes as they would
+     * in RouterNanoHTTPD, where a route with fewer parameters matches first
+     * and routes with as many parameters match in the order they were added.
+     *
+     * @param url           URL pattern, with parameters prefixed by ':'
+     * @param handler       Class which will handle the request
+     * @param initParameter Initialization parameters for the handler
+     */
+    @Override
+    public void addRoute(String url, Class<?> handler, Object... initParameter) {
+        this.patternRoutes.add(new RouteTarget(new UriResource(url,
+                                                               ROUTE_PRIORITY,
+                                                               handler,
+                                                               initParameter),
+                                               handler));
+
+        // The sort is stable, so routes of the same priority keep the order
+        // they were added in.
+        this.patternRoutes.sort((a, b) -> a.getResource()
+                                           .compareTo(b.getResource()));
+    }
+
+    /**
+     * Add one of the server's own routes. These are kept in a path trie
+     * rather than NanoHTTPD's list of patterns, so that lookups do not slow
+     * down with the number of routes; each of their parameters matches one
+     * path segment.
+     *
+     * @param url           URL pattern, with parameters prefixed by ':'
+     * @param handler       Class which will handle the request
+     * @param initParameter Initialization parameters for the handler
+     */
+    private void addServerRoute(String url,
+                                Class<?> handler,
+                                Object... initParameter) {
+        this.routes.add(url,
+                        new RouteTarget(new UriResource(url,
+                                                        ROUTE_PRIORITY,
+                                                        handler,
+                                                        initParameter),
+                                        handler));
+    }
+
+    /**
+     * Remove a route.
+     *
+     * @param url URL pattern the route was added with
+     */
+    @Override
+    public void removeRoute(String url) {
+        String uri = normalizeUri(url);
+        this.patternRoutes.removeIf((route) -> route.getResource()
+                                                    .getUri()
+                                                    .equals(uri));
+        this.routes.remove(url);
+    }
+
+    /**
+     * Find the route for a request path.
+     *
+     * @param uri       The request path
+     * @param urlParams Map to store the matched parameters in
+     * @return The route, or null if none matches.
+     */
+    private RouteTarget route(String uri, Map<String, String> urlParams) {
+        RouteTarget target = this.routes.match(uri, urlParams);
+        if (this.patternRoutes.isEmpty()) {
+            return target;
+        }
+
+        String normalized = normalizeUri(uri);
+        for (RouteTarget route : this.patternRoutes) {
+            if (target != null &&
+                    route.getResource().compareTo(target.getResource()) > 0) {
+                break;
+            }
+
+            Map<String, String> params = route.getResource().match(normalized);
+            if (params != null) {
+                urlParams.clear();
+                urlParams.putAll(params);
+                return route;
+            }
+        }
+
+        return target;
+    }
+
+    /**
+     * Set the handler for requests which match no route.
+     *
+     * @param handler Class which will handle the request
+     * @param <T>     Type of the handler
+     */
+    @Override
+    public <T extends UriResponder> void setNotFoundHandler(Class<T> handler) {
+        this.notFound = new UriResource(null, 100, handler);
+    }
+
+    /**
+     * Route a request to its handler.
+     *
+     * @param session The HTTP session
+     * @return The response.
+     */
+    @Override
+    public Response serve(IHTTPSession session) {
+        Map<String, String> urlParams = new HashMap<>(4);
+        RouteTarget target = this.route(session.getUri(), urlParams);
+        if (target == null) {
+            return this.notFound.process(urlParams, session);
+        }
+
+        // Thing descriptions only change when their things are modified, so
+        // they are kept as sent, and only written again once they change.
+        Map<String, String> headers = session.getHeaders();
+        boolean cbor = Cbor.isPreferred(headers.get("accept"));
+        DescriptionCache.Key key = null;
+        if (target.isDescription()) {
+            Thing thing = target.getDescribedThing(urlParams, session);
+            if (thing != null) {
+                key = new DescriptionCache.Key(
+                        thing,
+                        headers.get("host"),
+                        cbor,
+                        ResponseCompressor.negotiate(headers.get(
+                                "accept-encoding")));
+                Response cached = this.descriptions.get(key);
+                if (cached != null) {
+                    return target.corsResponse(cached);
+                }
+            }
+        }
+
+        Response response = target.process(urlParams, session);
+        if ("application/json".equals(response.getMimeType())) {
+            response.addHeader("Vary", "Accept");
+            if (cbor) {
+                response = encodeCbor(response);
+            }
+        }
+
+        response = this.compressor.compress(session, response);
+        if (key != null) {
+            this.descriptions.put(key, response);
+        }
+
+        return response;
+    }
+
+    /**
+     * Re-encode a JSON response as CBOR.
+     * <p>
+     * The transcoder needs the whole document, so a streamed listing is
+     * collected first, and sent with a fixed length.
+     *
+     * @param response The JSON response
+     * @return The response, encoded in place.
+     */
+    private static Response encodeCbor(Response response) {
+        InputStream data = response.getData();
+        byte[] json;
+        if (data instanceof ByteArrayInputStream) {
+            ByteArrayInputStream bytes = (ByteArrayInputStream)data;
+            json = new byte[bytes.available()];
+            bytes.read(json, 0, json.length);
+        } else if (data instanceof JsonStream) {
+            JsonStream<?> stream = (JsonStream<?>)data;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = stream.read(buffer, 0, buffer.length)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+
+            json = out.toByteArray();
+            response.setChunkedTransfer(false);
+        } else {
+            return response;
+        }
+
+        byte[] cbor = Cbor.fromJson(new String(json, StandardCharsets.UTF_8));
+        response.setData(new ByteArrayInputStream(cbor));
+        response.setMimeType(Cbor.MIME_TYPE);
+        response.addHeader("Content-Length", String.valueOf(cbor.length));
+        return response;
+    }
+
     /**
      * Start listening for incoming connections.
      *
@@ -282,6 +543,59 @@ public class WebThingServer extends RouterNanoHTTPD {
      * @throws IOException on failure to listen on port
      */
     public void start(boolean daemon) throws IOException {
+        this.advertise();
+        super.start(this.SOCKET_READ_TIMEOUT, daemon);
+    }
+
+    /**
+     * Start listening on the JDK's built-in HTTP server instead of NanoHTTPD,
+     * handling requests on a pool of daemon threads.
+     * <p>
+     * Websockets and TLS are only supported by NanoHTTPD.
+     *
+     * @throws IOException on failure to listen on port
+     */
+    public void startHttpServer() throws IOException {
+        AtomicInteger count = new AtomicInteger(0);
+        this.startHttpServer(Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable,
+                                       "webthing-http-" +
+                                               count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Start listening on the JDK's built-in HTTP server instead of NanoHTTPD.
+     * <p>
+     * Websockets and TLS are only supported by NanoHTTPD. For low latency on
+     * keep-alive connections, run with -Dsun.net.httpserver.nodelay=true.
+     *
+     * @param executor Executor to handle requests on. Each event stream
+     *                 holds one of its threads until it is closed.
+     * @throws IOException on failure to listen on port
+     */
+    public void startHttpServer(Executor executor) throws IOException {
+        if (this.isTls) {
+            throw new IllegalStateException(
+                    "TLS is only supported by the NanoHTTPD backend");
+        }
+
+        this.httpServer = new HttpServerBackend(this,
+                                                this.bodyReader,
+                                                this.port,
+                                                executor);
+        this.advertise();
+        this.httpServer.start();
+    }
+
+    /**
+     * Register the server with mDNS.
+     *
+     * @throws IOException on failure to create the mDNS responder
+     */
+    private void advertise() throws IOException {
         this.jmdns = JmDNS.create(hostname == null ?
                                   InetAddress.getLocalHost() :
                                   InetAddress.getByName(hostname));
@@ -309,8 +623,6 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                      0,
                                                      txt);
         this.jmdns.registerService(serviceInfo);
-
-        super.start(this.SOCKET_READ_TIMEOUT, daemon);
     }
 
     /**
@@ -318,9 +630,109 @@ public class WebThingServer extends RouterNanoHTTPD {
      */
     public void stop() {
         this.jmdns.unregisterAllServices();
+
+        if (this.httpServer != null) {
+            this.httpServer.stop();
+            this.httpServer = null;
+        }
+
         super.stop();
     }
 
+    /**
+     * Limit the number of connections served at once. Further clients wait
+     * to be accepted, and are dropped if no connection closes in time.
+     * <p>
+     * Virtual threads are used where the JVM supports them, otherwise each
+     * connection gets a thread from a pool of the given size. To choose the
+     * threads or timeout, pass a {@link ConnectionRunner} to
+     * setAsyncRunner() instead.
+     * <p>
+     * This must be called before the server is started, and does not apply
+     * to startHttpServer().
+     *
+     * @param maxConnections Maximum number of open connections
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (ConnectionRunner.isVirtualThreadSupported()) {
+            this.setAsyncRunner(ConnectionRunner.virtual(maxConnections,
+                                                         CONNECTION_ACCEPT_TIMEOUT));
+        } else {
+            this.setAsyncRunner(ConnectionRunner.bounded(maxConnections,
+                                                         CONNECTION_ACCEPT_TIMEOUT));
+        }
+    }
+
+    /**
+     * Limit the number of requests waiting for a property change at once.
+     * Further long-polls are answered with 503 Service Unavailable. Each
+     * waiting request holds one of the connections allowed by
+     * setMaxConnections(), so this should be kept well below that.
+     *
+     * @param maxLongPolls Maximum number of waiting requests
+     */
+    public void setMaxLongPolls(int maxLongPolls) {
+        this.longPolls.setMax(maxLongPolls);
+    }
+
+    /**
+     * Set the largest request body the server accepts. Larger bodies are
+     * answered with 413 Payload Too Large.
+     *
+     * @param maxBodySize Maximum body size, in bytes
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        this.bodyReader.setMaxSize(maxBodySize);
+    }
+
+    /**
+     * Set the smallest response body to compress. Responses are compressed
+     * with gzip or deflate when the client accepts either.
+     *
+     * @param threshold The size in bytes
+     */
+    public void setCompressionThreshold(int threshold) {
+        this.compressor.setThreshold(threshold);
+        this.descriptions.clear();
+    }
+
+    /**
+     * Configure the permessage-deflate extension for websockets, which is
+     * used by default when the client offers it.
+     * <p>
+     * With context takeover, each connection keeps its compression state
+     * between messages, so that a stream of similar messages compresses
+     * several times better, at the cost of some memory per connection.
+     * Without it, every message is compressed on its own.
+     *
+     * @param level           Deflate compression level, from 1 to 9, -1 for
+     *                        the default, or 0 to disable compression
+     * @param threshold       Smallest message to compress, in bytes
+     * @param contextTakeover Whether to keep the compression state between
+     *                        messages
+     */
+    public void setWebSocketCompression(int level,
+                                        int threshold,
+                                        boolean contextTakeover) {
+        this.webSocketDeflate.configure(level, threshold, contextTakeover);
+    }
+
+    /**
+     * Determine whether or not NanoHTTPD should gzip a response.
+     * <p>
+     * Responses are already compressed by serve(), which also handles deflate
+     * and caches encoded thing descriptions. Event streams are never
+     * compressed, as the compressor would hold back messages until its
+     * buffer fills up.
+     *
+     * @param r The response
+     * @return Always false.
+     */
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        return false;
+    }
+
     interface ThingsType {
         /**
          * Get the thing at the given index.
@@ -345,29 +757,6 @@ public class WebThingServer extends RouterNanoHTTPD {
         String getName();
     }
 
-    /**
-     * Thread to perform an action.
-     */
-    private static class ActionRunner extends Thread {
-        private Action action;
-
-        /**
-         * Initialize the object.
-         *
-         * @param action The action to perform
-         */
-        public ActionRunner(Action action) {
-            this.action = action;
-        }
-
-        /**
-         * Perform the action.
-         */
-        public void run() {
-            this.action.start();
-        }
-    }
-
     /**
      * Class to hold options required by SSL server.
      */
@@ -428,6 +817,9 @@ public class WebThingServer extends RouterNanoHTTPD {
      * Allowed.
      */
     public static class BaseHandler implements UriResponder {
+        private static final BodyReader DEFAULT_BODY_READER =
+                new BodyReader(MAX_BODY_SIZE);
+
         /**
          * Add necessary CORS headers to response.
          *
@@ -437,7 +829,8 @@ public class WebThingServer extends RouterNanoHTTPD {
         public Response corsResponse(Response response) {
             response.addHeader("Access-Control-Allow-Origin", "*");
             response.addHeader("Access-Control-Allow-Headers",
-                               "Origin, X-Requested-With, Content-Type, Accept");
+                               "Origin, X-Requested-With, Content-Type, Accept, If-Match, Prefer, Idempotency-Key");
+            response.addHeader("Access-Control-Expose-Headers", "ETag, Link");
             response.addHeader("Access-Control-Allow-Methods",
                                "GET, HEAD, PUT, POST, DELETE");
             return response;
@@ -548,22 +941,28 @@ public class WebThingServer extends RouterNanoHTTPD {
         }
 
         /**
-         * Parse a JSON body.
+         * Parse a JSON body, up to the default maximum size.
          *
          * @param session The HTTP session
          * @return The parsed JSON body as a JSONObject, or null on error.
+         * @throws PayloadTooLargeError If the body is too large.
          */
         public JSONObject parseBody(IHTTPSession session) {
-            Integer contentLength = Integer.parseInt(session.getHeaders()
-                                                            .get("content-length"));
-            byte[] buffer = new byte[contentLength];
-            try {
-                session.getInputStream().read(buffer, 0, contentLength);
-                JSONObject obj = new JSONObject(new String(buffer));
-                return obj;
-            } catch (IOException e) {
-                return null;
-            }
+            return DEFAULT_BODY_READER.readJson(session);
+        }
+
+        /**
+         * Parse a JSON body, up to the server's maximum size.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param session     The HTTP session
+         * @return The parsed JSON body as a JSONObject, or null on error.
+         * @throws PayloadTooLargeError If the body is too large.
+         */
+        public JSONObject parseBody(UriResource uriResource,
+                                    IHTTPSession session) {
+            return uriResource.initParameter(3, BodyReader.class)
+                              .readJson(session);
         }
 
         /**
@@ -574,9 +973,44 @@ public class WebThingServer extends RouterNanoHTTPD {
          * @return The thing, or null if not found.
          */
         public Thing getThing(UriResource uriResource, IHTTPSession session) {
+            return this.getThing(uriResource,
+                                 this.getUrlParams(uriResource, session));
+        }
+
+        /**
+         * Get the URL parameters of a request, by matching its URI against
+         * the route's pattern.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param session     The HTTP session
+         * @return Map of URL parameters, empty if the URI does not match.
+         */
+        public Map<String, String> getUrlParams(UriResource uriResource,
+                                                IHTTPSession session) {
+            Map<String, String> urlParams =
+                    uriResource.match(normalizeUri(session.getUri()));
+            return urlParams == null ?
+                   Collections.<String, String>emptyMap() :
+                   urlParams;
+        }
+
+        /**
+         * Get the thing this request is for, from the matched URL
+         * parameters.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param urlParams   Map of URL parameters
+         * @return The thing, or null if not found.
+         */
+        public Thing getThing(UriResource uriResource,
+                              Map<String, String> urlParams) {
             ThingsType things = uriResource.initParameter(0, ThingsType.class);
 
-            String thingId = this.getUriParam(session.getUri(), 1);
+            String thingId = urlParams.get("thingId");
+            if (thingId == null) {
+                return things.getThing(0);
+            }
+
             int id;
             try {
                 id = Integer.parseInt(thingId);
@@ -615,6 +1049,184 @@ public class WebThingServer extends RouterNanoHTTPD {
         public boolean isSecure(UriResource uriResource) {
             return uriResource.initParameter(2, Boolean.class);
         }
+
+        /**
+         * Determine whether or not a server-sent event stream was requested.
+         *
+         * @param session The HTTP session
+         * @return Boolean indicating whether or not this is an event stream
+         * request.
+         */
+        public boolean isEventStreamRequested(IHTTPSession session) {
+            String accept = session.getHeaders().get("accept");
+            return accept != null && accept.contains("text/event-stream");
+        }
+
+        /**
+         * Open a server-sent event stream of all messages sent by the given
+         * things.
+         *
+         * @param things         The things to stream messages from
+         * @param includeThingId Whether or not to tag each message with the
+         *                       ID of the thing it came from
+         * @param session        The HTTP session
+         * @return The streaming response.
+         */
+        public Response eventStreamResponse(List<Thing> things,
+                                            boolean includeThingId,
+                                            IHTTPSession session) {
+            EventStream stream = new EventStream(things, includeThingId);
+            stream.open(session.getHeaders().get("last-event-id"));
+
+            Response response =
+                    NanoHTTPD.newChunkedResponse(Response.Status.OK,
+                                                 "text/event-stream",
+                                                 stream);
+            response.addHeader("Cache-Control", "no-cache");
+            return corsResponse(response);
+        }
+
+        /**
+         * Describe an action which could not be created.
+         *
+         * @param e The error
+         * @return 400 Bad Request if the action's input was at fault, else
+         * 500 Internal Server Error, with the error message as the body.
+         */
+        Response actionErrorResponse(ActionError e) {
+            return corsResponse(NanoHTTPD.newFixedLengthResponse(
+                    e.isInputError() ?
+                    Response.Status.BAD_REQUEST :
+                    Response.Status.INTERNAL_ERROR,
+                    NanoHTTPD.MIME_PLAINTEXT,
+                    e.getMessage()));
+        }
+
+        /**
+         * List the actions or events of an index, optionally restricted to a
+         * time range and split into pages.
+         * <p>
+         * The query parameters "since" (inclusive) and "until" (exclusive)
+         * restrict the listing to a time range, given as ISO 8601 timestamps
+         * or milliseconds since the epoch. With "limit", only the newest
+         * items of the range are listed. If there are older ones, a Link
+         * header with rel="next" points to the next page. That URL carries
+         * an opaque "cursor" parameter, which stays valid while new items
+         * arrive.
+         *
+         * @param session   The HTTP session
+         * @param index     The index to list
+         * @param writeItem Writes an item to a writer
+         * @param <T>       The type of the items
+         * @return The streaming response, or 400 Bad Request if a parameter
+         * is invalid.
+         */
+        <T> Response listingResponse(IHTTPSession session,
+                                     TimeIndex<T> index,
+                                     BiConsumer<T, JsonWriter> writeItem) {
+            Map<String, List<String>> params = session.getParameters();
+            long since = Long.MIN_VALUE;
+            long until = Long.MAX_VALUE;
+            int limit = 0;
+            TimeIndex.Key cursor = null;
+            try {
+                if (params.containsKey("since")) {
+                    since = parseTime(params.get("since").get(0));
+                }
+
+                if (params.containsKey("until")) {
+                    until = parseTime(params.get("until").get(0));
+                }
+
+                if (params.containsKey("limit")) {
+                    limit = Integer.parseInt(params.get("limit").get(0));
+                    if (limit <= 0) {
+                        throw new NumberFormatException();
+                    }
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
+                                                                     null,
+                                                                     null));
+            }
+
+            if (params.containsKey("cursor")) {
+                cursor = TimeIndex.Key.fromCursor(params.get("cursor").get(0));
+                if (cursor == null || limit == 0) {
+                    return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
+                                                                         null,
+                                                                         null));
+                }
+            }
+
+            if (limit == 0) {
+                JsonStream<T> stream =
+                        new JsonStream<>(index.iterator(since, until),
+                                         writeItem);
+                return corsResponse(NanoHTTPD.newChunkedResponse(Response.Status.OK,
+                                                                 "application/json",
+                                                                 stream));
+            }
+
+            TimeIndex.Page<T> page = index.page(since, until, cursor, limit);
+            JsonStream<T> stream =
+                    new JsonStream<>(page.getItems().iterator(), writeItem);
+            Response response =
+                    NanoHTTPD.newChunkedResponse(Response.Status.OK,
+                                                 "application/json",
+                                                 stream);
+
+            if (page.getNext() != null) {
+                StringBuilder next = new StringBuilder(session.getUri());
+                next.append("?limit=").append(limit);
+                for (String name : new String[]{"since", "until"}) {
+                    if (params.containsKey(name)) {
+                        next.append('&')
+                            .append(name)
+                            .append('=')
+                            .append(encodeParameter(params.get(name).get(0)));
+                    }
+                }
+
+                next.append("&cursor=").append(page.getNext().toCursor());
+                response.addHeader("Link", "<" + next + ">; rel=\"next\"");
+            }
+
+            return corsResponse(response);
+        }
+
+        /**
+         * Parse a time given as a query parameter.
+         *
+         * @param value An ISO 8601 timestamp, or milliseconds since the epoch
+         * @return The time in milliseconds since the epoch.
+         * @throws NumberFormatException   If the value is out of range.
+         * @throws DateTimeParseException If the value is not a timestamp.
+         */
+        private static long parseTime(String value) {
+            if (value.matches("-?[0-9]+")) {
+                return Long.parseLong(value);
+            }
+
+            // An unencoded "+" in a timezone offset arrives as a space.
+            return OffsetDateTime.parse(value.replace(' ', '+'))
+                                 .toInstant()
+                                 .toEpochMilli();
+        }
+
+        /**
+         * Encode a query parameter value.
+         *
+         * @param value The value
+         * @return The encoded value.
+         */
+        private static String encodeParameter(String value) {
+            try {
+                return URLEncoder.encode(value.replace(' ', '+'), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
     }
 
     /**
@@ -647,37 +1259,30 @@ public class WebThingServer extends RouterNanoHTTPD {
 
             ThingsType things = uriResource.initParameter(0, ThingsType.class);
 
-            JSONArray list = new JSONArray();
-            for (Thing thing : things.getThings()) {
-                JSONObject description = thing.asThingDescription();
-
-                JSONObject link = new JSONObject();
-                link.put("rel", "alternate");
-                link.put("href",
-                         String.format("%s%s", wsHref, thing.getHref()));
-                description.getJSONArray("links").put(link);
+            if (isEventStreamRequested(session)) {
+                return eventStreamResponse(things.getThings(), true, session);
+            }
 
-                String base = String.format("%s://%s%s",
+            String httpHref = String.format("%s://%s",
                                             this.isSecure(uriResource) ?
                                             "https" :
                                             "http",
-                                            session.getHeaders().get("host"),
-                                            thing.getHref());
-                description.put("href", thing.getHref());
-                description.put("base", base);
-                JSONObject securityDefinitions = new JSONObject();
-                JSONObject nosecSc = new JSONObject();
-                nosecSc.put("scheme", "nosec");
-                securityDefinitions.put("nosec_sc", nosecSc);
-                description.put("securityDefinitions", securityDefinitions);
-                description.put("security", "nosec_sc");
-
-                list.put(description);
-            }
-
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 list.toString()));
+                                            session.getHeaders().get("host"));
+
+            // The descriptions are written as the response is sent, so that
+            // only a few of them are held in memory at a time.
+            JsonStream<Thing> stream =
+                    new JsonStream<>(things.getThings().iterator(),
+                                     (thing, writer) -> {
+                                         thing.writeThingDescription(
+                                                 writer,
+                                                 thing.getHref(),
+                                                 httpHref + thing.getHref(),
+                                                 wsHref + thing.getHref());
+                                     });
+            return corsResponse(NanoHTTPD.newChunkedResponse(Response.Status.OK,
+                                                             "application/json",
+                                                             stream));
         }
     }
 
@@ -703,7 +1308,7 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
@@ -727,8 +1332,38 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                "Missing Websocket-Key"));
                 }
 
+                PerMessageDeflate deflate =
+                        uriResource.initParameter(4, PerMessageDeflate.class);
+                PerMessageDeflate.Codec codec = deflate == null ?
+                        null :
+                        deflate.negotiate(headers.get(
+                                PerMessageDeflate.HEADER_WEBSOCKET_EXTENSIONS));
+
+                // Clients which offer the CBOR subprotocol get it, whatever
+                // else they offer.
+                String protocol = null;
+                boolean cbor = false;
+                if (headers.containsKey(NanoWSD.HEADER_WEBSOCKET_PROTOCOL)) {
+                    String[] protocols =
+                            headers.get(NanoWSD.HEADER_WEBSOCKET_PROTOCOL)
+                                   .split(",");
+                    protocol = protocols[0].trim();
+                    for (String offered : protocols) {
+                        if (offered.trim().equals(Cbor.WEBSOCKET_PROTOCOL)) {
+                            protocol = Cbor.WEBSOCKET_PROTOCOL;
+                            cbor = true;
+                        }
+                    }
+                }
+
                 final NanoWSD.WebSocket webSocket =
-                        new ThingWebSocket(thing, session);
+                        new ThingWebSocket(thing,
+                                           session,
+                                           codec,
+                                           uriResource.initParameter(3,
+                                                                     BodyReader.class)
+                                                      .getMaxSize(),
+                                           cbor);
                 Response handshakeResponse = webSocket.getHandshakeResponse();
                 try {
                     handshakeResponse.addHeader(NanoWSD.HEADER_WEBSOCKET_ACCEPT,
@@ -740,10 +1375,14 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                "The SHA-1 Algorithm required for websockets is not available on the server."));
                 }
 
-                if (headers.containsKey(NanoWSD.HEADER_WEBSOCKET_PROTOCOL)) {
+                if (protocol != null) {
                     handshakeResponse.addHeader(NanoWSD.HEADER_WEBSOCKET_PROTOCOL,
-                                                headers.get(NanoWSD.HEADER_WEBSOCKET_PROTOCOL)
-                                                       .split(",")[0]);
+                                                protocol);
+                }
+
+                if (codec != null) {
+                    handshakeResponse.addHeader(PerMessageDeflate.HEADER_WEBSOCKET_EXTENSIONS,
+                                                codec.getResponseHeader());
                 }
 
                 final Timer timer = new Timer();
@@ -763,35 +1402,30 @@ public class WebThingServer extends RouterNanoHTTPD {
                 return handshakeResponse;
             }
 
+            if (isEventStreamRequested(session)) {
+                List<Thing> things = new ArrayList<>();
+                things.add(thing);
+                return eventStreamResponse(things, false, session);
+            }
+
             String wsHref = String.format("%s://%s%s",
                                           this.isSecure(uriResource) ?
                                           "wss" :
                                           "ws",
                                           session.getHeaders().get("host"),
                                           thing.getHref());
-            JSONObject description = thing.asThingDescription();
-            JSONObject link = new JSONObject();
-            link.put("rel", "alternate");
-            link.put("href", wsHref);
-            description.getJSONArray("links").put(link);
-
             String base = String.format("%s://%s%s",
                                         this.isSecure(uriResource) ?
                                         "https" :
                                         "http",
                                         session.getHeaders().get("host"),
                                         thing.getHref());
-            description.put("base", base);
-            JSONObject securityDefinitions = new JSONObject();
-            JSONObject nosecSc = new JSONObject();
-            nosecSc.put("scheme", "nosec");
-            securityDefinitions.put("nosec_sc", nosecSc);
-            description.put("securityDefinitions", securityDefinitions);
-            description.put("security", "nosec_sc");
+            JsonWriter writer = JsonWriter.reuse();
+            thing.writeThingDescription(writer, null, base, wsHref);
 
             return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
                                                                  "application/json",
-                                                                 description.toString()));
+                                                                 writer.toString()));
         }
 
         /**
@@ -808,6 +1442,29 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      .toLowerCase());
         }
 
+        /**
+         * Find the thing whose description a request asks for, i.e. a GET
+         * request from a valid host which asks for neither a websocket nor
+         * an event stream.
+         *
+         * @param uriResource The URI resource that was matched
+         * @param urlParams   Map of URL parameters
+         * @param session     The HTTP session
+         * @return The thing, or null if the request is for anything else.
+         */
+        Thing getDescribedThing(UriResource uriResource,
+                                Map<String, String> urlParams,
+                                IHTTPSession session) {
+            if (session.getMethod() != NanoHTTPD.Method.GET ||
+                    !validateHost(uriResource, session) ||
+                    isWebSocketRequested(session) ||
+                    isEventStreamRequested(session)) {
+                return null;
+            }
+
+            return this.getThing(uriResource, urlParams);
+        }
+
         /**
          * Determine whether or not a websocket was requested.
          *
@@ -827,8 +1484,12 @@ public class WebThingServer extends RouterNanoHTTPD {
         /**
          * Class to handle WebSockets to a Thing.
          */
-        public static class ThingWebSocket extends NanoWSD.WebSocket {
+        public static class ThingWebSocket extends NanoWSD.WebSocket
+                implements Subscriber {
             private final Thing thing;
+            private final PerMessageDeflate.Codec codec;
+            private final int maxMessageSize;
+            private final boolean cbor;
 
             /**
              * Initialize the object.
@@ -837,15 +1498,66 @@ public class WebThingServer extends RouterNanoHTTPD {
              * @param handshakeRequest The initial handshake request
              */
             public ThingWebSocket(Thing thing, IHTTPSession handshakeRequest) {
-                super(handshakeRequest);
+                this(thing, handshakeRequest, null, 0, false);
+            }
+
+            /**
+             * Initialize the object, with the negotiated extensions and
+             * subprotocol.
+             *
+             * @param thing            The Thing managed by the server
+             * @param handshakeRequest The initial handshake request
+             * @param codec            The negotiated compression, or null
+             * @param maxMessageSize   Largest message to inflate, in bytes
+             * @param cbor             Whether messages are exchanged as CBOR
+             */
+            ThingWebSocket(Thing thing,
+                           IHTTPSession handshakeRequest,
+                           PerMessageDeflate.Codec codec,
+                           int maxMessageSize,
+                           boolean cbor) {
+                super(codec == null ?
+                      handshakeRequest :
+                      codec.wrap(handshakeRequest));
                 this.thing = thing;
+                this.codec = codec;
+                this.maxMessageSize = maxMessageSize;
+                this.cbor = cbor;
             }
 
             /**
              * Handle a new connection.
+             * <p>
+             * A client reconnecting after a dropped connection can pass the
+             * sequence number of the last message it received as the
+             * "resume" query parameter, in order to receive only the messages
+             * it missed.
+             * <p>
+             * A client passing "snapshot=true" instead receives the current
+             * property values and in-flight action statuses as its first
+             * message.
              */
             @Override
             protected void onOpen() {
+                Map<String, List<String>> params =
+                        this.getHandshakeRequest().getParameters();
+
+                List<String> resume = params.get("resume");
+                if (resume != null && resume.size() > 0) {
+                    try {
+                        this.thing.addSubscriber(this,
+                                                 Long.parseLong(resume.get(0)));
+                        return;
+                    } catch (NumberFormatException e) {
+                    }
+                }
+
+                List<String> snapshot = params.get("snapshot");
+                if (snapshot != null && snapshot.contains("true")) {
+                    this.thing.addSubscriberWithSnapshot(this);
+                    return;
+                }
+
                 this.thing.addSubscriber(this);
             }
 
@@ -862,6 +1574,12 @@ public class WebThingServer extends RouterNanoHTTPD {
                                    String reason,
                                    boolean initiatedByRemote) {
                 this.thing.removeSubscriber(this);
+
+                if (this.codec != null) {
+                    synchronized (this) {
+                        this.codec.end();
+                    }
+                }
             }
 
             /**
@@ -872,8 +1590,47 @@ public class WebThingServer extends RouterNanoHTTPD {
             @Override
             protected void onMessage(NanoWSD.WebSocketFrame message) {
                 message.setUnmasked();
-                String data = message.getTextPayload();
-                JSONObject json = new JSONObject(data);
+                byte[] payload = message.getBinaryPayload();
+                boolean compressed =
+                        this.codec != null && this.codec.isCompressed();
+                if (compressed) {
+                    try {
+                        payload = this.codec.decompress(payload,
+                                                        this.maxMessageSize);
+                    } catch (DataFormatException e) {
+                        try {
+                            this.close(NanoWSD.WebSocketFrame.CloseCode.InvalidFramePayloadData,
+                                       e.getMessage(),
+                                       false);
+                        } catch (IOException ignored) {
+                        }
+                        return;
+                    }
+                }
+
+                JSONObject json;
+                if (this.cbor &&
+                        (compressed ||
+                                message.getOpCode() ==
+                                        NanoWSD.WebSocketFrame.OpCode.Binary)) {
+                    Object value;
+                    try {
+                        value = Cbor.decode(payload);
+                    } catch (JSONException e) {
+                        value = null;
+                    }
+
+                    // Anything but an object is answered as an invalid
+                    // message below.
+                    json = value instanceof JSONObject ?
+                            (JSONObject)value :
+                            new JSONObject();
+                } else if (compressed) {
+                    json = new JSONObject(new String(payload,
+                                                     StandardCharsets.UTF_8));
+                } else {
+                    json = new JSONObject(message.getTextPayload());
+                }
 
                 if (!json.has("messageType") || !json.has("data")) {
                     JSONObject error = new JSONObject();
@@ -898,22 +1655,39 @@ public class WebThingServer extends RouterNanoHTTPD {
                             break;
                         }
 
+                        JSONObject expectedVersions =
+                                json.optJSONObject("expectedVersion");
+
                         for (int i = 0; i < propertyNames.length(); ++i) {
                             String propertyName = propertyNames.getString(i);
                             try {
-                                this.thing.setProperty(propertyName,
-                                                       messageData.get(
-                                                               propertyName));
+                                if (expectedVersions != null &&
+                                        expectedVersions.has(propertyName)) {
+                                    this.thing.setProperty(propertyName,
+                                                           messageData.get(
+                                                                   propertyName),
+                                                           expectedVersions.getLong(
+                                                                   propertyName));
+                                } else {
+                                    this.thing.setProperty(propertyName,
+                                                           messageData.get(
+                                                                   propertyName));
+                                }
                             } catch (PropertyError e) {
                                 JSONObject error = new JSONObject();
                                 JSONObject inner = new JSONObject();
 
-                                inner.put("status", "400 Bad Request");
+                                if (e instanceof PropertyVersionError) {
+                                    inner.put("status",
+                                              "412 Precondition Failed");
+                                } else {
+                                    inner.put("status", "400 Bad Request");
+                                }
                                 inner.put("message", e.getMessage());
                                 error.put("messageType", "error");
                                 error.put("data", inner);
 
-                                this.sendMessage(e.getMessage());
+                                this.sendMessage(error.toString());
                             }
                         }
                         break;
@@ -932,62 +1706,391 @@ public class WebThingServer extends RouterNanoHTTPD {
                                 input = params.getJSONObject("input");
                             }
 
-                            Action action =
-                                    this.thing.performAction(actionName, input);
-                            if (action != null) {
-                                (new ActionRunner(action)).start();
-                            } else {
-                                JSONObject error = new JSONObject();
-                                JSONObject inner = new JSONObject();
+                            String idempotencyKey =
+                                    params.optString("idempotencyKey", null);
+
+                            Action action;
+                            try {
+                                action = this.thing.performAction(actionName,
+                                                                  input,
+                                                                  idempotencyKey);
+                            } catch (ActionLimitError e) {
+                                JSONObject error = new JSONObject();
+                                JSONObject inner = new JSONObject();
+
+                                inner.put("status", "429 Too Many Requests");
+                                inner.put("message", e.getMessage());
+                                error.put("messageType", "error");
+                                error.put("data", inner);
+
+                                this.sendMessage(error.toString());
+                                continue;
+                            } catch (ActionError e) {
+                                JSONObject error = new JSONObject();
+                                JSONObject inner = new JSONObject();
+
+                                inner.put("status",
+                                          e.isInputError() ?
+                                          "400 Bad Request" :
+                                          "500 Internal Server Error");
+                                inner.put("message", e.getMessage());
+                                error.put("messageType", "error");
+                                error.put("data", inner);
+
+                                this.sendMessage(error.toString());
+                                continue;
+                            }
+
+                            if (action != null) {
+                                this.thing.startAction(action);
+                            } else {
+                                JSONObject error = new JSONObject();
+                                JSONObject inner = new JSONObject();
+
+                                inner.put("status", "400 Bad Request");
+                                inner.put("message", "Invalid action request");
+                                error.put("messageType", "error");
+                                error.put("data", inner);
+
+                                this.sendMessage(error.toString());
+                            }
+                        }
+                        break;
+                    case "addEventSubscription":
+                        JSONArray eventNames = messageData.names();
+                        if (eventNames == null) {
+                            break;
+                        }
+
+                        for (int i = 0; i < eventNames.length(); ++i) {
+                            String eventName = eventNames.getString(i);
+                            this.thing.addEventSubscriber(eventName, this);
+                        }
+                        break;
+                    default:
+                        JSONObject error = new JSONObject();
+                        JSONObject inner = new JSONObject();
+
+                        inner.put("status", "400 Bad Request");
+                        inner.put("message",
+                                  "Unknown messageType: " + messageType);
+                        error.put("messageType", "error");
+                        error.put("data", inner);
+
+                        this.sendMessage(error.toString());
+                        break;
+                }
+            }
+
+            @Override
+            protected void onPong(NanoWSD.WebSocketFrame pong) {
+            }
+
+            @Override
+            protected void onException(IOException exception) {
+            }
+
+            @Override
+            public void sendMessage(String message) {
+                try {
+                    if (this.codec == null) {
+                        if (this.cbor) {
+                            this.send(Cbor.fromJson(message));
+                        } else {
+                            this.send(message);
+                        }
+                        return;
+                    }
+
+                    // Messages have to be sent in the order they were
+                    // compressed in, as each may refer to the ones before.
+                    synchronized (this) {
+                        if (!this.isOpen()) {
+                            return;
+                        }
+
+                        NanoWSD.WebSocketFrame.OpCode opCode = this.cbor ?
+                                NanoWSD.WebSocketFrame.OpCode.Binary :
+                                NanoWSD.WebSocketFrame.OpCode.Text;
+                        byte[] bytes = this.cbor ?
+                                Cbor.fromJson(message) :
+                                message.getBytes(StandardCharsets.UTF_8);
+                        byte[] compressed = this.codec.compress(bytes);
+                        if (compressed == null) {
+                            this.sendFrame(new NanoWSD.WebSocketFrame(opCode,
+                                                                      true,
+                                                                      bytes));
+                        } else {
+                            this.sendFrame(new PerMessageDeflate.CompressedFrame(
+                                    opCode,
+                                    compressed));
+                        }
+                    }
+                } catch (IOException e) {
+                }
+            }
+
+            /**
+             * Close the socket of a client which fell too far behind. The
+             * close frame waits for any send in progress, as NanoWSD sends
+             * one frame at a time, but this runs on the thing's delivery
+             * executor rather than on a thread the thing waits for.
+             */
+            @Override
+            public void disconnect() {
+                try {
+                    this.close(NanoWSD.WebSocketFrame.CloseCode.GoingAway,
+                               "Too many unsent messages",
+                               false);
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Server-sent event stream of the messages sent by one or more things.
+     * <p>
+     * NanoHTTPD reads this as the body of a chunked response, blocking until
+     * a message is available. When the client goes away, the response is
+     * closed and the stream unsubscribes from its things.
+     */
+    public static class EventStream extends InputStream {
+        private static final byte[] KEEPALIVE =
+                ":\n\n".getBytes(StandardCharsets.UTF_8);
+        private final List<Thing> things;
+        private final boolean includeThingId;
+        private final long keepaliveInterval;
+        private final long[] positions;
+        private final List<Subscriber> subscribers;
+        private final BlockingQueue<byte[]> queue;
+        private byte[] current;
+        private int offset;
+        private volatile boolean closed;
+        private boolean unsubscribed;
+
+        /**
+         * Initialize the object.
+         *
+         * @param things         The things to stream messages from
+         * @param includeThingId Whether or not to tag each message with the
+         *                       ID of the thing it came from
+         */
+        public EventStream(List<Thing> things, boolean includeThingId) {
+            this(things, includeThingId, EVENT_STREAM_KEEPALIVE_INTERVAL);
+        }
+
+        /**
+         * Initialize the object.
+         *
+         * @param things            The things to stream messages from
+         * @param includeThingId    Whether or not to tag each message with the
+         *                          ID of the thing it came from
+         * @param keepaliveInterval Time without messages after which a
+         *                          comment is sent, in milliseconds
+         */
+        EventStream(List<Thing> things,
+                    boolean includeThingId,
+                    long keepaliveInterval) {
+            this.things = things;
+            this.includeThingId = includeThingId;
+            this.keepaliveInterval = keepaliveInterval;
+            this.positions = new long[things.size()];
+            this.subscribers = new ArrayList<>();
+            this.queue =
+                    new LinkedBlockingQueue<>(EVENT_STREAM_MAX_QUEUED_MESSAGES);
+            this.current = new byte[0];
+            this.offset = 0;
+            this.closed = false;
+            this.unsubscribed = false;
+        }
+
+        /**
+         * Subscribe to the things.
+         * <p>
+         * The event ID is the sequence number of the thing's last message, or
+         * for multiple things, a comma-separated list of those. When resuming
+         * from a Last-Event-ID, the missed messages are replayed first.
+         *
+         * @param lastEventId The Last-Event-ID sent by the client, or null
+         */
+        public void open(String lastEventId) {
+            long[] last = this.parseEventId(lastEventId);
+
+            for (int i = 0; i < this.things.size(); ++i) {
+                Thing thing = this.things.get(i);
+                Subscriber subscriber = new StreamSubscriber(i);
+                this.subscribers.add(subscriber);
+
+                if (last != null) {
+                    this.positions[i] = last[i];
+                    thing.addEventStreamSubscriber(subscriber, last[i]);
+                } else {
+                    this.positions[i] = thing.getSequence();
+                    thing.addEventStreamSubscriber(subscriber);
+                }
+            }
+        }
+
+        /**
+         * Parse a Last-Event-ID header.
+         *
+         * @param eventId The event ID
+         * @return Last sequence number per thing, or null if not valid.
+         */
+        private long[] parseEventId(String eventId) {
+            if (eventId == null) {
+                return null;
+            }
+
+            String[] parts = eventId.trim().split(",");
+            if (parts.length != this.things.size()) {
+                return null;
+            }
+
+            long[] sequences = new long[parts.length];
+            try {
+                for (int i = 0; i < parts.length; ++i) {
+                    sequences[i] = Long.parseLong(parts[i]);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            return sequences;
+        }
+
+        /**
+         * Queue a message from one of the things.
+         *
+         * @param index    Index of the thing the message came from
+         * @param sequence The message's sequence number, or -1 if none
+         * @param message  The serialized message
+         */
+        private synchronized void enqueue(int index,
+                                          long sequence,
+                                          String message) {
+            if (this.closed) {
+                return;
+            }
+
+            StringBuilder event = new StringBuilder();
+            if (sequence >= 0) {
+                this.positions[index] = Math.max(this.positions[index],
+                                                 sequence);
+
+                event.append("id: ");
+                for (int i = 0; i < this.positions.length; ++i) {
+                    if (i > 0) {
+                        event.append(',');
+                    }
+                    event.append(this.positions[i]);
+                }
+                event.append('\n');
+            }
+
+            event.append("data: ");
+            if (this.includeThingId) {
+                // Splice the ID into the already-serialized message rather
+                // than parsing it again.
+                event.append("{\"thingId\":")
+                     .append(JSONObject.quote(this.things.get(index).getId()))
+                     .append(',')
+                     .append(message, 1, message.length());
+            } else {
+                event.append(message);
+            }
+            event.append("\n\n");
+
+            // A client which cannot keep up is dropped, and can resume from
+            // its last event ID once it reconnects.
+            if (!this.queue.offer(event.toString()
+                                       .getBytes(StandardCharsets.UTF_8))) {
+                this.closed = true;
+                this.queue.clear();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            if (this.read(b, 0, 1) <= 0) {
+                return -1;
+            }
 
-                                inner.put("status", "400 Bad Request");
-                                inner.put("message", "Invalid action request");
-                                error.put("messageType", "error");
-                                error.put("data", inner);
+            return b[0] & 0xff;
+        }
 
-                                this.sendMessage(error.toString());
-                            }
-                        }
-                        break;
-                    case "addEventSubscription":
-                        JSONArray eventNames = messageData.names();
-                        if (eventNames == null) {
-                            break;
-                        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (this.offset >= this.current.length) {
+                if (this.closed) {
+                    return -1;
+                }
 
-                        for (int i = 0; i < eventNames.length(); ++i) {
-                            String eventName = eventNames.getString(i);
-                            this.thing.addEventSubscriber(eventName, this);
-                        }
-                        break;
-                    default:
-                        JSONObject error = new JSONObject();
-                        JSONObject inner = new JSONObject();
+                try {
+                    byte[] next =
+                            this.queue.poll(this.keepaliveInterval,
+                                            TimeUnit.MILLISECONDS);
+                    this.current = next == null ? KEEPALIVE : next;
+                    this.offset = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
 
-                        inner.put("status", "400 Bad Request");
-                        inner.put("message",
-                                  "Unknown messageType: " + messageType);
-                        error.put("messageType", "error");
-                        error.put("data", inner);
+            int count = Math.min(len, this.current.length - this.offset);
+            System.arraycopy(this.current, this.offset, b, off, count);
+            this.offset += count;
+            return count;
+        }
 
-                        this.sendMessage(error.toString());
-                        break;
+        @Override
+        public void close() {
+            this.closed = true;
+
+            synchronized (this.subscribers) {
+                if (this.unsubscribed) {
+                    return;
                 }
+
+                this.unsubscribed = true;
+            }
+
+            for (int i = 0; i < this.subscribers.size(); ++i) {
+                this.things.get(i).removeSubscriber(this.subscribers.get(i));
+            }
+        }
+
+        /**
+         * Subscriber forwarding one thing's messages to the stream.
+         */
+        private class StreamSubscriber implements Subscriber {
+            private final int index;
+
+            /**
+             * Initialize the object.
+             *
+             * @param index Index of the thing in the stream
+             */
+            public StreamSubscriber(int index) {
+                this.index = index;
             }
 
             @Override
-            protected void onPong(NanoWSD.WebSocketFrame pong) {
+            public void sendMessage(String message) {
+                EventStream.this.enqueue(this.index, -1, message);
             }
 
             @Override
-            protected void onException(IOException exception) {
+            public void sendMessage(long sequence, String message) {
+                EventStream.this.enqueue(this.index, sequence, message);
             }
 
-            public void sendMessage(String message) {
-                try {
-                    this.send(message);
-                } catch (IOException e) {
-                }
+            @Override
+            public void disconnect() {
+                EventStream.this.close();
             }
         }
     }
@@ -998,6 +2101,12 @@ public class WebThingServer extends RouterNanoHTTPD {
     public static class PropertiesHandler extends BaseHandler {
         /**
          * Handle a GET request.
+         * <p>
+         * With a "since" query parameter, only the properties changed since
+         * that version are returned, along with the current version. With an
+         * additional "wait" parameter, in milliseconds, the request is held
+         * until a change occurs or the time runs out, unless too many
+         * requests are waiting already.
          *
          * @param uriResource The URI resource that was matched
          * @param urlParams   Map of URL parameters
@@ -1014,13 +2123,61 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
+            Map<String, List<String>> params = session.getParameters();
+            if (params.containsKey("since")) {
+                long since;
+                long wait = 0;
+                try {
+                    since = Long.parseLong(params.get("since").get(0));
+                    if (params.containsKey("wait")) {
+                        wait = Long.parseLong(params.get("wait").get(0));
+                    }
+                } catch (NumberFormatException e) {
+                    return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
+                                                                         null,
+                                                                         null));
+                }
+
+                wait = Math.max(0, Math.min(wait, LONG_POLL_MAX_WAIT));
+                if (wait == 0 || thing.getPropertyVersion() > since) {
+                    return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
+                                                                         "application/json",
+                                                                         thing.getPropertyChanges(
+                                                                                 since,
+                                                                                 0)
+                                                                              .toString()));
+                }
+
+                LongPollLimit longPolls =
+                        uriResource.initParameter(4, LongPollLimit.class);
+                if (!longPolls.tryAcquire()) {
+                    Response response =
+                            NanoHTTPD.newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE,
+                                                             null,
+                                                             null);
+                    response.addHeader("Retry-After", "1");
+                    return corsResponse(response);
+                }
+
+                JSONObject changes;
+                try {
+                    changes = thing.getPropertyChanges(since, wait);
+                } finally {
+                    longPolls.release();
+                }
+
+                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
+                                                                     "application/json",
+                                                                     changes.toString()));
+            }
+
             return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
                                                                  "application/json",
                                                                  thing.getProperties()
@@ -1032,6 +2189,16 @@ public class WebThingServer extends RouterNanoHTTPD {
      * Handle a request to /properties/&lt;property&gt;.
      */
     public static class PropertyHandler extends BaseHandler {
+        /**
+         * Get the property name from the URI.
+         *
+         * @param urlParams Map of URL parameters
+         * @return The property name.
+         */
+        public String getPropertyName(Map<String, String> urlParams) {
+            return urlParams.get("propertyName");
+        }
+
         /**
          * Get the property name from the URI.
          *
@@ -1039,19 +2206,88 @@ public class WebThingServer extends RouterNanoHTTPD {
          * @param session     The HTTP session
          * @return The property name.
          */
-        public String getPropertyName(UriResource uriResource,
-                                      IHTTPSession session) {
-            ThingsType things = uriResource.initParameter(0, ThingsType.class);
+        public String getPropertyName(UriResource uriResource, IHTTPSession session) {
+            return this.getPropertyName(this.getUrlParams(uriResource, session));
+        }
 
-            if (MultipleThings.class.isInstance(things)) {
-                return this.getUriParam(session.getUri(), 3);
-            } else {
-                return this.getUriParam(session.getUri(), 2);
+        /**
+         * Build an ETag from a property version.
+         *
+         * @param version The property version
+         * @return The ETag.
+         */
+        private String makeETag(long version) {
+            return "\"" + version + "\"";
+        }
+
+        /**
+         * Parse a property version from an ETag, as sent in an If-Match
+         * header.
+         *
+         * @param etag The ETag
+         * @return The property version, or null if not valid.
+         */
+        private Long parseETag(String etag) {
+            String tag = etag.trim();
+            if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+                tag = tag.substring(1, tag.length() - 1);
+            }
+
+            try {
+                return Long.parseLong(tag);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Wait for an asynchronous property write to reach the thing.
+         * <p>
+         * By default, this waits for a few seconds. Clients can ask not to
+         * wait with "Prefer: respond-async", or for a different time with
+         * "Prefer: wait=&lt;seconds&gt;".
+         *
+         * @param property The property that was written
+         * @param session  The HTTP session
+         * @return Boolean indicating whether or not the write completed.
+         * @throws PropertyError If the thing did not take the value.
+         */
+        private boolean awaitWrite(Property property, IHTTPSession session)
+                throws PropertyError {
+            long wait = ASYNC_WRITE_DEFAULT_WAIT;
+
+            String prefer = session.getHeaders().get("prefer");
+            if (prefer != null) {
+                for (String preference : prefer.split(",")) {
+                    preference = preference.trim().toLowerCase();
+                    if (preference.equals("respond-async")) {
+                        return false;
+                    }
+
+                    if (preference.startsWith("wait=")) {
+                        try {
+                            wait = Long.parseLong(preference.substring(5)) *
+                                    1000;
+                        } catch (NumberFormatException e) {
+                        }
+                    }
+                }
+            }
+
+            try {
+                return property.awaitWrite(Math.max(0,
+                                                    Math.min(wait,
+                                                             ASYNC_WRITE_MAX_WAIT)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
         }
 
         /**
          * Handle a GET request.
+         * <p>
+         * The response carries the property version as its ETag.
          *
          * @param uriResource The URI resource that was matched
          * @param urlParams   Map of URL parameters
@@ -1068,14 +2304,14 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            String propertyName = this.getPropertyName(uriResource, session);
+            String propertyName = this.getPropertyName(urlParams);
             if (!thing.hasProperty(propertyName)) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
@@ -1084,15 +2320,20 @@ public class WebThingServer extends RouterNanoHTTPD {
 
             JSONObject obj = new JSONObject();
             try {
-                Object value = thing.getProperty(propertyName);
+                Property property = thing.findProperty(propertyName);
+                long version = property.getVersion();
+                Object value = property.getValue();
                 if (value == null) {
                     obj.put(propertyName, JSONObject.NULL);
                 } else {
                     obj.putOpt(propertyName, value);
                 }
-                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                     "application/json",
-                                                                     obj.toString()));
+                Response response =
+                        NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
+                                                         "application/json",
+                                                         obj.toString());
+                response.addHeader("ETag", this.makeETag(version));
+                return corsResponse(response);
             } catch (JSONException e) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR,
                                                                      null,
@@ -1102,6 +2343,14 @@ public class WebThingServer extends RouterNanoHTTPD {
 
         /**
          * Handle a PUT request.
+         * <p>
+         * With an If-Match header, the property is only written if its
+         * current version matches, otherwise 412 Precondition Failed is
+         * returned.
+         * <p>
+         * If the property forwards writes asynchronously and the write does
+         * not complete in time, 202 Accepted is returned, and the new value
+         * is reported through the usual property notifications.
          *
          * @param uriResource The URI resource that was matched
          * @param urlParams   Map of URL parameters
@@ -1118,21 +2367,21 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            String propertyName = this.getPropertyName(uriResource, session);
+            String propertyName = this.getPropertyName(urlParams);
             if (!thing.hasProperty(propertyName)) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            JSONObject json = this.parseBody(session);
+            JSONObject json = this.parseBody(uriResource, session);
             if (json == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
                                                                      null,
@@ -1145,18 +2394,53 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
+            String ifMatch = session.getHeaders().get("if-match");
+            Long expectedVersion = null;
+            if (ifMatch != null && !ifMatch.trim().equals("*")) {
+                expectedVersion = this.parseETag(ifMatch);
+                if (expectedVersion == null) {
+                    return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.PRECONDITION_FAILED,
+                                                                         null,
+                                                                         null));
+                }
+            }
+
             try {
-                thing.setProperty(propertyName, json.get(propertyName));
+                if (expectedVersion == null) {
+                    thing.setProperty(propertyName, json.get(propertyName));
+                } else {
+                    thing.setProperty(propertyName,
+                                      json.get(propertyName),
+                                      expectedVersion);
+                }
+
+                Property property = thing.findProperty(propertyName);
+                if (property.isWritePending() &&
+                        !this.awaitWrite(property, session)) {
+                    JSONObject obj = new JSONObject();
+                    obj.putOpt(propertyName, json.get(propertyName));
+                    return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.ACCEPTED,
+                                                                         "application/json",
+                                                                         obj.toString()));
+                }
 
+                long version = property.getVersion();
                 JSONObject obj = new JSONObject();
-                obj.putOpt(propertyName, thing.getProperty(propertyName));
-                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                     "application/json",
-                                                                     obj.toString()));
+                obj.putOpt(propertyName, property.getValue());
+                Response response =
+                        NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
+                                                         "application/json",
+                                                         obj.toString());
+                response.addHeader("ETag", this.makeETag(version));
+                return corsResponse(response);
             } catch (JSONException e) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR,
                                                                      null,
                                                                      null));
+            } catch (PropertyVersionError e) {
+                return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.PRECONDITION_FAILED,
+                                                                     null,
+                                                                     null));
             } catch (PropertyError e) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
                                                                      null,
@@ -1171,6 +2455,10 @@ public class WebThingServer extends RouterNanoHTTPD {
     public static class ActionsHandler extends BaseHandler {
         /**
          * Handle a GET request.
+         * <p>
+         * The "since", "until", "limit" and "cursor" query parameters
+         * restrict the listing to a time range and split it into pages, as
+         * described for listingResponse().
          *
          * @param uriResource The URI resource that was matched
          * @param urlParams   Map of URL parameters
@@ -1187,18 +2475,16 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 thing.getActionDescriptions(
-                                                                         null)
-                                                                      .toString()));
+            return this.listingResponse(session,
+                                        thing.getActionIndex(null),
+                                        Action::writeActionDescription);
         }
 
         /**
@@ -1219,14 +2505,14 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            JSONObject json = this.parseBody(session);
+            JSONObject json = this.parseBody(uriResource, session);
             if (json == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
                                                                      null,
@@ -1249,19 +2535,38 @@ public class WebThingServer extends RouterNanoHTTPD {
                     input = params.getJSONObject("input");
                 }
 
-                Action action = thing.performAction(actionName, input);
-                if (action != null) {
-                    JSONObject response = new JSONObject();
-                    response.put(actionName,
-                                 action.asActionDescription()
-                                       .getJSONObject(actionName));
+                Thing.ActionRequest request;
+                try {
+                    request = thing.requestAction(actionName,
+                                                  input,
+                                                  session.getHeaders()
+                                                         .get("idempotency-key"));
+                } catch (ActionLimitError e) {
+                    return corsResponse(NanoHTTPD.newFixedLengthResponse(
+                            Response.Status.TOO_MANY_REQUESTS,
+                            null,
+                            null));
+                } catch (ActionError e) {
+                    return this.actionErrorResponse(e);
+                }
+
+                if (request != null) {
+                    // Describe the action as it was created, before it
+                    // starts. A repeated request gets the original action as
+                    // it is now.
+                    Action action = request.getAction();
+                    JsonWriter writer = JsonWriter.reuse();
+                    action.writeActionDescription(writer);
+                    String response = writer.toString();
 
-                    (new ActionRunner(action)).start();
+                    thing.startAction(action);
 
                     return corsResponse(NanoHTTPD.newFixedLengthResponse(
+                            request.isRepeated() ?
+                            Response.Status.OK :
                             Response.Status.CREATED,
                             "application/json",
-                            response.toString()));
+                            response));
                 } else {
                     return corsResponse(NanoHTTPD.newFixedLengthResponse(
                             Response.Status.BAD_REQUEST,
@@ -1280,26 +2585,33 @@ public class WebThingServer extends RouterNanoHTTPD {
      * Handle a request to /actions/&lt;action_name&gt;.
      */
     public static class ActionHandler extends BaseHandler {
+        /**
+         * Get the action name from the URI.
+         *
+         * @param urlParams Map of URL parameters
+         * @return The action name.
+         */
+        public String getActionName(Map<String, String> urlParams) {
+            return urlParams.get("actionName");
+        }
+
         /**
          * Get the action name from the URI.
          *
          * @param uriResource The URI resource that was matched
          * @param session     The HTTP session
-         * @return The property name.
+         * @return The action name.
          */
-        public String getActionName(UriResource uriResource,
-                                    IHTTPSession session) {
-            ThingsType things = uriResource.initParameter(0, ThingsType.class);
-
-            if (MultipleThings.class.isInstance(things)) {
-                return this.getUriParam(session.getUri(), 3);
-            } else {
-                return this.getUriParam(session.getUri(), 2);
-            }
+        public String getActionName(UriResource uriResource, IHTTPSession session) {
+            return this.getActionName(this.getUrlParams(uriResource, session));
         }
 
         /**
          * Handle a GET request.
+         * <p>
+         * The "since", "until", "limit" and "cursor" query parameters
+         * restrict the listing to a time range and split it into pages, as
+         * described for listingResponse().
          *
          * @param uriResource The URI resource that was matched
          * @param urlParams   Map of URL parameters
@@ -1316,20 +2628,16 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 thing.getActionDescriptions(
-                                                                         this.getActionName(
-                                                                                 uriResource,
-                                                                                 session))
-                                                                      .toString()));
+            return this.listingResponse(session,
+                                        thing.getActionIndex(this.getActionName(urlParams)),
+                                        Action::writeActionDescription);
         }
 
         /**
@@ -1350,21 +2658,21 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            JSONObject json = this.parseBody(session);
+            JSONObject json = this.parseBody(uriResource, session);
             if (json == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST,
                                                                      null,
                                                                      null));
             }
 
-            String actionName = this.getActionName(uriResource, session);
+            String actionName = this.getActionName(urlParams);
 
             try {
                 JSONArray actionNames = json.names();
@@ -1389,19 +2697,38 @@ public class WebThingServer extends RouterNanoHTTPD {
                     input = params.getJSONObject("input");
                 }
 
-                Action action = thing.performAction(name, input);
-                if (action != null) {
-                    JSONObject response = new JSONObject();
-                    response.put(name,
-                                 action.asActionDescription()
-                                       .getJSONObject(name));
+                Thing.ActionRequest request;
+                try {
+                    request = thing.requestAction(name,
+                                                  input,
+                                                  session.getHeaders()
+                                                         .get("idempotency-key"));
+                } catch (ActionLimitError e) {
+                    return corsResponse(NanoHTTPD.newFixedLengthResponse(
+                            Response.Status.TOO_MANY_REQUESTS,
+                            null,
+                            null));
+                } catch (ActionError e) {
+                    return this.actionErrorResponse(e);
+                }
+
+                if (request != null) {
+                    // Describe the action as it was created, before it
+                    // starts. A repeated request gets the original action as
+                    // it is now.
+                    Action action = request.getAction();
+                    JsonWriter writer = JsonWriter.reuse();
+                    action.writeActionDescription(writer);
+                    String response = writer.toString();
 
-                    (new ActionRunner(action)).start();
+                    thing.startAction(action);
 
                     return corsResponse(NanoHTTPD.newFixedLengthResponse(
+                            request.isRepeated() ?
+                            Response.Status.OK :
                             Response.Status.CREATED,
                             "application/json",
-                            response.toString()));
+                            response));
                 } else {
                     return corsResponse(NanoHTTPD.newFixedLengthResponse(
                             Response.Status.BAD_REQUEST,
@@ -1420,22 +2747,35 @@ public class WebThingServer extends RouterNanoHTTPD {
      * Handle a request to /actions/&lt;action_name&gt;/&lt;action_id&gt;.
      */
     public static class ActionIDHandler extends BaseHandler {
+        /**
+         * Get the action name from the URI.
+         *
+         * @param urlParams Map of URL parameters
+         * @return The action name.
+         */
+        public String getActionName(Map<String, String> urlParams) {
+            return urlParams.get("actionName");
+        }
+
         /**
          * Get the action name from the URI.
          *
          * @param uriResource The URI resource that was matched
          * @param session     The HTTP session
-         * @return The property name.
+         * @return The action name.
          */
-        public String getActionName(UriResource uriResource,
-                                    IHTTPSession session) {
-            ThingsType things = uriResource.initParameter(0, ThingsType.class);
+        public String getActionName(UriResource uriResource, IHTTPSession session) {
+            return this.getActionName(this.getUrlParams(uriResource, session));
+        }
 
-            if (MultipleThings.class.isInstance(things)) {
-                return this.getUriParam(session.getUri(), 3);
-            } else {
-                return this.getUriParam(session.getUri(), 2);
-            }
+        /**
+         * Get the action ID from the URI.
+         *
+         * @param urlParams Map of URL parameters
+         * @return The action ID.
+         */
+        public String getActionId(Map<String, String> urlParams) {
+            return urlParams.get("actionId");
         }
 
         /**
@@ -1443,17 +2783,10 @@ public class WebThingServer extends RouterNanoHTTPD {
          *
          * @param uriResource The URI resource that was matched
          * @param session     The HTTP session
-         * @return The property name.
+         * @return The action ID.
          */
-        public String getActionId(UriResource uriResource,
-                                  IHTTPSession session) {
-            ThingsType things = uriResource.initParameter(0, ThingsType.class);
-
-            if (MultipleThings.class.isInstance(things)) {
-                return this.getUriParam(session.getUri(), 4);
-            } else {
-                return this.getUriParam(session.getUri(), 3);
-            }
+        public String getActionId(UriResource uriResource, IHTTPSession session) {
+            return this.getActionId(this.getUrlParams(uriResource, session));
         }
 
         /**
@@ -1474,15 +2807,15 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            String actionName = this.getActionName(uriResource, session);
-            String actionId = this.getActionId(uriResource, session);
+            String actionName = this.getActionName(urlParams);
+            String actionId = this.getActionId(urlParams);
 
             Action action = thing.getAction(actionName, actionId);
             if (action == null) {
@@ -1491,10 +2824,12 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                                      null));
             }
 
+            JsonWriter writer = JsonWriter.reuse();
+            action.writeActionDescription(writer);
+
             return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
                                                                  "application/json",
-                                                                 action.asActionDescription()
-                                                                       .toString()));
+                                                                 writer.toString()));
         }
 
         /**
@@ -1515,7 +2850,7 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
@@ -1546,15 +2881,15 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            String actionName = this.getActionName(uriResource, session);
-            String actionId = this.getActionId(uriResource, session);
+            String actionName = this.getActionName(urlParams);
+            String actionId = this.getActionId(urlParams);
 
             if (thing.removeAction(actionName, actionId)) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NO_CONTENT,
@@ -1574,6 +2909,10 @@ public class WebThingServer extends RouterNanoHTTPD {
     public static class EventsHandler extends BaseHandler {
         /**
          * Handle a GET request.
+         * <p>
+         * The "since", "until", "limit" and "cursor" query parameters
+         * restrict the listing to a time range and split it into pages, as
+         * described for listingResponse().
          *
          * @param uriResource The URI resource that was matched
          * @param urlParams   Map of URL parameters
@@ -1590,18 +2929,16 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 thing.getEventDescriptions(
-                                                                         null)
-                                                                      .toString()));
+            return this.listingResponse(session,
+                                        thing.getEventIndex(null),
+                                        Event::writeEventDescription);
         }
     }
 
@@ -1609,26 +2946,33 @@ public class WebThingServer extends RouterNanoHTTPD {
      * Handle a request to /events/&lt;event_name&gt;.
      */
     public static class EventHandler extends BaseHandler {
+        /**
+         * Get the event name from the URI.
+         *
+         * @param urlParams Map of URL parameters
+         * @return The event name.
+         */
+        public String getEventName(Map<String, String> urlParams) {
+            return urlParams.get("eventName");
+        }
+
         /**
          * Get the event name from the URI.
          *
          * @param uriResource The URI resource that was matched
          * @param session     The HTTP session
-         * @return The property name.
+         * @return The event name.
          */
-        public String getEventName(UriResource uriResource,
-                                   IHTTPSession session) {
-            ThingsType things = uriResource.initParameter(0, ThingsType.class);
-
-            if (MultipleThings.class.isInstance(things)) {
-                return this.getUriParam(session.getUri(), 3);
-            } else {
-                return this.getUriParam(session.getUri(), 2);
-            }
+        public String getEventName(UriResource uriResource, IHTTPSession session) {
+            return this.getEventName(this.getUrlParams(uriResource, session));
         }
 
         /**
          * Handle a GET request.
+         * <p>
+         * The "since", "until", "limit" and "cursor" query parameters
+         * restrict the listing to a time range and split it into pages, as
+         * described for listingResponse().
          *
          * @param uriResource The URI resource that was matched
          * @param urlParams   Map of URL parameters
@@ -1645,20 +2989,16 @@ public class WebThingServer extends RouterNanoHTTPD {
                                                         null);
             }
 
-            Thing thing = this.getThing(uriResource, session);
+            Thing thing = this.getThing(uriResource, urlParams);
             if (thing == null) {
                 return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND,
                                                                      null,
                                                                      null));
             }
 
-            return corsResponse(NanoHTTPD.newFixedLengthResponse(Response.Status.OK,
-                                                                 "application/json",
-                                                                 thing.getEventDescriptions(
-                                                                         this.getEventName(
-                                                                                 uriResource,
-                                                                                 session))
-                                                                      .toString()));
+            return this.listingResponse(session,
+                                        thing.getEventIndex(this.getEventName(urlParams)),
+                                        Event::writeEventDescription);
         }
     }
 
@@ -1757,6 +3097,155 @@ public class WebThingServer extends RouterNanoHTTPD {
         }
     }
 
+    /**
+     * A routed handler.
+     * <p>
+     * NanoHTTPD creates a new handler for every request. The server's own
+     * handlers keep no state, so one instance of each is shared instead.
+     */
+    private static class RouteTarget {
+        private final UriResource resource;
+        private final UriResponder responder;
+        private final boolean description;
+
+        /**
+         * Initialize the object.
+         *
+         * @param resource The URI resource
+         * @param handler  Class which will handle the request
+         */
+        RouteTarget(UriResource resource, Class<?> handler) {
+            this.resource = resource;
+            this.description = handler == ThingHandler.class;
+
+            UriResponder responder = null;
+            if (handler.getDeclaringClass() == WebThingServer.class &&
+                    UriResponder.class.isAssignableFrom(handler)) {
+                try {
+                    responder = (UriResponder)handler.getDeclaredConstructor()
+                                                     .newInstance();
+                } catch (ReflectiveOperationException e) {
+                    responder = null;
+                }
+            }
+            this.responder = responder;
+        }
+
+        /**
+         * Get the URI resource.
+         *
+         * @return The resource.
+         */
+        UriResource getResource() {
+            return this.resource;
+        }
+
+        /**
+         * Determine whether this route serves thing descriptions.
+         *
+         * @return Boolean indicating whether this is a description route.
+         */
+        boolean isDescription() {
+            return this.description;
+        }
+
+        /**
+         * Find the thing whose description a request to this route asks
+         * for.
+         *
+         * @param urlParams Map of URL parameters
+         * @param session   The HTTP session
+         * @return The thing, or null if this is not a description request.
+         */
+        Thing getDescribedThing(Map<String, String> urlParams,
+                                IHTTPSession session) {
+            if (!(this.responder instanceof ThingHandler)) {
+                return null;
+            }
+
+            return ((ThingHandler)this.responder).getDescribedThing(
+                    this.resource,
+                    urlParams,
+                    session);
+        }
+
+        /**
+         * Add this route's CORS headers to a response which did not come
+         * from its handler.
+         *
+         * @param response The response
+         * @return The response.
+         */
+        Response corsResponse(Response response) {
+            if (!(this.responder instanceof BaseHandler)) {
+                return response;
+            }
+
+            return ((BaseHandler)this.responder).corsResponse(response);
+        }
+
+        /**
+         * Handle a request.
+         *
+         * @param urlParams Map of URL parameters
+         * @param session   The HTTP session
+         * @return The response.
+         */
+        Response process(Map<String, String> urlParams, IHTTPSession session) {
+            if (this.responder == null) {
+                return this.resource.process(urlParams, session);
+            }
+
+            try {
+                switch (session.getMethod()) {
+                    case GET:
+                        return this.responder.get(this.resource,
+                                                  urlParams,
+                                                  session);
+                    case POST:
+                        return this.responder.post(this.resource,
+                                                   urlParams,
+                                                   session);
+                    case PUT:
+                        return this.responder.put(this.resource,
+                                                  urlParams,
+                                                  session);
+                    case DELETE:
+                        return this.responder.delete(this.resource,
+                                                     urlParams,
+                                                     session);
+                    default:
+                        return this.responder.other(session.getMethod()
+                                                           .toString(),
+                                                    this.resource,
+                                                    urlParams,
+                                                    session);
+                }
+            } catch (PayloadTooLargeError e) {
+                // The rest of the body is left unread, so the connection
+                // cannot be reused.
+                Response response =
+                        NanoHTTPD.newFixedLengthResponse(Response.Status.PAYLOAD_TOO_LARGE,
+                                                         NanoHTTPD.MIME_PLAINTEXT,
+                                                         e.getMessage());
+                response.closeConnection(true);
+                if (this.responder instanceof BaseHandler) {
+                    return ((BaseHandler)this.responder).corsResponse(response);
+                }
+
+                return response;
+            } catch (RuntimeException e) {
+                return NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR,
+                                                        NanoHTTPD.MIME_PLAINTEXT,
+                                                        "Error: " +
+                                                                e.getClass()
+                                                                 .getName() +
+                                                                " : " +
+                                                                e.getMessage());
+            }
+        }
+    }
+
     /**
      * Mini-class used to define additional API routes.
      */
@@ -0,0 +1,31 @@
+package io.webthings.webthing.errors;
+
+import org.json.JSONException;
+
+/**
+ * Thrown when an action could not be created, because its constructor or
+ * factory failed.
+ * <p>
+ * The cause is the exception the factory threw. This is unchecked, like the
+ * exceptions it wraps.
+ */
+public class ActionError extends RuntimeException {
+    public ActionError(String message) {
+        super(message);
+    }
+
+    public ActionError(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Determine whether the action failed because of its input, e.g. a
+     * missing or malformed field, rather than because of the thing.
+     *
+     * @return Boolean indicating whether or not the input was at fault.
+     */
+    public boolean isInputError() {
+        return this.getCause() instanceof IllegalArgumentException ||
+                this.getCause() instanceof JSONException;
+    }
+}
@@ -0,0 +1,18 @@
+package io.webthings.webthing.errors;
+
+/**
+ * Thrown when an action is rejected because too many instances of it are
+ * already running.
+ * <p>
+ * This is unchecked, as it is only thrown for actions which declare a
+ * "reject" queue policy.
+ */
+public class ActionLimitError extends RuntimeException {
+    public ActionLimitError() {
+        super("Too many concurrent actions");
+    }
+
+    public ActionLimitError(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,17 @@
+package io.webthings.webthing.errors;
+
+/**
+ * Thrown when a request body is larger than the server accepts.
+ * <p>
+ * This is unchecked, so that it can pass through the request handlers and be
+ * answered with 413 Payload Too Large by the server.
+ */
+public class PayloadTooLargeError extends RuntimeException {
+    public PayloadTooLargeError() {
+        super("Request body too large");
+    }
+
+    public PayloadTooLargeError(String message) {
+        super(message);
+    }
+}
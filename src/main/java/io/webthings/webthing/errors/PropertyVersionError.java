@@ -0,0 +1,11 @@
+package io.webthings.webthing.errors;
+
+public class PropertyVersionError extends PropertyError {
+    public PropertyVersionError() {
+        super("Property version mismatch");
+    }
+
+    public PropertyVersionError(String message) {
+        super(message);
+    }
+}
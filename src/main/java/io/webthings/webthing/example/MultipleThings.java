@@ -120,6 +120,8 @@ public class MultipleThings {
             fadeProperties.put("duration", fadeDuration);
             fadeInput.put("properties", fadeProperties);
             fadeMetadata.put("input", fadeInput);
+            // Fades on the same lamp run one after another.
+            fadeMetadata.put("lane", "lamp");
             this.addAvailableAction("fade", fadeMetadata, FadeAction.class);
 
             JSONObject overheatedMetadata = new JSONObject();
@@ -148,6 +150,8 @@ public class MultipleThings {
                 try {
                     Thread.sleep(input.getInt("duration"));
                 } catch (InterruptedException e) {
+                    // The action was cancelled.
+                    return;
                 }
 
                 try {
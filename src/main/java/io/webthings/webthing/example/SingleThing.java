@@ -67,6 +67,8 @@ public class SingleThing {
         fadeProperties.put("duration", fadeDuration);
         fadeInput.put("properties", fadeProperties);
         fadeMetadata.put("input", fadeInput);
+        // Fades on the same lamp run one after another.
+        fadeMetadata.put("lane", "lamp");
         thing.addAvailableAction("fade", fadeMetadata, FadeAction.class);
 
         JSONObject overheatedMetadata = new JSONObject();
@@ -120,6 +122,8 @@ public class SingleThing {
             try {
                 Thread.sleep(input.getInt("duration"));
             } catch (InterruptedException e) {
+                // The action was cancelled.
+                return;
             }
 
             try {
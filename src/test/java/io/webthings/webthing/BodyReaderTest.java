@@ -0,0 +1,127 @@
+package io.webthings.webthing;
+
+import org.json.JSONObject;
+import io.webthings.webthing.errors.PayloadTooLargeError;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class BodyReaderTest {
+    private static NanoHTTPD.IHTTPSession makeSession(Map<String, String> headers,
+                                                      InputStream body) {
+        return (NanoHTTPD.IHTTPSession)Proxy.newProxyInstance(
+                NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                new Class[]{NanoHTTPD.IHTTPSession.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getHeaders":
+                            return headers;
+                        case "getInputStream":
+                            return body;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static NanoHTTPD.IHTTPSession makeSession(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        Map<String, String> headers = new HashMap<>();
+        headers.put("content-length", String.valueOf(bytes.length));
+        return makeSession(headers, new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void testShortReads() {
+        byte[] bytes = "{\"level\": 42}".getBytes(StandardCharsets.UTF_8);
+        Map<String, String> headers = new HashMap<>();
+        headers.put("content-length", String.valueOf(bytes.length));
+
+        // Return at most two bytes per read, as a slow socket might.
+        InputStream in = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 2));
+            }
+        };
+
+        JSONObject json =
+                new BodyReader(1024).readJson(makeSession(headers, in));
+        assertEquals(42, json.getInt("level"));
+    }
+
+    @Test
+    public void testChunked() {
+        String chunked = "5\r\n{\"lev\r\n8;ext=1\r\nel\": 42}\r\n0\r\nX-Trailer: 1\r\n\r\n";
+        Map<String, String> headers = new HashMap<>();
+        headers.put("transfer-encoding", "chunked");
+
+        JSONObject json = new BodyReader(1024).readJson(makeSession(
+                headers,
+                new ByteArrayInputStream(chunked.getBytes(StandardCharsets.UTF_8))));
+        assertEquals(42, json.getInt("level"));
+    }
+
+    @Test
+    public void testInvalidBodies() {
+        BodyReader reader = new BodyReader(1024);
+        assertNull(reader.readJson(makeSession(new HashMap<>(),
+                                               new ByteArrayInputStream(new byte[0]))));
+        assertNull(reader.readJson(makeSession("{\"level\": ")));
+        assertNull(reader.readJson(makeSession("[1, 2]")));
+
+        // The body ends before its declared length.
+        Map<String, String> headers = new HashMap<>();
+        headers.put("content-length", "100");
+        assertNull(reader.readJson(makeSession(
+                headers,
+                new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    @Test
+    public void testTooLarge() {
+        BodyReader reader = new BodyReader(8);
+        try {
+            reader.readJson(makeSession("{\"level\": 42}"));
+            fail("Expected PayloadTooLargeError");
+        } catch (PayloadTooLargeError e) {
+        }
+
+        String chunked = "8\r\n{\"level\"\r\n8\r\n: 42}   \r\n0\r\n\r\n";
+        Map<String, String> headers = new HashMap<>();
+        headers.put("transfer-encoding", "chunked");
+        try {
+            reader.readJson(makeSession(
+                    headers,
+                    new ByteArrayInputStream(chunked.getBytes(StandardCharsets.UTF_8))));
+            fail("Expected PayloadTooLargeError");
+        } catch (PayloadTooLargeError e) {
+        }
+    }
+
+    @Test
+    public void testReadText() throws IOException {
+        BodyReader reader = new BodyReader(8);
+        assertEquals("h\u00e9llo",
+                     reader.readText(new ByteArrayInputStream(
+                             "h\u00e9llo".getBytes(StandardCharsets.UTF_8))));
+
+        try {
+            reader.readText(new ByteArrayInputStream(new byte[9]));
+            fail("Expected PayloadTooLargeError");
+        } catch (PayloadTooLargeError e) {
+        }
+    }
+}
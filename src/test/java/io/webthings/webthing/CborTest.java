@@ -0,0 +1,160 @@
+package io.webthings.webthing;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CborTest {
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            bytes[i] = (byte)values[i];
+        }
+
+        return bytes;
+    }
+
+    @Test
+    public void testEncodeScalars() {
+        // Examples from RFC 8949, appendix A.
+        assertArrayEquals(bytes(0x00), Cbor.fromJson("0"));
+        assertArrayEquals(bytes(0x17), Cbor.fromJson("23"));
+        assertArrayEquals(bytes(0x18, 0x18), Cbor.fromJson("24"));
+        assertArrayEquals(bytes(0x19, 0x03, 0xe8), Cbor.fromJson("1000"));
+        assertArrayEquals(bytes(0x1a, 0x00, 0x0f, 0x42, 0x40),
+                          Cbor.fromJson("1000000"));
+        assertArrayEquals(bytes(0x20), Cbor.fromJson("-1"));
+        assertArrayEquals(bytes(0x38, 0x63), Cbor.fromJson("-100"));
+        assertArrayEquals(bytes(0xfa, 0x3f, 0xc0, 0x00, 0x00),
+                          Cbor.fromJson("1.5"));
+        assertArrayEquals(bytes(0xfb, 0x3f, 0xf1, 0x99, 0x99, 0x99, 0x99, 0x99,
+                                0x9a),
+                          Cbor.fromJson("1.1"));
+        assertArrayEquals(bytes(0xf4), Cbor.fromJson("false"));
+        assertArrayEquals(bytes(0xf5), Cbor.fromJson("true"));
+        assertArrayEquals(bytes(0xf6), Cbor.fromJson("null"));
+        assertArrayEquals(bytes(0x61, 0x61), Cbor.fromJson("\"a\""));
+        assertArrayEquals(bytes(0x62, 0xc3, 0xbc), Cbor.fromJson("\"\\u00fc\""));
+        assertArrayEquals(bytes(0x62, 0xc3, 0xbc), Cbor.fromJson("\"\u00fc\""));
+    }
+
+    @Test
+    public void testEncodeContainers() {
+        assertArrayEquals(bytes(0x80), Cbor.fromJson("[]"));
+        assertArrayEquals(bytes(0x83, 0x01, 0x02, 0x03),
+                          Cbor.fromJson(" [1, 2, 3] "));
+        assertArrayEquals(bytes(0xa2, 0x61, 0x61, 0x01, 0x61, 0x62, 0x82, 0x02,
+                                0x03),
+                          Cbor.fromJson("{\"a\": 1, \"b\": [2, 3]}"));
+
+        // Containers of 24 or more members have an indefinite length.
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < 24; ++i) {
+            array.put(i);
+        }
+
+        byte[] encoded = Cbor.fromJson(array.toString());
+        assertEquals(0x9f, encoded[0] & 0xff);
+        assertEquals(0xff, encoded[encoded.length - 1] & 0xff);
+        assertTrue(array.similar(Cbor.decode(encoded)));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        JSONObject json = new JSONObject();
+        json.put("messageType", "propertyStatus");
+        json.put("data",
+                 new JSONObject().put("level", 42)
+                                 .put("on", true)
+                                 .put("ratio", 0.1)
+                                 .put("name", "caf\u00e9 \"\\\n\ud83d\ude00")
+                                 .put("nothing", JSONObject.NULL)
+                                 .put("large", Long.MAX_VALUE)
+                                 .put("negative", Long.MIN_VALUE)
+                                 .put("list", new JSONArray().put(1)
+                                                             .put(-2.5)
+                                                             .put("x")));
+
+        byte[] encoded = Cbor.fromJson(json.toString());
+        assertTrue(encoded.length < json.toString().length());
+
+        Object decoded = Cbor.decode(encoded);
+        assertTrue(decoded.toString(), json.similar(decoded));
+    }
+
+    @Test
+    public void testDecode() {
+        // Indefinite length containers and strings, tags, half floats and
+        // byte strings.
+        assertTrue(new JSONArray("[1, [2, 3]]").similar(
+                Cbor.decode(bytes(0x9f, 0x01, 0x82, 0x02, 0x03, 0xff))));
+        assertTrue(new JSONObject("{\"a\": 1}").similar(
+                Cbor.decode(bytes(0xbf, 0x61, 0x61, 0x01, 0xff))));
+        assertEquals("strea" + "ming",
+                     Cbor.decode(bytes(0x7f, 0x65, 0x73, 0x74, 0x72, 0x65,
+                                       0x61, 0x64, 0x6d, 0x69, 0x6e, 0x67,
+                                       0xff)));
+        assertEquals(1363896240,
+                     Cbor.decode(bytes(0xc1, 0x1a, 0x51, 0x4b, 0x67, 0xb0)));
+        assertEquals(1.5, Cbor.decode(bytes(0xf9, 0x3e, 0x00)));
+        assertEquals(-4.0, Cbor.decode(bytes(0xf9, 0xc4, 0x00)));
+        assertEquals(JSONObject.NULL, Cbor.decode(bytes(0xf9, 0x7c, 0x00)));
+        assertEquals("AQID", Cbor.decode(bytes(0x43, 0x01, 0x02, 0x03)));
+        assertEquals(new BigInteger("18446744073709551615"),
+                     Cbor.decode(bytes(0x1b, 0xff, 0xff, 0xff, 0xff, 0xff,
+                                       0xff, 0xff, 0xff)));
+        assertEquals(new BigInteger("-18446744073709551616"),
+                     Cbor.decode(bytes(0x3b, 0xff, 0xff, 0xff, 0xff, 0xff,
+                                       0xff, 0xff, 0xff)));
+    }
+
+    @Test
+    public void testInvalid() {
+        String[] json = {"", "{", "[1,]", "{\"a\" 1}", "tru", "\"\\x\"", "1 2"};
+        for (String text : json) {
+            try {
+                Cbor.fromJson(text);
+                fail("Expected JSONException for " + text);
+            } catch (JSONException e) {
+            }
+        }
+
+        byte[][] cbor = {
+                bytes(),
+                bytes(0x18),
+                bytes(0x82, 0x01),
+                bytes(0x9f, 0x01),
+                bytes(0xff),
+                bytes(0x01, 0x02),
+                bytes(0x5a, 0x7f, 0xff, 0xff, 0xff),
+                bytes(0xa1, 0x80, 0x01),
+        };
+        for (byte[] data : cbor) {
+            try {
+                Cbor.decode(data);
+                fail("Expected JSONException");
+            } catch (JSONException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testIsPreferred() {
+        assertFalse(Cbor.isPreferred(null));
+        assertFalse(Cbor.isPreferred("application/json"));
+        assertFalse(Cbor.isPreferred("*/*"));
+        assertTrue(Cbor.isPreferred("application/cbor"));
+        assertTrue(Cbor.isPreferred("application/cbor, application/json"));
+        assertFalse(Cbor.isPreferred("application/json, application/cbor;q=0.5"));
+        assertFalse(Cbor.isPreferred("application/cbor;q=0"));
+    }
+}
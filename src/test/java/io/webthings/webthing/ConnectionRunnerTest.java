@@ -0,0 +1,82 @@
+package io.webthings.webthing;
+
+import fi.iki.elonen.NanoHTTPD;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionRunnerTest {
+    private final NanoHTTPD server = new NanoHTTPD(0) {
+    };
+
+    @Test
+    public void testConnectionLimit() throws Exception {
+        ConnectionRunner runner = ConnectionRunner.bounded(1, 200);
+        server.setAsyncRunner(runner);
+
+        CountDownLatch release = new CountDownLatch(1);
+        Socket first = new Socket();
+        runner.exec(handler(runner, first, release));
+        assertEquals(1, runner.getActiveConnections());
+
+        // No slot frees up in time, so the second connection is dropped.
+        Socket second = new Socket();
+        runner.exec(handler(runner, second, new CountDownLatch(0)));
+        assertTrue(second.isClosed());
+        assertFalse(first.isClosed());
+
+        // Once the first connection closes, the next one gets its slot.
+        release.countDown();
+        Socket third = new Socket();
+        CountDownLatch done = new CountDownLatch(1);
+        runner.exec(handler(runner, third, done));
+        assertFalse(third.isClosed());
+        assertEquals(1, runner.getActiveConnections());
+
+        done.countDown();
+        for (int i = 0; i < 50 && runner.getActiveConnections() > 0; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, runner.getActiveConnections());
+    }
+
+    @Test
+    public void testCloseAll() throws Exception {
+        ConnectionRunner runner = ConnectionRunner.bounded(2, 1000);
+        server.setAsyncRunner(runner);
+
+        Socket socket = new Socket();
+        runner.exec(handler(runner, socket, new CountDownLatch(1)));
+        runner.closeAll();
+
+        assertTrue(socket.isClosed());
+    }
+
+    /**
+     * Create a connection handler which stays open until released.
+     */
+    private NanoHTTPD.ClientHandler handler(ConnectionRunner runner,
+                                            Socket socket,
+                                            CountDownLatch release) {
+        return server.new ClientHandler(new ByteArrayInputStream(new byte[0]),
+                                        socket) {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    runner.closed(this);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,78 @@
+package io.webthings.webthing;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DescriptionCacheTest {
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        DescriptionCache cache = new DescriptionCache();
+        Thing thing = new Thing("urn:dev:ops:test-1234", "Test");
+        DescriptionCache.Key key =
+                new DescriptionCache.Key(thing, "localhost", false, "gzip");
+
+        NanoHTTPD.Response response =
+                NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK,
+                                                 "application/json",
+                                                 "{\"id\": 1}");
+        response.addHeader("Vary", "Accept, Accept-Encoding");
+        response.addHeader("Content-Encoding", "gzip");
+        cache.put(key, response);
+
+        // The response is still sent in full.
+        assertEquals("{\"id\": 1}", readAll(response.getData()));
+
+        NanoHTTPD.Response cached = cache.get(
+                new DescriptionCache.Key(thing, "localhost", false, "gzip"));
+        assertEquals("application/json", cached.getMimeType());
+        assertEquals("Accept, Accept-Encoding", cached.getHeader("vary"));
+        assertEquals("gzip", cached.getHeader("content-encoding"));
+        assertEquals("{\"id\": 1}", readAll(cached.getData()));
+
+        // Other hosts, encodings and things have their own entries.
+        assertNull(cache.get(
+                new DescriptionCache.Key(thing, "example.com", false, "gzip")));
+        assertNull(cache.get(
+                new DescriptionCache.Key(thing, "localhost", true, "gzip")));
+        assertNull(cache.get(
+                new DescriptionCache.Key(thing, "localhost", false, null)));
+        assertNull(cache.get(new DescriptionCache.Key(
+                new Thing("urn:dev:ops:test-1234", "Test"),
+                "localhost",
+                false,
+                "gzip")));
+
+        // Modifying the thing changes its description version.
+        thing.addAvailableEvent("overheated", null);
+        assertNull(cache.get(
+                new DescriptionCache.Key(thing, "localhost", false, "gzip")));
+
+        // Failed responses are not kept.
+        cache.put(new DescriptionCache.Key(thing, "localhost", false, "gzip"),
+                  NanoHTTPD.newFixedLengthResponse(
+                          NanoHTTPD.Response.Status.FORBIDDEN,
+                          null,
+                          null));
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,85 @@
+package io.webthings.webthing;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JsonStreamTest {
+    private static String readAll(JsonStream<?> stream, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[size];
+        int read;
+        while ((read = stream.read(buffer, 0, size)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testEmpty() {
+        JsonStream<String> stream =
+                new JsonStream<>(Collections.<String>emptyIterator(),
+                                 (item, writer) -> writer.value(item));
+        assertEquals("[]", readAll(stream, 16));
+        assertEquals(-1, stream.read());
+    }
+
+    @Test
+    public void testItems() {
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            items.add("item \u00e9 " + i);
+        }
+
+        JsonWriter writer = new JsonWriter().beginArray();
+        items.forEach(writer::value);
+        String expected = writer.endArray().toString();
+
+        for (int size : new int[]{1, 7, 1000, 65536}) {
+            JsonStream<String> stream =
+                    new JsonStream<>(items.iterator(),
+                                     (item, w) -> w.value(item));
+            assertEquals(expected, readAll(stream, size));
+        }
+
+        assertEquals(items.size(), new JSONArray(expected).length());
+    }
+
+    @Test
+    public void testLazy() {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 100000; ++i) {
+            items.add(i);
+        }
+
+        int[] taken = {0};
+        Iterator<Integer> source = items.iterator();
+        Iterator<Integer> counting = new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                ++taken[0];
+                return source.next();
+            }
+        };
+
+        JsonStream<Integer> stream =
+                new JsonStream<>(counting, (item, writer) -> writer.value(item));
+        assertEquals('[', stream.read());
+        assertTrue(taken[0] < items.size() / 10);
+    }
+}
@@ -0,0 +1,157 @@
+package io.webthings.webthing;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JsonWriterTest {
+    private static Thing makeThing() {
+        Thing thing = new Thing("urn:dev:ops:test-1234",
+                                "Test",
+                                new JSONArray().put("Light"),
+                                "A test thing");
+        thing.setUiHref("/ui");
+        thing.addProperty(new Property(
+                thing,
+                "level",
+                new Value(42),
+                new JSONObject().put("type", "integer")
+                                .put("links",
+                                     new JSONArray().put(
+                                             new JSONObject().put("rel",
+                                                                  "alternate")
+                                                             .put("href",
+                                                                  "/level")))));
+        thing.addProperty(new Property(thing, "ratio", new Value(0.25)));
+        thing.addAvailableAction(
+                "fade",
+                new JSONObject().put("title", "Fade"),
+                (t, input) -> new Action("1234", t, "fade", input));
+        thing.addAvailableEvent("overheated",
+                                new JSONObject().put("type", "number"));
+        return thing;
+    }
+
+    @Test
+    public void testStrings() {
+        String[] strings = {
+                "",
+                "plain",
+                "quote \" backslash \\ slash / </script>",
+                "\b\t\n\f\r\u0000\u001f",
+                "\u007f\u0080\u009f\u00a0\u00e9",
+                "\u2000\u2028\u20ff\u2100",
+                "\ud83d\ude00",
+        };
+        for (String string : strings) {
+            assertEquals(JSONObject.quote(string),
+                         new JsonWriter().value(string).toString());
+        }
+    }
+
+    @Test
+    public void testNumbers() {
+        Object[] numbers = {
+                0, -1, Long.MAX_VALUE, (short)7, (byte)-8, 1.0, 0.1, -2.5e-10,
+                1e21, 1.5f, 3.0f,
+        };
+        for (Object number : numbers) {
+            JSONArray expected = new JSONArray().put(number);
+            assertEquals(expected.toString(),
+                         new JsonWriter().beginArray()
+                                         .value(number)
+                                         .endArray()
+                                         .toString());
+        }
+    }
+
+    @Test
+    public void testNesting() {
+        JsonWriter writer = new JsonWriter();
+        writer.beginObject()
+              .name("a")
+              .value(1)
+              .name("b")
+              .beginArray()
+              .value(true)
+              .nullValue()
+              .beginObject()
+              .endObject()
+              .beginArray()
+              .endArray()
+              .value("x")
+              .endArray()
+              .name("c")
+              .value(JSONObject.NULL)
+              .name("d")
+              .value(Collections.singletonMap("e", 2))
+              .endObject();
+        assertEquals("{\"a\":1,\"b\":[true,null,{},[],\"x\"],\"c\":null," +
+                             "\"d\":{\"e\":2}}",
+                     writer.toString());
+
+        writer.reset().beginObject().members(
+                new JSONObject().put("a", 1).put("links", 2), "links");
+        assertEquals("{\"a\":1}", writer.endObject().toString());
+    }
+
+    @Test
+    public void testReuse() {
+        JsonWriter writer = JsonWriter.reuse();
+        writer.beginArray().value("x").endArray();
+        assertSame(writer, JsonWriter.reuse());
+        assertEquals("", writer.toString());
+
+        // An oversized buffer is not kept.
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 70000; ++i) {
+            large.append('x');
+        }
+
+        writer.value(large.toString());
+        assertNotSame(writer, JsonWriter.reuse());
+    }
+
+    @Test
+    public void testMatchesTree() {
+        Thing thing = makeThing();
+        Action action = thing.performAction("fade", null);
+        thing.addEvent(new Event(thing, "overheated", 102.5));
+
+        JsonWriter writer = new JsonWriter();
+        thing.writePropertyDescriptions(writer);
+        assertTrue(thing.getPropertyDescriptions()
+                        .similar(new JSONObject(writer.toString())));
+
+        writer.reset();
+        thing.writeActionDescriptions(writer, null);
+        assertTrue(thing.getActionDescriptions(null)
+                        .similar(new JSONArray(writer.toString())));
+
+        writer.reset();
+        thing.writeActionDescriptions(writer, "missing");
+        assertEquals("[]", writer.toString());
+
+        writer.reset();
+        action.writeActionDescription(writer);
+        assertTrue(action.asActionDescription()
+                         .similar(new JSONObject(writer.toString())));
+
+        writer.reset();
+        thing.writeEventDescriptions(writer, "overheated");
+        assertTrue(thing.getEventDescriptions("overheated")
+                        .similar(new JSONArray(writer.toString())));
+
+        writer.reset();
+        thing.writeThingDescription(writer);
+        assertTrue(thing.asThingDescription()
+                        .similar(new JSONObject(writer.toString())));
+    }
+}
@@ -0,0 +1,98 @@
+package io.webthings.webthing;
+
+import io.webthings.webthing.errors.PropertyError;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MailboxTest {
+    @Test
+    public void testTasksRunInOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        Mailbox mailbox = new Mailbox(pool);
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+
+        for (int i = 0; i < 1000; ++i) {
+            int n = i;
+            mailbox.execute(() -> seen.add(n));
+        }
+        mailbox.execute(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(i, (int)seen.get(i));
+        }
+
+        pool.shutdown();
+    }
+
+    @Test
+    public void testFailingTaskIsReported() throws Exception {
+        List<Throwable> uncaught =
+                Collections.synchronizedList(new ArrayList<>());
+        ExecutorService pool = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task);
+            thread.setUncaughtExceptionHandler((t, e) -> uncaught.add(e));
+            return thread;
+        });
+        Mailbox mailbox = new Mailbox(pool);
+        CountDownLatch done = new CountDownLatch(1);
+
+        mailbox.execute(() -> {
+            throw new IllegalStateException("broken");
+        });
+        mailbox.execute(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, uncaught.size());
+        assertEquals("broken", uncaught.get(0).getMessage());
+
+        try {
+            mailbox.call(() -> {
+                throw new IllegalStateException("also broken");
+            });
+            fail("Expected the task's exception");
+        } catch (IllegalStateException e) {
+            assertEquals("also broken", e.getMessage());
+        }
+
+        pool.shutdown();
+    }
+
+    @Test
+    public void testThingNotifiesOnMailbox() throws PropertyError {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Thing thing = new Thing("urn:dev:ops:test-1234", "Test");
+        Property<Integer> level =
+                new Property<>(thing, "level", new Value<>(0));
+        thing.addProperty(level);
+        thing.setMailbox(new Mailbox(pool));
+        thing.setDeliveryExecutor(Runnable::run);
+
+        List<Boolean> onMailbox = new ArrayList<>();
+        thing.addSubscriber((message) -> {
+            onMailbox.add(thing.getMailbox().isCurrentThread());
+        });
+
+        long version = level.getVersion();
+        thing.setProperty("level", 1);
+
+        // The notification ran on the mailbox before setProperty returned.
+        assertEquals(1, onMailbox.size());
+        assertTrue(onMailbox.get(0));
+        assertTrue(level.getVersion() > version);
+
+        pool.shutdown();
+    }
+}
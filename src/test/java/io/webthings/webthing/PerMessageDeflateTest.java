@@ -0,0 +1,218 @@
+package io.webthings.webthing;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PerMessageDeflateTest {
+    private static final byte[] TAIL = {0, 0, (byte)0xff, (byte)0xff};
+
+    private static NanoHTTPD.IHTTPSession makeSession(InputStream in) {
+        return (NanoHTTPD.IHTTPSession)Proxy.newProxyInstance(
+                NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                new Class[]{NanoHTTPD.IHTTPSession.class},
+                (proxy, method, args) ->
+                        method.getName().equals("getInputStream") ? in : null);
+    }
+
+    private static byte[] propertyStatus(int i) {
+        JSONObject data = new JSONObject();
+        data.put("level", i);
+        data.put("brightness", 100 - i % 100);
+        JSONObject message = new JSONObject();
+        message.put("messageType", "propertyStatus");
+        message.put("data", data);
+        message.put("sequence", i);
+        return message.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] frame(int first, byte[] payload) {
+        byte[] mask = {1, 2, 3, 4};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first);
+        if (payload.length < 126) {
+            out.write(0x80 | payload.length);
+        } else {
+            out.write(0x80 | 126);
+            out.write(payload.length >> 8);
+            out.write(payload.length & 0xff);
+        }
+
+        out.write(mask, 0, mask.length);
+        for (int i = 0; i < payload.length; ++i) {
+            out.write(payload[i] ^ mask[i % 4]);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] clientDeflate(byte[] message) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(message);
+        byte[] buffer = new byte[message.length + 64];
+        int count = deflater.deflate(buffer,
+                                     0,
+                                     buffer.length,
+                                     Deflater.SYNC_FLUSH);
+        deflater.end();
+        return Arrays.copyOf(buffer, count - TAIL.length);
+    }
+
+    @Test
+    public void testNegotiate() {
+        PerMessageDeflate deflate =
+                new PerMessageDeflate(Deflater.DEFAULT_COMPRESSION, 0, true);
+        assertNull(deflate.negotiate(null));
+        assertNull(deflate.negotiate("x-webkit-deflate-frame"));
+
+        PerMessageDeflate.Codec codec =
+                deflate.negotiate("permessage-deflate; client_max_window_bits");
+        assertEquals("permessage-deflate", codec.getResponseHeader());
+
+        codec = deflate.negotiate(
+                "permessage-deflate; server_no_context_takeover");
+        assertEquals("permessage-deflate; server_no_context_takeover",
+                     codec.getResponseHeader());
+
+        // The first offer cannot be honored, so the second is accepted.
+        codec = deflate.negotiate(
+                "permessage-deflate; server_max_window_bits=10, " +
+                        "permessage-deflate");
+        assertEquals("permessage-deflate", codec.getResponseHeader());
+
+        assertNull(deflate.negotiate("permessage-deflate; unknown"));
+        assertNull(deflate.negotiate(
+                "permessage-deflate; client_no_context_takeover; " +
+                        "client_no_context_takeover"));
+
+        deflate.configure(Deflater.BEST_SPEED, 0, false);
+        assertEquals("permessage-deflate; server_no_context_takeover; " +
+                             "client_no_context_takeover",
+                     deflate.negotiate("permessage-deflate")
+                            .getResponseHeader());
+
+        deflate.configure(Deflater.NO_COMPRESSION, 0, true);
+        assertNull(deflate.negotiate("permessage-deflate"));
+    }
+
+    @Test
+    public void testCompressStream() throws DataFormatException {
+        PerMessageDeflate.Codec codec =
+                new PerMessageDeflate(Deflater.DEFAULT_COMPRESSION, 0, true)
+                        .negotiate("permessage-deflate");
+
+        // The client keeps its context as well.
+        Inflater inflater = new Inflater(true);
+        byte[] buffer = new byte[1024];
+        int raw = 0;
+        int compressed = 0;
+        for (int i = 0; i < 200; ++i) {
+            byte[] message = propertyStatus(i);
+            byte[] payload = codec.compress(message);
+            raw += message.length;
+            compressed += payload.length;
+
+            byte[] input = Arrays.copyOf(payload, payload.length + 4);
+            System.arraycopy(TAIL, 0, input, payload.length, TAIL.length);
+            inflater.setInput(input);
+            int count = inflater.inflate(buffer);
+            assertArrayEquals(message, Arrays.copyOf(buffer, count));
+        }
+
+        inflater.end();
+        codec.end();
+        assertTrue("compressed " + compressed + " of " + raw,
+                   compressed * 3 < raw);
+    }
+
+    @Test
+    public void testThreshold() {
+        PerMessageDeflate.Codec codec =
+                new PerMessageDeflate(Deflater.DEFAULT_COMPRESSION, 64, true)
+                        .negotiate("permessage-deflate");
+        assertNull(codec.compress(new byte[63]));
+        assertNotNull(codec.compress(new byte[64]));
+        codec.end();
+    }
+
+    @Test
+    public void testDecompress() throws DataFormatException {
+        PerMessageDeflate.Codec codec =
+                new PerMessageDeflate(Deflater.DEFAULT_COMPRESSION, 0, true)
+                        .negotiate("permessage-deflate");
+        byte[] message = propertyStatus(1);
+        assertArrayEquals(message,
+                          codec.decompress(clientDeflate(message), 1024));
+
+        try {
+            codec.decompress(clientDeflate(new byte[4096]), 1024);
+            fail("Expected DataFormatException");
+        } catch (DataFormatException e) {
+        }
+
+        codec.end();
+    }
+
+    @Test
+    public void testFrameInputStream() throws IOException {
+        PerMessageDeflate.Codec codec =
+                new PerMessageDeflate(Deflater.DEFAULT_COMPRESSION, 0, true)
+                        .negotiate("permessage-deflate");
+
+        byte[] plain = new byte[300];
+        Arrays.fill(plain, (byte)'a');
+        byte[] message = propertyStatus(1);
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        frames.write(frame(0x81, plain));
+        frames.write(frame(0xc1, clientDeflate(message)));
+        frames.write(frame(0x89, new byte[0]));
+        frames.write(frame(0x81, message));
+
+        InputStream in = codec.wrap(makeSession(
+                new ByteArrayInputStream(frames.toByteArray()))).getInputStream();
+
+        NanoWSD.WebSocketFrame frame = NanoWSD.WebSocketFrame.read(in);
+        assertEquals(NanoWSD.WebSocketFrame.OpCode.Text, frame.getOpCode());
+        assertArrayEquals(plain, frame.getBinaryPayload());
+        assertFalse(codec.isCompressed());
+
+        // Compressed text is passed on as binary, with RSV1 cleared.
+        frame = NanoWSD.WebSocketFrame.read(in);
+        assertEquals(NanoWSD.WebSocketFrame.OpCode.Binary, frame.getOpCode());
+        assertTrue(codec.isCompressed());
+
+        // Control frames do not end a message.
+        frame = NanoWSD.WebSocketFrame.read(in);
+        assertEquals(NanoWSD.WebSocketFrame.OpCode.Ping, frame.getOpCode());
+        assertTrue(codec.isCompressed());
+
+        frame = NanoWSD.WebSocketFrame.read(in);
+        assertEquals(NanoWSD.WebSocketFrame.OpCode.Text, frame.getOpCode());
+        assertArrayEquals(message, frame.getBinaryPayload());
+        assertFalse(codec.isCompressed());
+
+        codec.end();
+    }
+}
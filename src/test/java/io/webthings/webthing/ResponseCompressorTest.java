@@ -0,0 +1,157 @@
+package io.webthings.webthing;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ResponseCompressorTest {
+    private static final String BODY;
+
+    static {
+        char[] body = new char[2048];
+        Arrays.fill(body, 'a');
+        BODY = "{\"data\": \"" + new String(body) + "\"}";
+    }
+
+    private static NanoHTTPD.IHTTPSession makeSession(String acceptEncoding) {
+        Map<String, String> headers = new HashMap<>();
+        if (acceptEncoding != null) {
+            headers.put("accept-encoding", acceptEncoding);
+        }
+
+        return (NanoHTTPD.IHTTPSession)Proxy.newProxyInstance(
+                NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                new Class[]{NanoHTTPD.IHTTPSession.class},
+                (proxy, method, args) ->
+                        method.getName().equals("getHeaders") ? headers : null);
+    }
+
+    private static NanoHTTPD.Response makeResponse(String mimeType,
+                                                   String body) {
+        return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK,
+                                                mimeType,
+                                                body);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testNegotiate() {
+        assertNull(ResponseCompressor.negotiate(null));
+        assertNull(ResponseCompressor.negotiate("identity"));
+        assertNull(ResponseCompressor.negotiate("gzip;q=0, deflate;q=0"));
+        assertEquals("gzip", ResponseCompressor.negotiate("gzip, deflate"));
+        assertEquals("gzip", ResponseCompressor.negotiate("deflate, gzip"));
+        assertEquals("deflate",
+                     ResponseCompressor.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate",
+                     ResponseCompressor.negotiate("gzip;q=0, *"));
+        assertEquals("gzip", ResponseCompressor.negotiate("*"));
+        assertNull(ResponseCompressor.negotiate("*;q=0"));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ResponseCompressor compressor = new ResponseCompressor(1024);
+        byte[] expected = BODY.getBytes(StandardCharsets.UTF_8);
+
+        NanoHTTPD.Response response =
+                compressor.compress(makeSession("gzip"),
+                                    makeResponse("application/json", BODY));
+        assertEquals("gzip", response.getHeader("content-encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("vary"));
+        byte[] compressed = readAll(response.getData());
+        assertEquals(String.valueOf(compressed.length),
+                     response.getHeader("content-length"));
+        assertArrayEquals(expected, readAll(new GZIPInputStream(
+                new ByteArrayInputStream(compressed))));
+
+        response = compressor.compress(makeSession("deflate"),
+                                       makeResponse("application/json", BODY));
+        assertEquals("deflate", response.getHeader("content-encoding"));
+        assertArrayEquals(expected, readAll(new InflaterInputStream(
+                response.getData())));
+    }
+
+    @Test
+    public void testStreamed() throws IOException {
+        ResponseCompressor compressor = new ResponseCompressor(1024);
+
+        // Streamed bodies of any size are compressed as they are read.
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < 10000; ++i) {
+            body.append(i).append(',');
+        }
+        body.append("0]");
+        byte[] expected = body.toString().getBytes(StandardCharsets.UTF_8);
+
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            NanoHTTPD.Response response = compressor.compress(
+                    makeSession(encoding),
+                    NanoHTTPD.newChunkedResponse(
+                            NanoHTTPD.Response.Status.OK,
+                            "application/json",
+                            new BufferedInputStream(
+                                    new ByteArrayInputStream(expected))));
+            assertEquals(encoding, response.getHeader("content-encoding"));
+            assertNull(response.getHeader("content-length"));
+
+            InputStream data = response.getData();
+            byte[] decoded = readAll(encoding.equals("gzip") ?
+                                     new GZIPInputStream(data) :
+                                     new InflaterInputStream(data));
+            assertArrayEquals(expected, decoded);
+        }
+    }
+
+    @Test
+    public void testSkipped() throws IOException {
+        ResponseCompressor compressor = new ResponseCompressor(1024);
+
+        // Below the threshold.
+        NanoHTTPD.Response response =
+                compressor.compress(makeSession("gzip"),
+                                    makeResponse("application/json", "{}"));
+        assertNull(response.getHeader("content-encoding"));
+        assertNull(response.getHeader("vary"));
+
+        // Not accepted by the client.
+        response = compressor.compress(makeSession(null),
+                                       makeResponse("application/json", BODY));
+        assertNull(response.getHeader("content-encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("vary"));
+        assertEquals(BODY, new String(readAll(response.getData()),
+                                      StandardCharsets.UTF_8));
+
+        // Not a text type.
+        response = compressor.compress(makeSession("gzip"),
+                                       makeResponse("image/png", BODY));
+        assertNull(response.getHeader("content-encoding"));
+    }
+}
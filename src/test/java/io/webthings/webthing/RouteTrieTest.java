@@ -0,0 +1,108 @@
+package io.webthings.webthing;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RouteTrieTest {
+    private static RouteTrie<String> makeTrie() {
+        RouteTrie<String> trie = new RouteTrie<>();
+        trie.add("/:thingId/properties/:propertyName", "property");
+        trie.add("/:thingId/properties", "properties");
+        trie.add("/:thingId/actions/:actionName/:actionId", "actionId");
+        trie.add("/:thingId", "thing");
+        trie.add("/", "things");
+        return trie;
+    }
+
+    @Test
+    public void testMatchParameters() {
+        RouteTrie<String> trie = makeTrie();
+        Map<String, String> params = new HashMap<>();
+
+        assertEquals("actionId", trie.match("/1/actions/fade/abc", params));
+        assertEquals("1", params.get("thingId"));
+        assertEquals("fade", params.get("actionName"));
+        assertEquals("abc", params.get("actionId"));
+
+        params.clear();
+        assertEquals("properties", trie.match("/0/properties/", params));
+        assertEquals("0", params.get("thingId"));
+
+        params.clear();
+        assertEquals("things", trie.match("/", params));
+        assertTrue(params.isEmpty());
+    }
+
+    @Test
+    public void testLiteralBeforeParameter() {
+        RouteTrie<String> trie = makeTrie();
+        trie.add("/status", "status");
+        trie.add("/status/:detail", "detail");
+
+        Map<String, String> params = new HashMap<>();
+        assertEquals("status", trie.match("/status", params));
+        assertTrue(params.isEmpty());
+
+        // The literal branch has no match, so the parameter branch is tried.
+        assertEquals("property",
+                     trie.match("/status/properties/level", params));
+        assertEquals("status", params.get("thingId"));
+        assertEquals("level", params.get("propertyName"));
+    }
+
+    @Test
+    public void testFirstRouteWins() {
+        RouteTrie<String> trie = makeTrie();
+        trie.add("/:thingId", "other");
+
+        assertEquals("thing", trie.match("/0", new HashMap<>()));
+    }
+
+    @Test
+    public void testNoMatch() {
+        RouteTrie<String> trie = makeTrie();
+        assertNull(trie.match("/0/events/x/y", new HashMap<>()));
+
+        trie.remove("/:thingId");
+        assertNull(trie.match("/0", new HashMap<>()));
+    }
+
+    @Test
+    public void testHandlerSessionOverloads() {
+        Thing first = new Thing("urn:dev:ops:test-1", "First");
+        Thing second = new Thing("urn:dev:ops:test-2", "Second");
+        RouterNanoHTTPD.UriResource resource = new RouterNanoHTTPD.UriResource(
+                "/:thingId/actions/:actionName/:actionId",
+                WebThingServer.ActionIDHandler.class,
+                new WebThingServer.MultipleThings(Arrays.asList(first, second),
+                                                  "Things"));
+        NanoHTTPD.IHTTPSession session =
+                (NanoHTTPD.IHTTPSession)Proxy.newProxyInstance(
+                        NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                        new Class[]{NanoHTTPD.IHTTPSession.class},
+                        (proxy, method, args) ->
+                                method.getName().equals("getUri") ?
+                                "/1/actions/fade/abc" :
+                                null);
+
+        // The handlers' original (UriResource, IHTTPSession) lookups still
+        // work, through the route's pattern.
+        WebThingServer.ActionIDHandler handler =
+                new WebThingServer.ActionIDHandler();
+        assertSame(second, handler.getThing(resource, session));
+        assertEquals("fade", handler.getActionName(resource, session));
+        assertEquals("abc", handler.getActionId(resource, session));
+    }
+}
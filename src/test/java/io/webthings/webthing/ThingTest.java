@@ -0,0 +1,794 @@
+package io.webthings.webthing;
+
+import org.json.JSONObject;
+import io.webthings.webthing.errors.ActionLimitError;
+import io.webthings.webthing.errors.PropertyError;
+import io.webthings.webthing.errors.PropertyVersionError;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ThingTest {
+    private static Thing makeThing() {
+        Thing thing = new Thing("urn:dev:ops:test-1234", "Test");
+        thing.addProperty(new Property(thing, "level", new Value(0)));
+
+        // Send messages on the thread which made the change, once it has let
+        // go of the thing, so that tests can check them right away.
+        thing.setDeliveryExecutor(Runnable::run);
+        return thing;
+    }
+
+    @Test
+    public void testResumeReplaysMissedMessages() throws PropertyError {
+        Thing thing = makeThing();
+        thing.setProperty("level", 1);
+        long lastSequence = thing.getSequence();
+        thing.setProperty("level", 2);
+        thing.setProperty("level", 3);
+
+        RecordingWebSocket ws = new RecordingWebSocket(thing);
+        thing.addSubscriber(ws, lastSequence);
+
+        assertEquals(2, ws.messages.size());
+        assertEquals(2,
+                     ws.messages.get(0)
+                                .getJSONObject("data")
+                                .getInt("level"));
+        assertEquals(thing.getSequence(),
+                     ws.messages.get(1).getLong("sequence"));
+    }
+
+    @Test
+    public void testResumeOnlyReplaysSubscribedEvents() throws PropertyError {
+        Thing thing = makeThing();
+        thing.addAvailableEvent("overheated", null);
+        long lastSequence = thing.getSequence();
+        thing.addEvent(new Event(thing, "overheated", 102));
+        thing.setProperty("level", 1);
+
+        // Without an event subscription, only the property change is
+        // replayed.
+        RecordingWebSocket ws = new RecordingWebSocket(thing);
+        thing.addSubscriber(ws, lastSequence);
+        assertEquals(1, ws.messages.size());
+        assertEquals("propertyStatus",
+                     ws.messages.get(0).getString("messageType"));
+
+        // An event stream subscribes to all events, so it gets both.
+        RecordingWebSocket stream = new RecordingWebSocket(thing);
+        thing.addEventStreamSubscriber(stream, lastSequence);
+        assertEquals(2, stream.messages.size());
+        assertEquals("event", stream.messages.get(0).getString("messageType"));
+    }
+
+    @Test
+    public void testMessagesAreSentWithoutLock() throws PropertyError {
+        Thing thing = makeThing();
+        thing.addAvailableEvent("overheated", null);
+        thing.addAvailableAction(
+                "fade",
+                null,
+                (t, input) -> new Action("1234", t, "fade", input));
+        List<Boolean> locked = new ArrayList<>();
+        Subscriber subscriber = (message) -> {
+            locked.add(Thread.holdsLock(thing));
+        };
+
+        thing.addSubscriberWithSnapshot(subscriber);
+        thing.addEventSubscriber("overheated", subscriber);
+        thing.setProperty("level", 1);
+        thing.addEvent(new Event(thing, "overheated", 102));
+        thing.performAction("fade", null);
+
+        assertEquals(4, locked.size());
+        assertFalse(locked.contains(true));
+    }
+
+    @Test
+    public void testBlockedSubscriberDoesNotHoldUpThing() throws Exception {
+        Thing thing = new Thing("urn:dev:ops:test-1234", "Test");
+        thing.addProperty(new Property(thing, "level", new Value(0)));
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        thing.addSubscriber((message) -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+
+        CountDownLatch received = new CountDownLatch(3);
+        thing.addSubscriber((message) -> received.countDown());
+
+        // The thread changing the property returns while the first
+        // subscriber is stuck, and the other one still gets every message.
+        thing.setProperty("level", 1);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        thing.setProperty("level", 2);
+        thing.setProperty("level", 3);
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void testOverflowingSubscriberIsDisconnected() throws Exception {
+        Thing thing = makeThing();
+        thing.setDeliveryExecutor(Executors.newCachedThreadPool());
+        thing.setSubscriberQueueSize(2);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch disconnected = new CountDownLatch(1);
+        AtomicInteger sent = new AtomicInteger();
+        Subscriber subscriber = new Subscriber() {
+            @Override
+            public void sendMessage(String message) {
+                sent.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+
+            @Override
+            public void disconnect() {
+                disconnected.countDown();
+            }
+        };
+        thing.addSubscriber(subscriber);
+
+        for (int i = 1; i <= 10; ++i) {
+            thing.setProperty("level", i);
+        }
+
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        // No more messages are queued once it has been dropped.
+        thing.setProperty("level", 11);
+        Thread.sleep(100);
+        assertTrue(sent.get() <= 3);
+    }
+
+    @Test
+    public void testResumeSendsSnapshotWhenGapEvicted() throws PropertyError {
+        Thing thing = makeThing();
+        thing.setReplayBufferSize(1);
+        thing.setProperty("level", 1);
+        thing.setProperty("level", 2);
+        thing.setProperty("level", 3);
+
+        RecordingWebSocket ws = new RecordingWebSocket(thing);
+        thing.addSubscriber(ws, 0);
+
+        assertEquals(1, ws.messages.size());
+        JSONObject snapshot = ws.messages.get(0);
+        assertEquals("snapshot", snapshot.getString("messageType"));
+        assertEquals(thing.getSequence(), snapshot.getLong("sequence"));
+        assertEquals(3,
+                     snapshot.getJSONObject("data")
+                             .getJSONObject("properties")
+                             .getInt("level"));
+    }
+
+    @Test
+    public void testSnapshotOnSubscribe() throws PropertyError {
+        Thing thing = makeThing();
+        thing.setProperty("level", 5);
+
+        RecordingWebSocket ws = new RecordingWebSocket(thing);
+        thing.addSubscriberWithSnapshot(ws);
+        thing.setProperty("level", 6);
+
+        assertEquals(2, ws.messages.size());
+        JSONObject snapshot = ws.messages.get(0);
+        assertEquals("snapshot", snapshot.getString("messageType"));
+        assertEquals(5,
+                     snapshot.getJSONObject("data")
+                             .getJSONObject("properties")
+                             .getInt("level"));
+        assertEquals(snapshot.getLong("sequence") + 1,
+                     ws.messages.get(1).getLong("sequence"));
+    }
+
+    @Test
+    public void testPropertyChangesSinceVersion() throws PropertyError {
+        Thing thing = makeThing();
+        thing.addProperty(new Property(thing, "other", new Value(0)));
+        long version = thing.getPropertyVersion();
+        thing.setProperty("level", 7);
+
+        JSONObject changes = thing.getPropertyChanges(version, 0);
+        assertEquals(thing.getPropertyVersion(), changes.getLong("version"));
+        assertEquals(1, changes.getJSONObject("properties").length());
+        assertEquals(7, changes.getJSONObject("properties").getInt("level"));
+
+        changes = thing.getPropertyChanges(0, 0);
+        assertEquals(2, changes.getJSONObject("properties").length());
+
+        Property level = thing.findProperty("level");
+        assertEquals(thing.getPropertyVersion(), level.getVersion());
+        assertTrue(thing.findProperty("other").getVersion() <= version);
+    }
+
+    @Test
+    public void testPropertyChangesWaitsForChange() throws Exception {
+        Thing thing = makeThing();
+        long version = thing.getPropertyVersion();
+
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                thing.setProperty("level", 8);
+            } catch (InterruptedException | PropertyError e) {
+            }
+        });
+        writer.start();
+
+        JSONObject changes = thing.getPropertyChanges(version, 5000);
+        writer.join();
+        assertEquals(8, changes.getJSONObject("properties").getInt("level"));
+    }
+
+    @Test
+    public void testConditionalSetProperty() throws PropertyError {
+        Thing thing = makeThing();
+        long version = thing.findProperty("level").getVersion();
+        thing.setProperty("level", 1, version);
+
+        try {
+            thing.setProperty("level", 2, version);
+            fail("Expected a version mismatch");
+        } catch (PropertyVersionError e) {
+        }
+
+        assertEquals(1, (int)thing.getProperty("level"));
+    }
+
+    @Test
+    public void testConcurrentConditionalSetPropertyAsync() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        Thing thing = new Thing("urn:dev:ops:test-1234", "Test");
+        thing.addProperty(new Property(thing, "level", new Value<>(0, v -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        }, executor)));
+        long version = thing.findProperty("level").getVersion();
+
+        // Both writers saw the same version, but only one may win, even
+        // though the first write has not reached the thing yet.
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 1; i <= 2; ++i) {
+            int level = i;
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                    thing.setProperty("level", level, version);
+                    accepted.incrementAndGet();
+                } catch (PropertyVersionError e) {
+                    refused.incrementAndGet();
+                } catch (Exception e) {
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join(5000);
+        }
+
+        assertEquals(1, accepted.get());
+        assertEquals(1, refused.get());
+
+        release.countDown();
+        assertTrue(thing.findProperty("level").awaitWrite(5000));
+        assertTrue(thing.findProperty("level").getVersion() != version);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRemoveActionInterruptsRunningAction() throws Exception {
+        Thing thing = makeThing();
+        thing.addAvailableAction("sleep", null, SleepAction.class);
+        SleepAction.started = new CountDownLatch(1);
+        SleepAction.interrupted = new CountDownLatch(1);
+
+        Action action = thing.performAction("sleep", null);
+        thing.startAction(action);
+        assertTrue(SleepAction.started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(thing.removeAction("sleep", action.getId()));
+        assertTrue(SleepAction.interrupted.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 100 && !action.isFinished(); ++i) {
+            Thread.sleep(50);
+        }
+        assertEquals("cancelled", action.getStatus());
+    }
+
+    @Test
+    public void testRemoveActionBeforeStart() {
+        Thing thing = makeThing();
+        thing.addAvailableAction("sleep", null, SleepAction.class);
+
+        Action action = thing.performAction("sleep", null);
+        assertTrue(thing.removeAction("sleep", action.getId()));
+        assertEquals("cancelled", action.getStatus());
+
+        // Starting a cancelled action does nothing.
+        action.start();
+        assertEquals("cancelled", action.getStatus());
+    }
+
+    @Test
+    public void testActionLimitRejects() {
+        Thing thing = makeThing();
+        thing.addAvailableAction("sleep",
+                                 new JSONObject().put("maxConcurrent", 1)
+                                                 .put("queuePolicy", "reject"),
+                                 SleepAction.class);
+
+        Action first = thing.performAction("sleep", null);
+        try {
+            thing.performAction("sleep", null);
+            fail("Expected the second action to be rejected");
+        } catch (ActionLimitError e) {
+        }
+
+        // Once the first one is gone, there is room again.
+        thing.removeAction("sleep", first.getId());
+        assertTrue(thing.performAction("sleep", null) != null);
+    }
+
+    @Test
+    public void testActionLimitQueues() throws Exception {
+        Thing thing = makeThing();
+        thing.addAvailableAction("sleep",
+                                 new JSONObject().put("maxConcurrent", 1),
+                                 SleepAction.class);
+        SleepAction.started = new CountDownLatch(1);
+        SleepAction.interrupted = new CountDownLatch(1);
+
+        Action first = thing.performAction("sleep", null);
+        Action second = thing.performAction("sleep", null);
+        thing.startAction(first);
+        thing.startAction(second);
+        assertTrue(SleepAction.started.await(5, TimeUnit.SECONDS));
+        assertEquals("created", second.getStatus());
+
+        SleepAction.started = new CountDownLatch(1);
+        thing.removeAction("sleep", first.getId());
+        assertTrue(SleepAction.started.await(5, TimeUnit.SECONDS));
+        assertEquals("pending", second.getStatus());
+
+        thing.removeAction("sleep", second.getId());
+    }
+
+    @Test
+    public void testActionLimitReplacesOldest() {
+        Thing thing = makeThing();
+        thing.addAvailableAction("sleep",
+                                 new JSONObject().put("maxConcurrent", 1)
+                                                 .put("queuePolicy",
+                                                      "replaceOldest"),
+                                 SleepAction.class);
+
+        Action first = thing.performAction("sleep", null);
+        Action second = thing.performAction("sleep", null);
+        assertEquals("cancelled", first.getStatus());
+        assertEquals("created", second.getStatus());
+    }
+
+    @Test
+    public void testActionTimesOut() throws Exception {
+        Thing thing = makeThing();
+        thing.addAvailableAction("sleep",
+                                 new JSONObject().put("maxDuration", 100),
+                                 SleepAction.class);
+        SleepAction.started = new CountDownLatch(1);
+        SleepAction.interrupted = new CountDownLatch(1);
+
+        Action action = thing.performAction("sleep", null);
+        thing.startAction(action);
+        assertTrue(SleepAction.interrupted.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 100 && !action.isFinished(); ++i) {
+            Thread.sleep(50);
+        }
+        assertEquals("timedOut", action.getStatus());
+    }
+
+    @Test
+    public void testTimedOutActionKeepsSlot() throws Exception {
+        Thing thing = makeThing();
+        thing.addAvailableAction("stubborn",
+                                 new JSONObject().put("maxDuration", 100)
+                                                 .put("maxConcurrent", 1),
+                                 StubbornAction::new);
+        StubbornAction.started = new CountDownLatch(1);
+        StubbornAction.release = new CountDownLatch(1);
+
+        Action first = thing.performAction("stubborn", null);
+        Action second = thing.performAction("stubborn", null);
+        thing.startAction(first);
+        thing.startAction(second);
+        assertTrue(StubbornAction.started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 100 && !first.isFinished(); ++i) {
+            Thread.sleep(50);
+        }
+        assertEquals("timedOut", first.getStatus());
+
+        // The first action is still running, so the second has to wait.
+        Thread.sleep(100);
+        assertEquals("created", second.getStatus());
+
+        StubbornAction.started = new CountDownLatch(1);
+        StubbornAction.release.countDown();
+        assertTrue(StubbornAction.started.await(5, TimeUnit.SECONDS));
+        assertEquals("timedOut", first.getStatus());
+        thing.removeAction("stubborn", second.getId());
+    }
+
+    @Test
+    public void testAbortAfterPerformingCompletes() throws Exception {
+        Thing thing = makeThing();
+        CountDownLatch finished = new CountDownLatch(1);
+        thing.addAvailableAction("late", null, (t, input) ->
+                new Action(UUID.randomUUID().toString(), t, "late", input) {
+                    @Override
+                    public void finish() {
+                        // Cancelling once performAction() has returned is
+                        // too late.
+                        this.abort();
+                        super.finish();
+                        finished.countDown();
+                    }
+                });
+
+        Action action = thing.performAction("late", null);
+        thing.startAction(action);
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals("completed", action.getStatus());
+        assertFalse(action.isCancelled());
+    }
+
+    @Test
+    public void testSchedulingIsNotPublished() {
+        Thing thing = makeThing();
+        thing.addAvailableAction("sleep",
+                                 new JSONObject().put("title", "Sleep")
+                                                 .put("maxDuration", 100)
+                                                 .put("maxConcurrent", 1)
+                                                 .put("queuePolicy", "reject")
+                                                 .put("lane", "lamp")
+                                                 .put("priority", 10),
+                                 SleepAction.class);
+
+        JSONObject sleep = thing.asThingDescription()
+                                .getJSONObject("actions")
+                                .getJSONObject("sleep");
+        assertEquals("Sleep", sleep.getString("title"));
+        assertTrue(sleep.has("links"));
+        assertEquals(2, sleep.length());
+
+        JsonWriter writer = new JsonWriter();
+        thing.writeThingDescription(writer);
+        assertTrue(sleep.similar(new JSONObject(writer.toString())
+                                         .getJSONObject("actions")
+                                         .getJSONObject("sleep")));
+
+        // The settings still apply.
+        thing.performAction("sleep", null);
+        try {
+            thing.performAction("sleep", null);
+            fail("Expected the action to be rejected");
+        } catch (ActionLimitError e) {
+        }
+    }
+
+    @Test
+    public void testLaneRunsActionsByPriority() throws Exception {
+        Thing thing = makeThing();
+        thing.addAvailableAction("sleep",
+                                 new JSONObject().put("lane", "lamp"),
+                                 SleepAction.class);
+        thing.addAvailableAction("urgent",
+                                 new JSONObject().put("lane", "lamp")
+                                                 .put("priority", 10),
+                                 UrgentAction.class);
+        SleepAction.started = new CountDownLatch(1);
+        SleepAction.interrupted = new CountDownLatch(1);
+
+        Action first = thing.performAction("sleep", null);
+        thing.startAction(first);
+        assertTrue(SleepAction.started.await(5, TimeUnit.SECONDS));
+
+        Action second = thing.performAction("sleep", null);
+        thing.startAction(second);
+        Action urgent = thing.performAction("urgent", null);
+        thing.startAction(urgent);
+
+        assertEquals(2, second.getQueuePosition());
+        assertEquals(1, urgent.getQueuePosition());
+        assertEquals(1,
+                     urgent.asActionDescription()
+                           .getJSONObject("urgent")
+                           .getInt("queuePosition"));
+
+        SleepAction.started = new CountDownLatch(1);
+        thing.removeAction("sleep", first.getId());
+        assertTrue(SleepAction.started.await(5, TimeUnit.SECONDS));
+        assertEquals("pending", urgent.getStatus());
+        assertEquals(0, urgent.getQueuePosition());
+        assertEquals("created", second.getStatus());
+        assertEquals(1, second.getQueuePosition());
+
+        thing.removeAction("sleep", second.getId());
+        thing.removeAction("urgent", urgent.getId());
+    }
+
+    @Test
+    public void testAddAvailableActionRejectsBadClass() {
+        Thing thing = makeThing();
+        try {
+            thing.addAvailableAction("bad", null, Action.class);
+            fail("Expected the registration to fail");
+        } catch (IllegalArgumentException e) {
+        }
+
+        assertTrue(thing.performAction("bad", null) == null);
+    }
+
+    @Test
+    public void testAddAvailableActionWithFactory() {
+        Thing thing = makeThing();
+        thing.addAvailableAction("urgent", null, UrgentAction::new);
+
+        Action action = thing.performAction("urgent", null);
+        assertTrue(action instanceof UrgentAction);
+        assertEquals(1, thing.getActionDescriptions("urgent").length());
+    }
+
+    @Test
+    public void testAsyncActionCompletesWithStage() throws Exception {
+        Thing thing = makeThing();
+        thing.addAvailableAction("wait", null, WaitAction::new);
+
+        WaitAction action = (WaitAction)thing.performAction("wait", null);
+        thing.startAction(action);
+        assertTrue(action.started.await(5, TimeUnit.SECONDS));
+        assertEquals("pending", action.getStatus());
+
+        action.stage.complete(null);
+        for (int i = 0; i < 100 && !action.isFinished(); ++i) {
+            Thread.sleep(50);
+        }
+        assertEquals("completed", action.getStatus());
+    }
+
+    @Test
+    public void testAsyncActionFailsWithStage() throws Exception {
+        Thing thing = makeThing();
+        thing.addAvailableAction("wait", null, WaitAction::new);
+
+        WaitAction action = (WaitAction)thing.performAction("wait", null);
+        thing.startAction(action);
+        assertTrue(action.started.await(5, TimeUnit.SECONDS));
+
+        // The error is reported on the thread which completes the stage.
+        List<Throwable> uncaught = new ArrayList<>();
+        Thread thread = Thread.currentThread();
+        Thread.UncaughtExceptionHandler handler =
+                thread.getUncaughtExceptionHandler();
+        thread.setUncaughtExceptionHandler((t, e) -> uncaught.add(e));
+        try {
+            action.stage.completeExceptionally(
+                    new IllegalStateException("unplugged"));
+        } finally {
+            thread.setUncaughtExceptionHandler(handler);
+        }
+
+        assertEquals("failed", action.getStatus());
+        assertTrue(action.getTimeCompleted() != null);
+        assertEquals(1, uncaught.size());
+        assertEquals("unplugged", uncaught.get(0).getMessage());
+    }
+
+    @Test
+    public void testAsyncActionCancelsStage() throws Exception {
+        Thing thing = makeThing();
+        thing.addAvailableAction("wait", null, WaitAction::new);
+
+        WaitAction action = (WaitAction)thing.performAction("wait", null);
+        thing.startAction(action);
+        assertTrue(action.started.await(5, TimeUnit.SECONDS));
+
+        thing.removeAction("wait", action.getId());
+        for (int i = 0; i < 100 && !action.isFinished(); ++i) {
+            Thread.sleep(50);
+        }
+        assertEquals("cancelled", action.getStatus());
+        assertTrue(action.stage.isCancelled());
+    }
+
+    @Test
+    public void testActionIsCreatedWithoutLock() throws Exception {
+        Thing thing = makeThing();
+        CountDownLatch building = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        thing.addAvailableAction("wait", null, (t, input) -> {
+            building.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+            return new WaitAction(t, input);
+        });
+
+        Thread requester = new Thread(() -> thing.performAction("wait",
+                                                                null,
+                                                                "key-1"));
+        requester.start();
+        assertTrue(building.await(5, TimeUnit.SECONDS));
+
+        // The thing can be used while the action is built.
+        thing.setProperty("level", 1);
+        assertEquals(0, thing.getActionDescriptions("wait").length());
+
+        release.countDown();
+        requester.join(5000);
+        assertEquals(1, thing.getActionDescriptions("wait").length());
+    }
+
+    @Test
+    public void testIdempotencyKeyReturnsOriginalAction() {
+        Thing thing = makeThing();
+        thing.addAvailableAction("wait", null, WaitAction::new);
+
+        Action first = thing.performAction("wait", null, "key-1");
+        thing.startAction(first);
+        Action retry = thing.performAction("wait", null, "key-1");
+        thing.startAction(retry);
+
+        assertTrue(first == retry);
+        assertEquals(1, thing.getActionDescriptions("wait").length());
+
+        Action other = thing.performAction("wait", null, "key-2");
+        assertTrue(other != first);
+
+        // Expired keys are forgotten.
+        thing.setIdempotencyCache(16, 0);
+        Action expiring = thing.performAction("wait", null, "key-3");
+        assertTrue(thing.performAction("wait", null, "key-3") != expiring);
+
+        thing.removeAction("wait", first.getId());
+    }
+
+    /**
+     * Action which waits for its stage to be completed by the test.
+     */
+    static class WaitAction extends AsyncAction {
+        final CompletableFuture<Void> stage = new CompletableFuture<>();
+        final CountDownLatch started = new CountDownLatch(1);
+
+        WaitAction(Thing thing, JSONObject input) {
+            super(UUID.randomUUID().toString(), thing, "wait", input);
+        }
+
+        @Override
+        public CompletionStage<?> performActionAsync() {
+            this.started.countDown();
+            return this.stage;
+        }
+    }
+
+    /**
+     * Action which sleeps until it is interrupted.
+     */
+    public static class SleepAction extends Action {
+        static CountDownLatch started;
+        static CountDownLatch interrupted;
+
+        public SleepAction(Thing thing, JSONObject input) {
+            this(thing, "sleep", input);
+        }
+
+        SleepAction(Thing thing, String name, JSONObject input) {
+            super(UUID.randomUUID().toString(), thing, name, input);
+        }
+
+        @Override
+        public void performAction() {
+            started.countDown();
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        }
+    }
+
+    /**
+     * Websocket which records the messages sent to it rather than writing
+     * them to a socket.
+     */
+    static class RecordingWebSocket
+            extends WebThingServer.ThingHandler.ThingWebSocket {
+        final List<JSONObject> messages = new ArrayList<>();
+
+        RecordingWebSocket(Thing thing) {
+            super(thing,
+                  (NanoHTTPD.IHTTPSession)Proxy.newProxyInstance(
+                          NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                          new Class[]{NanoHTTPD.IHTTPSession.class},
+                          (proxy, method, args) -> null));
+        }
+
+        @Override
+        public void sendMessage(String message) {
+            this.messages.add(new JSONObject(message));
+        }
+    }
+
+    /**
+     * Action which ignores interrupts until it is released.
+     */
+    public static class StubbornAction extends Action {
+        static CountDownLatch started;
+        static CountDownLatch release;
+
+        public StubbornAction(Thing thing, JSONObject input) {
+            super(UUID.randomUUID().toString(), thing, "stubborn", input);
+        }
+
+        @Override
+        public void performAction() {
+            CountDownLatch release = StubbornAction.release;
+            started.countDown();
+            while (true) {
+                try {
+                    release.await();
+                    return;
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * High-priority variant of the sleep action.
+     */
+    public static class UrgentAction extends SleepAction {
+        public UrgentAction(Thing thing, JSONObject input) {
+            super(thing, "urgent", input);
+        }
+    }
+}
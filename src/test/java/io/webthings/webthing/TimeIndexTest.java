@@ -0,0 +1,99 @@
+package io.webthings.webthing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimeIndexTest {
+    private static TimeIndex<String> makeIndex() {
+        // Two items per millisecond, added out of order.
+        TimeIndex<String> index = new TimeIndex<>();
+        for (int time : new int[]{30, 10, 20, 40, 0}) {
+            index.add(time, time + "a");
+            index.add(time, time + "b");
+        }
+
+        return index;
+    }
+
+    private static List<String> list(Iterator<String> iterator) {
+        List<String> items = new ArrayList<>();
+        iterator.forEachRemaining(items::add);
+        return items;
+    }
+
+    @Test
+    public void testIterator() {
+        TimeIndex<String> index = makeIndex();
+        assertEquals(Arrays.asList("0a", "0b", "10a", "10b", "20a", "20b",
+                                   "30a", "30b", "40a", "40b"),
+                     list(index.iterator()));
+        assertEquals(Arrays.asList("10a", "10b", "20a", "20b"),
+                     list(index.iterator(10, 30)));
+        assertFalse(index.iterator(30, 30).hasNext());
+    }
+
+    @Test
+    public void testPages() {
+        TimeIndex<String> index = makeIndex();
+
+        TimeIndex.Page<String> page =
+                index.page(Long.MIN_VALUE, Long.MAX_VALUE, null, 3);
+        assertEquals(Arrays.asList("30b", "40a", "40b"), page.getItems());
+
+        // Items added after the first page do not move the next one.
+        index.add(50, "50a");
+        index.add(40, "40c");
+
+        TimeIndex.Key cursor =
+                TimeIndex.Key.fromCursor(page.getNext().toCursor());
+        page = index.page(Long.MIN_VALUE, Long.MAX_VALUE, cursor, 3);
+        assertEquals(Arrays.asList("20a", "20b", "30a"), page.getItems());
+
+        page = index.page(Long.MIN_VALUE, Long.MAX_VALUE, page.getNext(), 3);
+        assertEquals(Arrays.asList("0b", "10a", "10b"), page.getItems());
+
+        page = index.page(Long.MIN_VALUE, Long.MAX_VALUE, page.getNext(), 3);
+        assertEquals(Collections.singletonList("0a"), page.getItems());
+        assertNull(page.getNext());
+
+        // The range applies as well.
+        page = index.page(10, 30, null, 3);
+        assertEquals(Arrays.asList("10b", "20a", "20b"), page.getItems());
+        page = index.page(10, 30, page.getNext(), 3);
+        assertEquals(Collections.singletonList("10a"), page.getItems());
+        assertNull(page.getNext());
+
+        assertTrue(index.page(30, 10, null, 3).getItems().isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        TimeIndex<String> index = makeIndex();
+        String item = "40a";
+        index.add(40, item);
+
+        // Items are matched by identity.
+        assertTrue(index.remove(40, item));
+        assertFalse(index.remove(40, item));
+        assertFalse(index.remove(30, "40a"));
+        assertEquals(Arrays.asList("40a", "40b"), list(index.iterator(40, 41)));
+    }
+
+    @Test
+    public void testCursor() {
+        TimeIndex.Key key = new TimeIndex.Key(1234567890123L, 42);
+        assertEquals(key, TimeIndex.Key.fromCursor(key.toCursor()));
+        assertNull(TimeIndex.Key.fromCursor("not a cursor"));
+        assertNull(TimeIndex.Key.fromCursor("AAAA"));
+    }
+}
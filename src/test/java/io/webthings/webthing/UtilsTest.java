@@ -0,0 +1,24 @@
+package io.webthings.webthing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class UtilsTest {
+    @Test
+    public void testTimestamp() {
+        assertEquals("1970-01-01T00:00:00+00:00", Utils.timestamp(0));
+        assertEquals("1970-01-01T00:00:01+00:00", Utils.timestamp(1999));
+        assertEquals("2020-09-23T12:34:56+00:00",
+                     Utils.timestamp(1600864496789L));
+
+        // A whole second used to lose its fraction separator and come out
+        // with a trailing "Z".
+        assertEquals("2020-09-23T12:34:56+00:00",
+                     Utils.timestamp(1600864496000L));
+
+        // Times of different seconds may be formatted in any order.
+        assertEquals("1970-01-01T00:00:00+00:00", Utils.timestamp(999));
+        assertEquals("1969-12-31T23:59:59+00:00", Utils.timestamp(-1));
+    }
+}
@@ -0,0 +1,78 @@
+package io.webthings.webthing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ValueTest {
+    @Test
+    public void testAsyncWritesAreCoalesced() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> forwarded = new ArrayList<>();
+
+        Value<Integer> value = new Value<>(0, v -> {
+            forwarded.add(v);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        }, executor);
+
+        value.set(1);
+        started.await();
+        value.set(2);
+        value.set(3);
+        value.set(4);
+
+        assertTrue(value.isWritePending());
+        assertEquals(0, (int)value.get());
+
+        release.countDown();
+        assertTrue(value.awaitWrite(5000));
+        assertFalse(value.isWritePending());
+        assertEquals(Arrays.asList(1, 4), forwarded);
+        assertEquals(4, (int)value.get());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testAsyncWriteFailureIsReported() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Value<Integer> value = new Value<>(0, v -> {
+            if (v < 0) {
+                throw new IllegalArgumentException("negative");
+            }
+        }, executor);
+
+        value.set(-1);
+        try {
+            value.awaitWrite(5000);
+            fail("Expected the forwarder's exception");
+        } catch (IllegalArgumentException e) {
+            assertEquals("negative", e.getMessage());
+        }
+
+        assertEquals(0, (int)value.get());
+
+        // A later successful write clears the failure.
+        value.set(1);
+        assertTrue(value.awaitWrite(5000));
+        assertEquals(1, (int)value.get());
+
+        executor.shutdown();
+    }
+}
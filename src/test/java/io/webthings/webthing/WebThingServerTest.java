@@ -0,0 +1,739 @@
+package io.webthings.webthing;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the same requests against each HTTP backend.
+ */
+@RunWith(Parameterized.class)
+public class WebThingServerTest {
+    @Parameterized.Parameter
+    public String backend;
+
+    // Starting a server registers it with mDNS, which takes a few seconds,
+    // so each backend is started once for all tests.
+    private static final Map<String, WebThingServer> servers = new HashMap<>();
+    private static final Map<String, Integer> ports = new HashMap<>();
+    private static final Map<String, Thing> things = new HashMap<>();
+
+    private int port;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> backends() {
+        return Arrays.asList(new Object[][]{{"nanohttpd"}, {"httpserver"}});
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        if (!servers.containsKey(this.backend)) {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+
+            Thing thing = new Thing("urn:dev:ops:test-1234", "Test");
+            thing.addProperty(new Property(thing,
+                                           "level",
+                                           new Value(0),
+                                           new JSONObject().put("type",
+                                                                "integer")));
+            thing.addAvailableAction("noop", null, NoopAction.class);
+            thing.addAvailableAction("broken", null, (t, input) -> {
+                throw input == null ?
+                      new IllegalStateException("Device offline") :
+                      new IllegalArgumentException("Bad input");
+            });
+
+            WebThingServer server = new WebThingServer(
+                    new WebThingServer.SingleThing(thing),
+                    port,
+                    null,
+                    null,
+                    Collections.singletonList(new WebThingServer.Route(
+                            "/static/:path",
+                            EchoHandler.class)));
+            server.setMaxBodySize(1024);
+            server.setCompressionThreshold(64);
+            if (this.backend.equals("httpserver")) {
+                server.startHttpServer();
+            } else {
+                server.start(true);
+            }
+
+            servers.put(this.backend, server);
+            ports.put(this.backend, port);
+            things.put(this.backend, thing);
+        }
+
+        this.port = ports.get(this.backend);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        servers.values().forEach(WebThingServer::stop);
+        servers.clear();
+        things.clear();
+    }
+
+    @Test
+    public void testGetThing() throws IOException {
+        HttpURLConnection connection = this.request("GET", "/", null);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/json", connection.getContentType());
+        assertEquals("*",
+                     connection.getHeaderField("Access-Control-Allow-Origin"));
+
+        JSONObject description = new JSONObject(read(connection));
+        assertEquals("urn:dev:ops:test-1234", description.getString("id"));
+    }
+
+    @Test
+    public void testAdditionalRoute() throws IOException {
+        // As in RouterNanoHTTPD, a parameter may span several segments.
+        for (String path : new String[]{"main.css", "css/main.css"}) {
+            HttpURLConnection connection =
+                    this.request("GET", "/static/" + path, null);
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(path, read(connection));
+        }
+
+        // The server's own routes still match.
+        HttpURLConnection connection = this.request("GET", "/properties", null);
+        assertEquals(200, connection.getResponseCode());
+        read(connection);
+    }
+
+    @Test
+    public void testSetProperty() throws IOException {
+        HttpURLConnection connection =
+                this.request("PUT", "/properties/level", "{\"level\": 5}");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(5, new JSONObject(read(connection)).getInt("level"));
+
+        connection = this.request("GET", "/properties/level", null);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(5, new JSONObject(read(connection)).getInt("level"));
+    }
+
+    @Test
+    public void testChunkedBody() throws IOException {
+        HttpURLConnection connection =
+                this.request("PUT", "/properties/level", null);
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(4);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write("{\"level\": 7}".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(7, new JSONObject(read(connection)).getInt("level"));
+    }
+
+    @Test
+    public void testBodyTooLarge() throws IOException {
+        char[] padding = new char[4 * 1024];
+        Arrays.fill(padding, ' ');
+        HttpURLConnection connection =
+                this.request("PUT",
+                             "/properties/level",
+                             "{\"level\": 1" + new String(padding) + "}");
+        assertEquals(413, connection.getResponseCode());
+    }
+
+    @Test
+    public void testRepeatedActionRequest() throws IOException {
+        for (String path : new String[]{"/actions", "/actions/noop"}) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Idempotency-Key", UUID.randomUUID().toString());
+
+            HttpURLConnection connection =
+                    this.request("POST", path, "{\"noop\": {}}", headers);
+            assertEquals(201, connection.getResponseCode());
+            String href = new JSONObject(read(connection))
+                    .getJSONObject("noop")
+                    .getString("href");
+
+            // A retry gets the original action, which already exists.
+            connection =
+                    this.request("POST", path, "{\"noop\": {}}", headers);
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(href,
+                         new JSONObject(read(connection)).getJSONObject("noop")
+                                                         .getString("href"));
+        }
+    }
+
+    @Test
+    public void testRequestAction() throws IOException {
+        HttpURLConnection connection =
+                this.request("POST", "/actions", "{\"noop\": {}}");
+        assertEquals(201, connection.getResponseCode());
+        JSONObject action =
+                new JSONObject(read(connection)).getJSONObject("noop");
+        assertTrue(action.getString("href").startsWith("/actions/noop/"));
+
+        connection = this.request("GET", "/actions/noop", null);
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(new JSONArray(read(connection)).length() >= 1);
+
+        // Listings are streamed.
+        connection = this.request("GET", "/actions", null);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("chunked",
+                     connection.getHeaderField("Transfer-Encoding"));
+        assertTrue(new JSONArray(read(connection)).length() >= 1);
+
+        connection = this.request("GET", "/actions", null);
+        connection.setRequestProperty("Accept", "application/cbor");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/cbor", connection.getContentType());
+        assertTrue(((JSONArray)Cbor.decode(readBytes(connection))).length() >= 1);
+    }
+
+    @Test
+    public void testActionFactoryFails() throws IOException {
+        HttpURLConnection connection =
+                this.request("POST", "/actions", "{\"broken\": {}}");
+        assertEquals(500, connection.getResponseCode());
+        assertTrue(readError(connection).contains("Device offline"));
+
+        connection = this.request("POST",
+                                  "/actions/broken",
+                                  "{\"broken\": {\"input\": {}}}");
+        assertEquals(400, connection.getResponseCode());
+        assertTrue(readError(connection).contains("Bad input"));
+    }
+
+    @Test
+    public void testLongPollLimit() throws Exception {
+        WebThingServer server = servers.get(this.backend);
+        Thing thing = things.get(this.backend);
+        String path = "/properties?since=" + thing.getPropertyVersion() +
+                "&wait=";
+
+        server.setMaxLongPolls(1);
+        try {
+            List<Integer> statuses =
+                    Collections.synchronizedList(new ArrayList<>());
+            Thread poller = new Thread(() -> {
+                try {
+                    statuses.add(this.request("GET", path + 10000, null)
+                                     .getResponseCode());
+                } catch (IOException e) {
+                    statuses.add(-1);
+                }
+            });
+            poller.start();
+
+            // Once the first request waits, further ones are turned away.
+            int status = 0;
+            for (int i = 0; i < 100 && status != 503; ++i) {
+                Thread.sleep(50);
+                status = this.request("GET", path + 1, null).getResponseCode();
+            }
+            assertEquals(503, status);
+
+            thing.setProperty("level", 13);
+            poller.join(5000);
+            assertEquals(Collections.singletonList(200), statuses);
+        } finally {
+            server.setMaxLongPolls(64);
+        }
+    }
+
+    @Test
+    public void testActionPages() throws IOException {
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(201,
+                         this.request("POST", "/actions", "{\"noop\": {}}")
+                             .getResponseCode());
+        }
+
+        // Walk back through all actions, two at a time.
+        List<String> hrefs = new ArrayList<>();
+        String path = "/actions?limit=2";
+        while (path != null) {
+            HttpURLConnection connection = this.request("GET", path, null);
+            assertEquals(200, connection.getResponseCode());
+            JSONArray page = new JSONArray(read(connection));
+            assertTrue(page.length() <= 2);
+            for (int i = page.length() - 1; i >= 0; --i) {
+                hrefs.add(page.getJSONObject(i)
+                              .getJSONObject("noop")
+                              .getString("href"));
+            }
+
+            String link = connection.getHeaderField("Link");
+            path = link == null ?
+                   null :
+                   link.substring(1, link.indexOf('>'));
+        }
+
+        HttpURLConnection connection = this.request("GET", "/actions", null);
+        JSONArray all = new JSONArray(read(connection));
+        assertEquals(all.length(), hrefs.size());
+        assertEquals(all.getJSONObject(0).getJSONObject("noop").getString("href"),
+                     hrefs.get(hrefs.size() - 1));
+
+        // An empty time range, and invalid parameters.
+        connection = this.request("GET",
+                                  "/actions?until=2000-01-01T00:00:00%2B00:00",
+                                  null);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(0, new JSONArray(read(connection)).length());
+
+        String[] invalid = {
+                "limit=0",
+                "since=yesterday",
+                "cursor=abc&limit=1",
+                "cursor=" + new TimeIndex.Key(0, 0).toCursor(),
+        };
+        for (String query : invalid) {
+            connection = this.request("GET", "/events?" + query, null);
+            assertEquals(query, 400, connection.getResponseCode());
+        }
+    }
+
+    @Test
+    public void testCompressedDescription() throws IOException {
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            HttpURLConnection connection = this.request("GET", "/", null);
+            connection.setRequestProperty("Accept-Encoding", encoding);
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(encoding, connection.getContentEncoding());
+            assertEquals("Accept, Accept-Encoding",
+                         connection.getHeaderField("Vary"));
+
+            InputStream in = encoding.equals("gzip") ?
+                    new GZIPInputStream(connection.getInputStream()) :
+                    new InflaterInputStream(connection.getInputStream());
+            JSONObject description = new JSONObject(new JSONTokener(in));
+            assertEquals("urn:dev:ops:test-1234", description.getString("id"));
+        }
+
+        // Short responses are not worth compressing.
+        HttpURLConnection connection =
+                this.request("GET", "/properties/level", null);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertNull(connection.getContentEncoding());
+        read(connection);
+    }
+
+    @Test
+    public void testCachedDescription() throws IOException {
+        for (String encoding : new String[]{"gzip", "gzip", "identity"}) {
+            HttpURLConnection connection = this.request("GET", "/", null);
+            connection.setRequestProperty("Accept-Encoding", encoding);
+            assertEquals(200, connection.getResponseCode());
+            assertEquals("*",
+                         connection.getHeaderField(
+                                 "Access-Control-Allow-Origin"));
+            assertEquals("Accept, Accept-Encoding",
+                         connection.getHeaderField("Vary"));
+
+            InputStream in = encoding.equals("gzip") ?
+                    new GZIPInputStream(connection.getInputStream()) :
+                    connection.getInputStream();
+            JSONObject description = new JSONObject(new JSONTokener(in));
+            assertEquals("urn:dev:ops:test-1234", description.getString("id"));
+        }
+
+        // Modifying the thing replaces its cached description.
+        things.get(this.backend)
+              .addAvailableEvent("cached", new JSONObject());
+        HttpURLConnection connection = this.request("GET", "/", null);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        JSONObject description = new JSONObject(new JSONTokener(
+                new GZIPInputStream(connection.getInputStream())));
+        assertTrue(description.getJSONObject("events").has("cached"));
+    }
+
+    @Test
+    public void testCbor() throws IOException {
+        HttpURLConnection connection = this.request("GET", "/", null);
+        connection.setRequestProperty("Accept", "application/cbor");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/cbor", connection.getContentType());
+        JSONObject description =
+                (JSONObject)Cbor.decode(readBytes(connection));
+        assertEquals("urn:dev:ops:test-1234", description.getString("id"));
+
+        byte[] body = Cbor.fromJson("{\"level\": 3}");
+        URL url = new URL("http://localhost:" + this.port + "/properties/level");
+        connection = (HttpURLConnection)url.openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setRequestProperty("Accept", "application/cbor");
+        connection.setRequestProperty("Content-Type", "application/cbor");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(3, ((JSONObject)Cbor.decode(readBytes(connection)))
+                .getInt("level"));
+    }
+
+    @Test
+    public void testCborWebSocket() throws IOException {
+        Assume.assumeTrue(this.backend.equals("nanohttpd"));
+
+        try (Socket socket = new Socket("localhost", this.port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("GET / HTTP/1.1\r\n" +
+                    "Host: localhost:" + this.port + "\r\n" +
+                    "Upgrade: websocket\r\n" +
+                    "Connection: Upgrade\r\n" +
+                    "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                    "Sec-WebSocket-Version: 13\r\n" +
+                    "Sec-WebSocket-Protocol: webthing, webthing.cbor\r\n" +
+                    "\r\n").getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder head = new StringBuilder();
+            while (head.indexOf("\r\n\r\n") < 0) {
+                head.append((char)in.read());
+            }
+            String response = head.toString().toLowerCase();
+            assertTrue(response, response.startsWith("http/1.1 101"));
+            assertTrue(response,
+                       response.contains(
+                               "sec-websocket-protocol: webthing.cbor"));
+
+            // Send a masked binary setProperty message.
+            byte[] message = Cbor.fromJson(
+                    "{\"messageType\": \"setProperty\", " +
+                            "\"data\": {\"level\": 11}}");
+            byte[] mask = {7, 1, 3, 5};
+            out.write(0x82);
+            out.write(0x80 | message.length);
+            out.write(mask);
+            for (int i = 0; i < message.length; ++i) {
+                out.write(message[i] ^ mask[i % 4]);
+            }
+            out.flush();
+
+            // The resulting propertyStatus comes back as binary CBOR.
+            assertEquals(0x82, in.read());
+            int payloadLength = in.read();
+            assertTrue(payloadLength < 126);
+            byte[] payload = new byte[payloadLength];
+            for (int i = 0; i < payloadLength; ++i) {
+                payload[i] = (byte)in.read();
+            }
+
+            JSONObject status = (JSONObject)Cbor.decode(payload);
+            assertEquals("propertyStatus", status.getString("messageType"));
+            assertEquals(11, status.getJSONObject("data").getInt("level"));
+        }
+    }
+
+    @Test
+    public void testCompressedWebSocket() throws Exception {
+        Assume.assumeTrue(this.backend.equals("nanohttpd"));
+
+        try (Socket socket = new Socket("localhost", this.port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("GET / HTTP/1.1\r\n" +
+                    "Host: localhost:" + this.port + "\r\n" +
+                    "Upgrade: websocket\r\n" +
+                    "Connection: Upgrade\r\n" +
+                    "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                    "Sec-WebSocket-Version: 13\r\n" +
+                    "Sec-WebSocket-Extensions: permessage-deflate; " +
+                    "client_max_window_bits\r\n" +
+                    "\r\n").getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder head = new StringBuilder();
+            while (head.indexOf("\r\n\r\n") < 0) {
+                head.append((char)in.read());
+            }
+            String response = head.toString().toLowerCase();
+            assertTrue(response, response.startsWith("http/1.1 101"));
+            assertTrue(response,
+                       response.contains(
+                               "sec-websocket-extensions: permessage-deflate"));
+
+            // Send a compressed, masked setProperty message.
+            byte[] message = ("{\"messageType\": \"setProperty\", " +
+                    "\"data\": {\"level\": 9}}").getBytes(StandardCharsets.UTF_8);
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(message);
+            byte[] compressed = new byte[256];
+            int length = deflater.deflate(compressed,
+                                          0,
+                                          compressed.length,
+                                          Deflater.SYNC_FLUSH) - 4;
+            deflater.end();
+
+            byte[] mask = {7, 1, 3, 5};
+            out.write(0xc1);
+            out.write(0x80 | length);
+            out.write(mask);
+            for (int i = 0; i < length; ++i) {
+                out.write(compressed[i] ^ mask[i % 4]);
+            }
+            out.flush();
+
+            // The resulting propertyStatus comes back compressed.
+            assertEquals(0xc1, in.read());
+            int payloadLength = in.read();
+            assertTrue(payloadLength < 126);
+            byte[] payload = new byte[payloadLength + 4];
+            for (int i = 0; i < payloadLength; ++i) {
+                payload[i] = (byte)in.read();
+            }
+            payload[payloadLength + 2] = (byte)0xff;
+            payload[payloadLength + 3] = (byte)0xff;
+
+            Inflater inflater = new Inflater(true);
+            inflater.setInput(payload);
+            byte[] inflated = new byte[1024];
+            int count = inflater.inflate(inflated);
+            inflater.end();
+
+            JSONObject status = new JSONObject(
+                    new String(inflated, 0, count, StandardCharsets.UTF_8));
+            assertEquals("propertyStatus", status.getString("messageType"));
+            assertEquals(9, status.getJSONObject("data").getInt("level"));
+        }
+    }
+
+    @Test
+    public void testEventStream() throws IOException {
+        HttpURLConnection connection = this.request("GET", "/", null);
+        connection.setRequestProperty("Accept", "text/event-stream");
+        connection.setReadTimeout(5000);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("text/event-stream", connection.getContentType());
+        assertEquals("no-cache", connection.getHeaderField("Cache-Control"));
+
+        String id;
+        try (BufferedReader stream = new BufferedReader(new InputStreamReader(
+                connection.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            assertEquals(200,
+                         this.request("PUT",
+                                      "/properties/level",
+                                      "{\"level\": 7}").getResponseCode());
+
+            String[] event = readEvent(stream);
+            id = event[0];
+            JSONObject message = new JSONObject(event[1]);
+            assertEquals("propertyStatus", message.getString("messageType"));
+            assertEquals(7, message.getJSONObject("data").getInt("level"));
+            assertEquals(Long.parseLong(id), message.getLong("sequence"));
+        } finally {
+            connection.disconnect();
+        }
+
+        // Resuming from the event before replays the missed one.
+        connection = this.request("GET", "/", null);
+        connection.setRequestProperty("Accept", "text/event-stream");
+        connection.setRequestProperty("Last-Event-ID",
+                                      String.valueOf(Long.parseLong(id) - 1));
+        connection.setReadTimeout(5000);
+        assertEquals(200, connection.getResponseCode());
+        try (BufferedReader stream = new BufferedReader(new InputStreamReader(
+                connection.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String[] event = readEvent(stream);
+            assertEquals(id, event[0]);
+            assertEquals("propertyStatus",
+                         new JSONObject(event[1]).getString("messageType"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void testEventStreamKeepaliveAndClose() throws IOException {
+        Assume.assumeTrue(this.backend.equals("nanohttpd"));
+
+        List<Subscriber> removed = new ArrayList<>();
+        Thing thing = new Thing("urn:dev:ops:test-5678", "Test") {
+            @Override
+            public synchronized void removeSubscriber(Subscriber subscriber) {
+                removed.add(subscriber);
+                super.removeSubscriber(subscriber);
+            }
+        };
+        thing.addProperty(new Property(thing, "level", new Value(0)));
+
+        WebThingServer.EventStream stream =
+                new WebThingServer.EventStream(Arrays.asList(thing), false, 50);
+        stream.open(null);
+
+        // Without messages, the stream sends comments to keep the
+        // connection open.
+        byte[] buffer = new byte[1024];
+        int read = stream.read(buffer, 0, buffer.length);
+        assertEquals(":\n\n", new String(buffer, 0, read, StandardCharsets.UTF_8));
+
+        thing.propertyNotify(thing.findProperty("level"));
+        read = stream.read(buffer, 0, buffer.length);
+        assertTrue(new String(buffer, 0, read, StandardCharsets.UTF_8)
+                           .startsWith("id: 1\n"));
+
+        // Closing the response unsubscribes the stream from its things.
+        stream.close();
+        assertEquals(1, removed.size());
+        assertEquals(-1, stream.read(buffer, 0, buffer.length));
+    }
+
+    @Test
+    public void testOptions() throws IOException {
+        HttpURLConnection connection =
+                this.request("OPTIONS", "/properties", null);
+        assertEquals(204, connection.getResponseCode());
+        assertTrue(connection.getHeaderField("Access-Control-Allow-Methods")
+                             .contains("PUT"));
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        HttpURLConnection connection =
+                this.request("GET", "/properties/missing", null);
+        assertEquals(404, connection.getResponseCode());
+    }
+
+    private HttpURLConnection request(String method, String path, String body)
+            throws IOException {
+        return this.request(method, path, body, new HashMap<>());
+    }
+
+    private HttpURLConnection request(String method,
+                                      String path,
+                                      String body,
+                                      Map<String, String> headers)
+            throws IOException {
+        URL url = new URL("http://localhost:" + this.port + path);
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", "application/json");
+        headers.forEach(connection::setRequestProperty);
+
+        if (body != null) {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setFixedLengthStreamingMode(bytes.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(bytes);
+            }
+        }
+
+        return connection;
+    }
+
+    private static String read(HttpURLConnection connection)
+            throws IOException {
+        return new String(readBytes(connection), StandardCharsets.UTF_8);
+    }
+
+    private static String[] readEvent(BufferedReader stream)
+            throws IOException {
+        String id = null;
+        String data = null;
+        String line;
+        while ((line = stream.readLine()) != null) {
+            if (line.startsWith("id: ")) {
+                id = line.substring(4);
+            } else if (line.startsWith("data: ")) {
+                data = line.substring(6);
+            } else if (line.isEmpty() && data != null) {
+                break;
+            }
+        }
+
+        return new String[]{id, data};
+    }
+
+    private static String readError(HttpURLConnection connection)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getErrorStream()) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, read);
+            }
+        }
+
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(HttpURLConnection connection)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                body.write(buffer, 0, read);
+            }
+        }
+
+        return body.toByteArray();
+    }
+
+    public static class EchoHandler extends RouterNanoHTTPD.GeneralHandler {
+        @Override
+        public NanoHTTPD.Response get(RouterNanoHTTPD.UriResource uriResource,
+                                      Map<String, String> urlParams,
+                                      NanoHTTPD.IHTTPSession session) {
+            return NanoHTTPD.newFixedLengthResponse(urlParams.get("path"));
+        }
+    }
+
+    public static class NoopAction extends Action {
+        public NoopAction(Thing thing, JSONObject input) {
+            super(UUID.randomUUID().toString(), thing, "noop", input);
+        }
+    }
+}
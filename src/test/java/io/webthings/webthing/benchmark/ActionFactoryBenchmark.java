@@ -0,0 +1,73 @@
+package io.webthings.webthing.benchmark;
+
+import io.webthings.webthing.Action;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.Utils;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Compares ways of creating an action for a request: looking up the
+ * constructor by reflection each time, as performAction() used to, against
+ * a cached method handle and a constructor reference.
+ * <p>
+ * Run with:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *     org.openjdk.jmh.Main ActionFactoryBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActionFactoryBenchmark {
+    private final Thing thing = new Thing("urn:dev:ops:bench", "Bench");
+    private final JSONObject input = new JSONObject().put("level", 50);
+    private final BiFunction<Thing, JSONObject, Action> methodHandle =
+            Utils.actionFactory(BenchAction.class);
+    private final BiFunction<Thing, JSONObject, Action> constructorReference =
+            BenchAction::new;
+
+    @Benchmark
+    public Action reflection() throws Exception {
+        Constructor constructor =
+                BenchAction.class.getConstructor(Thing.class, JSONObject.class);
+        return (Action)constructor.newInstance(new Object[]{this.thing,
+                                                            this.input});
+    }
+
+    @Benchmark
+    public Action methodHandle() {
+        return this.methodHandle.apply(this.thing, this.input);
+    }
+
+    @Benchmark
+    public Action constructorReference() {
+        return this.constructorReference.apply(this.thing, this.input);
+    }
+
+    /**
+     * Minimal action, so that the creation path dominates.
+     */
+    public static class BenchAction extends Action {
+        public BenchAction(Thing thing, JSONObject input) {
+            super("bench", thing, "bench", input);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package io.webthings.webthing.benchmark;
+
+import io.webthings.webthing.Cbor;
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.Value;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares JSON and CBOR encodings of a thing description and of a property
+ * status message: the time to encode them from the message tree and to
+ * decode them back into one. The payload sizes are printed during setup.
+ * <p>
+ * The server produces CBOR by transcoding the JSON text, so cborEncode
+ * includes the JSON serialization, and cborTranscode is the added cost.
+ * <p>
+ * Run with:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *     org.openjdk.jmh.Main CborBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CborBenchmark {
+    @Param({"description", "propertyStatus"})
+    public String payload;
+
+    private JSONObject tree;
+    private String json;
+    private byte[] cbor;
+
+    @Setup
+    public void setUp() {
+        if (this.payload.equals("description")) {
+            Thing thing = new Thing("urn:dev:ops:bench",
+                                    "Bench",
+                                    new JSONArray().put("Light"),
+                                    "A light");
+            for (int i = 0; i < 8; ++i) {
+                thing.addProperty(new Property(
+                        thing,
+                        "level" + i,
+                        new Value(i),
+                        new JSONObject().put("type", "integer")
+                                        .put("minimum", 0)
+                                        .put("maximum", 100)
+                                        .put("unit", "percent")
+                                        .put("title", "Level " + i)));
+            }
+
+            this.tree = thing.asThingDescription();
+        } else {
+            this.tree = new JSONObject()
+                    .put("messageType", "propertyStatus")
+                    .put("data", new JSONObject().put("level", 42)
+                                                 .put("temperature", 21.5))
+                    .put("versions", new JSONObject().put("level", 1234)
+                                                     .put("temperature", 1235))
+                    .put("sequence", 98765);
+        }
+
+        this.json = this.tree.toString();
+        this.cbor = Cbor.fromJson(this.json);
+        System.out.printf("%n%s: %d bytes as JSON, %d bytes as CBOR%n",
+                          this.payload,
+                          this.json.getBytes(StandardCharsets.UTF_8).length,
+                          this.cbor.length);
+    }
+
+    @Benchmark
+    public byte[] jsonEncode() {
+        return this.tree.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] cborEncode() {
+        return Cbor.fromJson(this.tree.toString());
+    }
+
+    @Benchmark
+    public byte[] cborTranscode() {
+        return Cbor.fromJson(this.json);
+    }
+
+    @Benchmark
+    public JSONObject jsonDecode() {
+        return new JSONObject(this.json);
+    }
+
+    @Benchmark
+    public Object cborDecode() {
+        return Cbor.decode(this.cbor);
+    }
+}
@@ -0,0 +1,156 @@
+package io.webthings.webthing.benchmark;
+
+import io.webthings.webthing.ConnectionRunner;
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.Value;
+import io.webthings.webthing.WebThingServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens a burst of concurrent connections against a server and reports
+ * latency, failures and the server's peak thread count.
+ * <p>
+ * Run with:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *     io.webthings.webthing.benchmark.ConnectionLoad \
+ *     [default|bounded|virtual] [connections] [maxConnections]
+ * </pre>
+ */
+public class ConnectionLoad {
+    private static final int PORT = 8899;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "bounded";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        Thing thing = new Thing("urn:dev:ops:load-1234", "Load");
+        thing.addProperty(new Property(thing, "level", new Value(0)));
+
+        WebThingServer server =
+                new WebThingServer(new WebThingServer.SingleThing(thing),
+                                   PORT);
+        switch (mode) {
+            case "default":
+                break;
+            case "virtual":
+                server.setAsyncRunner(ConnectionRunner.virtual(maxConnections,
+                                                               10 * 1000));
+                break;
+            default:
+                server.setAsyncRunner(ConnectionRunner.bounded(maxConnections,
+                                                               10 * 1000));
+                break;
+        }
+        server.start(true);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failures = new AtomicInteger(0);
+        CountDownLatch ready = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(connections);
+
+        for (int i = 0; i < connections; ++i) {
+            Thread client = new Thread(() -> {
+                try {
+                    ready.await();
+                    long start = System.nanoTime();
+                    if (request()) {
+                        latencies.add(System.nanoTime() - start);
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+            client.setDaemon(true);
+            client.start();
+        }
+
+        // Client threads are part of the peak count, so subtract them below.
+        int baseThreads = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+
+        long start = System.nanoTime();
+        ready.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        System.out.printf("mode:          %s%n", mode);
+        System.out.printf("connections:   %d%n", connections);
+        System.out.printf("succeeded:     %d%n", sorted.size());
+        System.out.printf("failed:        %d%n", failures.get());
+        System.out.printf("elapsed:       %d ms%n", elapsed / 1000000);
+        if (!sorted.isEmpty()) {
+            System.out.printf("p50:           %d ms%n",
+                              percentile(sorted, 0.50) / 1000000);
+            System.out.printf("p99:           %d ms%n",
+                              percentile(sorted, 0.99) / 1000000);
+        }
+        System.out.printf("server threads: %d%n",
+                          threads.getPeakThreadCount() - baseThreads);
+
+        server.stop();
+
+        // The mDNS timer thread would keep the JVM running.
+        System.exit(0);
+    }
+
+    /**
+     * Fetch a property over a new connection.
+     *
+     * @return Boolean indicating whether the request succeeded.
+     */
+    private static boolean request() throws Exception {
+        try (Socket socket = new Socket("localhost", PORT)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /properties/level HTTP/1.1\r\n" +
+                    "Host: localhost:" + PORT + "\r\n" +
+                    "Connection: close\r\n\r\n")
+                              .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            // Read the whole response, so the server is not cut off.
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                response.write(buffer, 0, n);
+            }
+
+            return new String(response.toByteArray(),
+                              StandardCharsets.US_ASCII)
+                    .startsWith("HTTP/1.1 200");
+        }
+    }
+
+    /**
+     * Get a percentile from sorted samples.
+     */
+    private static long percentile(List<Long> sorted, double p) {
+        int index = (int)Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+}
@@ -0,0 +1,144 @@
+package io.webthings.webthing.benchmark;
+
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.Value;
+import io.webthings.webthing.WebThingServer;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures requests per second and latency of property reads over
+ * keep-alive connections, on either HTTP backend.
+ * <p>
+ * Run with:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *     io.webthings.webthing.benchmark.HttpBackendLoad \
+ *     [nanohttpd|httpserver] [clients] [seconds]
+ * </pre>
+ */
+public class HttpBackendLoad {
+    private static final int PORT = 8899;
+
+    public static void main(String[] args) throws Exception {
+        String backend = args.length > 0 ? args[0] : "httpserver";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Thing thing = new Thing("urn:dev:ops:load-1234", "Load");
+        thing.addProperty(new Property(thing, "level", new Value(0)));
+
+        WebThingServer server =
+                new WebThingServer(new WebThingServer.SingleThing(thing),
+                                   PORT);
+        if (backend.equals("nanohttpd")) {
+            server.start(true);
+        } else {
+            server.startHttpServer();
+        }
+
+        URL url = new URL("http://localhost:" + PORT + "/properties/level");
+
+        // Warm up both sides before measuring.
+        run(url, clients, System.nanoTime() + 2000000000L);
+
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000000000L;
+        Result result = run(url, clients, deadline);
+        long elapsed = System.nanoTime() - start;
+
+        List<Long> sorted = result.latencies;
+        Collections.sort(sorted);
+        System.out.printf("backend:   %s%n", backend);
+        System.out.printf("clients:   %d%n", clients);
+        System.out.printf("requests:  %d%n", sorted.size());
+        System.out.printf("failed:    %d%n", result.failures.get());
+        System.out.printf("rps:       %.0f%n",
+                          sorted.size() / (elapsed / 1e9));
+        if (!sorted.isEmpty()) {
+            System.out.printf("p50:       %.2f ms%n",
+                              percentile(sorted, 0.50) / 1e6);
+            System.out.printf("p99:       %.2f ms%n",
+                              percentile(sorted, 0.99) / 1e6);
+        }
+
+        server.stop();
+
+        // The mDNS timer thread would keep the JVM running.
+        System.exit(0);
+    }
+
+    /**
+     * Send requests from all clients until the deadline.
+     */
+    private static Result run(URL url, int clients, long deadline)
+            throws InterruptedException {
+        Result result = new Result();
+        CountDownLatch done = new CountDownLatch(clients);
+
+        for (int i = 0; i < clients; ++i) {
+            Thread client = new Thread(() -> {
+                List<Long> latencies = new ArrayList<>();
+                byte[] buffer = new byte[1024];
+                try {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        try {
+                            HttpURLConnection connection =
+                                    (HttpURLConnection)url.openConnection();
+                            connection.setRequestProperty("Accept",
+                                                          "application/json");
+
+                            // Read the whole body, so the connection is
+                            // reused.
+                            try (InputStream in = connection.getInputStream()) {
+                                while (in.read(buffer) >= 0) {
+                                }
+                            }
+
+                            if (connection.getResponseCode() == 200) {
+                                latencies.add(System.nanoTime() - start);
+                            } else {
+                                result.failures.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            result.failures.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    synchronized (result) {
+                        result.latencies.addAll(latencies);
+                    }
+                    done.countDown();
+                }
+            });
+            client.setDaemon(true);
+            client.start();
+        }
+
+        done.await();
+        return result;
+    }
+
+    /**
+     * Get a percentile from sorted samples.
+     */
+    private static long percentile(List<Long> sorted, double p) {
+        int index = (int)Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    private static class Result {
+        final List<Long> latencies = new ArrayList<>();
+        final AtomicInteger failures = new AtomicInteger(0);
+    }
+}
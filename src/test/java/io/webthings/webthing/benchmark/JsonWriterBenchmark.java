@@ -0,0 +1,130 @@
+package io.webthings.webthing.benchmark;
+
+import io.webthings.webthing.Action;
+import io.webthings.webthing.JsonWriter;
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.Value;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares serializing through a JSONObject tree with writing the same JSON
+ * straight into a reused JsonWriter, for a thing description, the list of
+ * actions and a property status message.
+ * <p>
+ * The interesting figure is the allocation per operation, so run with the
+ * GC profiler:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *     org.openjdk.jmh.Main JsonWriterBenchmark -prof gc
+ * </pre>
+ * and compare gc.alloc.rate.norm, in bytes per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonWriterBenchmark {
+    private Thing thing;
+    private JsonWriter writer;
+
+    @Setup
+    public void setUp() {
+        this.thing = new Thing("urn:dev:ops:bench",
+                               "Bench",
+                               new JSONArray().put("Light"),
+                               "A light");
+        for (int i = 0; i < 8; ++i) {
+            this.thing.addProperty(new Property(
+                    this.thing,
+                    "level" + i,
+                    new Value(i),
+                    new JSONObject().put("type", "integer")
+                                    .put("minimum", 0)
+                                    .put("maximum", 100)
+                                    .put("unit", "percent")
+                                    .put("title", "Level " + i)));
+        }
+
+        this.thing.addAvailableAction(
+                "fade",
+                new JSONObject().put("title", "Fade"),
+                (thing, input) -> new Action("fade", thing, "fade", input));
+        for (int i = 0; i < 20; ++i) {
+            this.thing.performAction("fade",
+                                     new JSONObject().put("duration", i));
+        }
+
+        this.writer = new JsonWriter();
+    }
+
+    @Benchmark
+    public String descriptionTree() {
+        return this.thing.asThingDescription().toString();
+    }
+
+    @Benchmark
+    public String descriptionWriter() {
+        this.thing.writeThingDescription(this.writer.reset());
+        return this.writer.toString();
+    }
+
+    @Benchmark
+    public String actionsTree() {
+        return this.thing.getActionDescriptions(null).toString();
+    }
+
+    @Benchmark
+    public String actionsWriter() {
+        this.thing.writeActionDescriptions(this.writer.reset(), null);
+        return this.writer.toString();
+    }
+
+    @Benchmark
+    public String propertyStatusTree() {
+        JSONObject json = new JSONObject();
+        json.put("messageType", "propertyStatus");
+        json.put("data", new JSONObject().put("level", 42));
+        json.put("versions", new JSONObject().put("level", 1234));
+        json.put("sequence", 98765);
+        return json.toString();
+    }
+
+    @Benchmark
+    public String propertyStatusWriter() {
+        return this.writer.reset()
+                          .beginObject()
+                          .name("messageType")
+                          .value("propertyStatus")
+                          .name("data")
+                          .beginObject()
+                          .name("level")
+                          .value(42)
+                          .endObject()
+                          .name("versions")
+                          .beginObject()
+                          .name("level")
+                          .value(1234)
+                          .endObject()
+                          .name("sequence")
+                          .value(98765)
+                          .endObject()
+                          .toString();
+    }
+}
@@ -0,0 +1,90 @@
+package io.webthings.webthing.benchmark;
+
+import io.webthings.webthing.Mailbox;
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.Value;
+import io.webthings.webthing.errors.PropertyError;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares property writes spread over many things, with and without
+ * per-thing mailboxes.
+ * <p>
+ * Run with:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *     org.openjdk.jmh.Main MailboxBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class MailboxBenchmark {
+    @Param({"1000"})
+    public int things;
+
+    @Param({"direct", "mailbox"})
+    public String mode;
+
+    private Thing[] thingList;
+    private ExecutorService pool;
+    private final LongAdder delivered = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        this.thingList = new Thing[this.things];
+
+        for (int i = 0; i < this.things; ++i) {
+            Thing thing = new Thing("urn:dev:ops:bench-" + i, "Bench " + i);
+            thing.addProperty(new Property(thing, "level", new Value(0)));
+            thing.addEventStreamSubscriber((message) -> {
+                this.delivered.increment();
+            });
+
+            if (this.mode.equals("mailbox")) {
+                thing.setMailbox(new Mailbox(this.pool));
+            }
+
+            this.thingList[i] = thing;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.pool.shutdownNow();
+    }
+
+    @Benchmark
+    public void setProperty() throws PropertyError {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Thing thing = this.thingList[random.nextInt(this.things)];
+        thing.setProperty("level", random.nextInt());
+    }
+}
@@ -0,0 +1,179 @@
+package io.webthings.webthing.benchmark;
+
+import io.webthings.webthing.Property;
+import io.webthings.webthing.Thing;
+import io.webthings.webthing.Value;
+import io.webthings.webthing.WebThingServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+
+/**
+ * Compares routing a property read through NanoHTTPD's pattern list, which
+ * is tried in order and creates a handler per request, against the server's
+ * route trie, as more additional routes are registered.
+ * <p>
+ * Run with:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *     org.openjdk.jmh.Main RouteBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouteBenchmark {
+    private static final int PORT = 8888;
+
+    @Param({"0", "50", "200"})
+    public int additionalRoutes;
+
+    private RouterNanoHTTPD patterns;
+    private WebThingServer trie;
+    private NanoHTTPD.IHTTPSession session;
+
+    @Setup
+    public void setUp() throws IOException {
+        Thing thing = new Thing("urn:dev:ops:bench", "Bench");
+        thing.addProperty(new Property(thing, "level", new Value(0)));
+        WebThingServer.MultipleThings things =
+                new WebThingServer.MultipleThings(Arrays.asList(thing),
+                                                  "Bench");
+
+        List<WebThingServer.Route> routes = new ArrayList<>();
+        for (int i = 0; i < this.additionalRoutes; ++i) {
+            routes.add(new WebThingServer.Route("/extra" + i + "/:id",
+                                                RouterNanoHTTPD.Error404UriHandler.class));
+        }
+
+        this.trie = new WebThingServer(things, PORT, null, null, routes);
+
+        List<String> hosts = Collections.singletonList("localhost:" + PORT);
+        this.patterns = new RouterNanoHTTPD(PORT);
+        this.patterns.setRoutePrioritizer(
+                new RouterNanoHTTPD.InsertionOrderRoutePrioritizer());
+        for (WebThingServer.Route route : routes) {
+            this.patterns.addRoute(route.url, route.handlerClass);
+        }
+        this.patterns.addRoute("/:thingId/properties/:propertyName",
+                               WebThingServer.PropertyHandler.class,
+                               things,
+                               hosts,
+                               false);
+        this.patterns.addRoute("/:thingId/properties",
+                               WebThingServer.PropertiesHandler.class,
+                               things,
+                               hosts,
+                               false);
+
+        this.session = new Session("/0/properties/level");
+    }
+
+    @Benchmark
+    public NanoHTTPD.Response patterns() {
+        return this.patterns.serve(this.session);
+    }
+
+    @Benchmark
+    public NanoHTTPD.Response trie() {
+        return this.trie.serve(this.session);
+    }
+
+    /**
+     * A GET request with no body.
+     */
+    private static class Session implements NanoHTTPD.IHTTPSession {
+        private final String uri;
+        private final Map<String, String> headers;
+
+        Session(String uri) {
+            this.uri = uri;
+            this.headers = new HashMap<>();
+            this.headers.put("host", "localhost:" + PORT);
+        }
+
+        @Override
+        public void execute() {
+        }
+
+        @Override
+        public NanoHTTPD.CookieHandler getCookies() {
+            return null;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return this.headers;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public NanoHTTPD.Method getMethod() {
+            return NanoHTTPD.Method.GET;
+        }
+
+        @Override
+        public Map<String, String> getParms() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<String, List<String>> getParameters() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String getQueryParameterString() {
+            return null;
+        }
+
+        @Override
+        public String getUri() {
+            return this.uri;
+        }
+
+        @Override
+        public void parseBody(Map<String, String> files) {
+        }
+
+        @Override
+        public String getRemoteIpAddress() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public String getRemoteHostName() {
+            return "localhost";
+        }
+    }
+}